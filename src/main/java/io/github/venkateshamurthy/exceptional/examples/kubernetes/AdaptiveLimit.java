@@ -0,0 +1,233 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Optional;
+import java.util.function.LongSupplier;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * An additive increase / multiplicative decrease limit on the downloads dispatched together (in the manner of the
+ * Netflix concurrency-limits); learnt from the downloads rather than taken from the processor count.
+ * <p>Once as many downloads as the limit complete (a window), the limit grows by one if the aggregate throughput of
+ * the window improved on the previous one, and is cut by {@link #BACKOFF} if it fell by more than
+ * {@link #DEGRADATION}. An error, or a download whose latency (per byte) exceeds {@link #LATENCY_TOLERANCE} times the
+ * best seen, cuts it right away. The limit is kept as a user extended attribute of the destination root (so on the
+ * volume itself) for the next run to start from; or else (as on a tmpfs without them) in a hidden
+ * {@link #SIDECAR sidecar file} of the root.
+ */
+@Slf4j
+final class AdaptiveLimit {
+    /** Name of the user extended attribute of the root the limit is kept in.*/
+    static final String ATTRIBUTE = "agent.download-limit";
+    /** Hidden file of the root the limit is kept in where the volume does not support user extended attributes.*/
+    static final String SIDECAR = "." + ATTRIBUTE;
+    /** Factor the limit is cut by.*/
+    static final double BACKOFF = 0.75;
+    /** Latency (per byte) beyond this multiple of the best seen is taken as congestion.*/
+    static final double LATENCY_TOLERANCE = 2.0;
+    /** Fall in the throughput of a window (on the previous) taken as congestion.*/
+    static final double DEGRADATION = 0.1;
+    /** Default limit when none has been learnt.*/
+    static final int DEFAULT_INITIAL = 4;
+    /** Default most downloads dispatched together.*/
+    static final int DEFAULT_MAX = 16;
+
+    private final int min;
+    private final int max;
+    private final LongSupplier nanoTime;
+    private int limit;
+    private int inFlight;
+    private double bestLatency = Double.MAX_VALUE;
+    private long windowStart;
+    private long windowBytes;
+    private int windowSamples;
+    private double lastThroughput;
+
+    /**
+     * Constructor
+     * @param initial limit
+     * @param min limit
+     * @param max limit
+     */
+    AdaptiveLimit(final int initial, final int min, final int max) {
+        this(initial, min, max, System::nanoTime);
+    }
+
+    /**
+     * Constructor
+     * @param initial limit
+     * @param min limit
+     * @param max limit
+     * @param nanoTime the clock the latencies and throughputs are timed by
+     */
+    AdaptiveLimit(final int initial, final int min, final int max, @NonNull final LongSupplier nanoTime) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.limit = Math.min(this.max, Math.max(this.min, initial));
+        this.nanoTime = nanoTime;
+        this.windowStart = nanoTime.getAsLong();
+    }
+
+    /**
+     * A permit to dispatch a download; to be completed with exactly one of its methods. Its latency is timed from
+     * when the transfer {@link #started() started} (rather than from when it was dispatched) so that the queueing of
+     * the download (say on its bulkhead or space reservation) is not taken for congestion.
+     */
+    final class Token {
+        private volatile long start = nanoTime.getAsLong();
+        private boolean done;
+
+        /** The transfer (the network part of the download) starts now.*/
+        void started() {
+            start = nanoTime.getAsLong();
+        }
+
+        /**
+         * The download transferred the bytes
+         * @param bytes transferred; a sample only when positive
+         */
+        void onSuccess(final long bytes) {
+            release(this, bytes > 0L ? bytes : 0L, false);
+        }
+
+        /** The download failed (or timed out).*/
+        void onDropped() {
+            release(this, 0L, true);
+        }
+    }
+
+    /**
+     * Wait for a permit within the limit
+     * @return Token
+     * @throws InterruptedException when interrupted while waiting
+     */
+    synchronized Token acquire() throws InterruptedException {
+        while (inFlight >= limit) wait();
+        if (inFlight++ == 0 && windowSamples == 0) windowStart = nanoTime.getAsLong();
+        return new Token();
+    }
+
+    /**
+     * Current limit
+     * @return limit
+     */
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    private synchronized void release(Token token, long bytes, boolean dropped) {
+        if (token.done) return;
+        token.done = true;
+        inFlight--;
+        if (dropped) {
+            decrease("an error");
+        } else if (bytes > 0L) {
+            final double latency = (double) (nanoTime.getAsLong() - token.start) / bytes;
+            bestLatency = Math.min(bestLatency, latency);
+            if (latency > LATENCY_TOLERANCE * bestLatency) {
+                decrease("latency " + Math.round(latency / bestLatency) + "x the best");
+            } else {
+                windowBytes += bytes;
+                if (++windowSamples >= limit) closeWindow();
+            }
+        }
+        notifyAll();
+    }
+
+    private void closeWindow() {
+        final double throughput = windowBytes * 1e9 / Math.max(1L, nanoTime.getAsLong() - windowStart);
+        if (throughput > lastThroughput) {
+            if (limit < max) {
+                limit++;
+                log.debug("Download limit raised to {} at {}/s", limit, B.toStorage((long) throughput));
+            }
+        } else if (throughput < lastThroughput * (1 - DEGRADATION)) {
+            decrease("throughput " + B.toStorage((long) throughput) + "/s down from " +
+                    B.toStorage((long) lastThroughput) + "/s");
+        }
+        lastThroughput = throughput;
+        resetWindow();
+    }
+
+    private void decrease(String reason) {
+        final int cut = Math.max(min, (int) (limit * BACKOFF));
+        if (cut < limit) log.info("Download limit cut to {} from {} on {}", cut, limit, reason);
+        limit = cut;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowStart = nanoTime.getAsLong();
+        windowBytes = 0L;
+        windowSamples = 0;
+    }
+
+    /**
+     * Load the limit learnt on a root
+     * @param root destination root
+     * @param min limit
+     * @param max limit
+     * @return AdaptiveLimit starting at the limit learnt; or {@link #DEFAULT_INITIAL}
+     */
+    static AdaptiveLimit load(@NonNull final File root, final int min, final int max) {
+        final int learnt = Try.of(() -> {
+            final UserDefinedFileAttributeView view = view(root);
+            final ByteBuffer value = ByteBuffer.allocate(view.size(ATTRIBUTE));
+            view.read(ATTRIBUTE, value);
+            return NumberUtils.toInt(new String(value.array(), StandardCharsets.UTF_8), DEFAULT_INITIAL);
+        }).orElse(() -> Try.of(() -> NumberUtils.toInt(
+                Files.readString(new File(root, SIDECAR).toPath(), StandardCharsets.UTF_8).strip(), DEFAULT_INITIAL)))
+                .getOrElse(DEFAULT_INITIAL);
+        log.debug("Download limit starts at {} on {}", learnt, root);
+        return new AdaptiveLimit(learnt, min, max);
+    }
+
+    /**
+     * Keep the limit learnt on a root; in its sidecar file when the volume does not support user extended attributes
+     * @param root destination root
+     * @return true when kept
+     */
+    boolean save(@NonNull final File root) {
+        final String value = Integer.toString(getLimit());
+        return Try.run(() -> view(root).write(ATTRIBUTE, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8))))
+                .orElse(() -> Try.run(() -> keepInSidecar(root, value)))
+                .onFailure(e -> log.warn("Unable to keep the download limit on {} (the next run starts from {}):{}",
+                        root, DEFAULT_INITIAL, e.getMessage()))
+                .isSuccess();
+    }
+
+    /**
+     * Keep the limit in the sidecar of the root; rewritten atomically so a concurrent load sees the earlier one or this
+     * @param root destination root
+     * @param value the limit
+     * @throws IOException when the sidecar cannot be written
+     */
+    static void keepInSidecar(@NonNull final File root, @NonNull final String value) throws IOException {
+        final Path temp = Files.createTempFile(root.toPath(), SIDECAR, FileUtils.PART_SUFFIX);
+        try {
+            Files.writeString(temp, value, StandardCharsets.UTF_8);
+            Files.move(temp, new File(root, SIDECAR).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static UserDefinedFileAttributeView view(File root) {
+        return Optional.ofNullable(Files.getFileAttributeView(root.toPath(), UserDefinedFileAttributeView.class))
+                .orElseThrow(() -> new UnsupportedOperationException("No user attributes on " + root));
+    }
+}
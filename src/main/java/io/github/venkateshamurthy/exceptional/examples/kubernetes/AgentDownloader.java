@@ -1,7 +1,9 @@
 package io.github.venkateshamurthy.exceptional.examples.kubernetes;
 
 import io.github.venkateshamurthy.exceptional.RxFunction;
+import io.github.resilience4j.core.functions.CheckedRunnable;
 import io.github.venkateshamurthy.exceptional.RxTry;
+import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.Single;
 import io.reactivex.rxjava3.schedulers.Schedulers;
 import io.vavr.control.Either;
@@ -16,18 +18,28 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Consumer;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import static io.github.venkateshamurthy.exceptional.RxFunction.toCheckedBiFunction;
-import static io.github.venkateshamurthy.exceptional.examples.kubernetes.FileUtils.listFiles;
 import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
 import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.KB;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -36,152 +48,826 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 @Slf4j
 @ExtensionMethod({RxFunction.class, RxTry.class})
 @Getter
-@With
-class AgentDownloader {
-    private static final int maxAgentsOfAType = 3;
+class AgentDownloader implements AutoCloseable {
+    /** Default number of versions of an agent type retained.*/
+    static final int DEFAULT_AGENTS_OF_A_TYPE = 3;
+    /** Default number of downloads of the same agent type that may run together.*/
+    static final int DEFAULT_BULKHEAD_PERMITS = 2;
+    /** Default unreserved free space below which the transfers in flight pause.*/
+    static final Storage LOW_WATER_MARK = Storage.ZERO;
+    /** Default unreserved free space above which the paused transfers resume.*/
+    static final Storage HIGH_WATER_MARK = Storage.mb(32);
     private final Duration timeOut;                      // = Duration.ofSeconds(300L);
     private final Storage minFreeSpace;
+    /** The primary destination root; which also holds the work journal.*/
     private final AtomicReference<File> destinationFolder;
-    private final Function<URI, Callable<Either<Exception, Storage>>> callableMaker = (URI uri) -> () ->
-            FileUtils.copy(uri.toURL(), new File(getDestinationFolder().get(), uri.toURL().getFile()),
-                    KB.toStorage(8), getTimeOut());
+    /** When set, a new version is assembled from the previous local version of its type (see {@link DeltaSync}).*/
+    private final boolean deltaUpdates;
+    /** When set, agents are kept as {@link CompressedStore} containers on the volume.*/
+    private final boolean compressAtRest;
+    /** Number of downloads of an agent type allowed to run together (fairly queued beyond that).*/
+    private final int bulkheadPermits;
+    /** When set, a transfer paused for low space evicts all but the newest older agent of its type.*/
+    private final boolean evictUnderPressure;
+    /** Further destination roots (say other local SSDs) the agents are striped across with the primary.*/
+    private final List<File> extraRoots;
+    /** When set (say to a disk backed path), the older retained versions are demoted here off the (memory) roots.*/
+    private final File coldFolder;
+    /** Memory headroom thresholds of the container cgroup (v2) for throttling / pausing the writes; null to ignore.*/
+    private final CgroupMemoryGate.Thresholds memoryThresholds;
+    /** Base uris of the peers (see {@link PeerServer}) tried before the CDN.*/
+    private final List<URI> peers;
+    /** Versions of an agent type retained (and reconciled to); unless an eviction policy is set.*/
+    private final int agentsOfAType;
+    /** Chooses the agents evicted once a newer one is published; null for the newest {@link #agentsOfAType}.*/
+    private final EvictionPolicy evictionPolicy;
+    /** The artifacts downloaded; the {@link Agents} or an external {@link Manifest}.*/
+    private final Catalog catalog;
+    /** When set, the tar agents are also extracted (while downloading) into a tree here; null to keep them as is.*/
+    private final File extractFolder;
+    /** Unreserved free space of a volume below which its transfers in flight pause.*/
+    private final Storage lowWaterMark;
+    /** Unreserved free space of a volume above which its paused transfers resume.*/
+    private final Storage highWaterMark;
+    private final BiFunction<URI, File, Callable<Either<Exception, Storage>>> callableMaker = (uri, destFile) -> () -> {
+        var fromPeer = peerCopy(uri, destFile);
+        if (fromPeer.isRight()) return fromPeer;
+        return isDeltaUpdates() ? deltaCopy(uri, destFile) : fullCopy(uri, destFile);
+    };
+    /** The destination files of the copies in flight already verified (by a delta sync or a peer fetch).*/
+    private final Set<File> verifiedCopies = ConcurrentHashMap.newKeySet();
+    /** The watchdogs of the copies in flight; by the destination file.*/
+    private final ConcurrentMap<File, Watchdog> watchdogs = new ConcurrentHashMap<>();
+    /** The extractors the full copies in flight tee into; by the destination file.*/
+    private final ConcurrentMap<File, TarExtractor> extractors = new ConcurrentHashMap<>();
     private final ConcurrentMap<URI, ReentrantLock> lockMap = new ConcurrentHashMap<>();
-    private static final ConcurrentMap<String, Storage> spaceMap = new ConcurrentHashMap<>();
     public static final String DEM_AGENT = "DEM-Agent";
     public static final String AV_AGENT = "App-Volumes-Agent";
     public static final String HZE_AGENT = "Horizon-Enterprise-Agent";
-    private final Map<String, Object> agentTypeLock = Map.of(HZE_AGENT, new Object(), AV_AGENT, new Object(), DEM_AGENT, new Object());
-    private final Set<String> agentTypes = agentTypeLock.keySet();
+    /** Guards only the short evict / publish step of an agent type; created on first use.*/
+    private final ConcurrentMap<String, ReentrantLock> agentTypeLock = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Semaphore> bulkheads = new ConcurrentHashMap<>();
+    /** The destination roots and memory gate (shared with the copies of this downloader); released on {@link #close()}.*/
+    private final AtomicReference<Resources> resources = new AtomicReference<>();
+    /** The permit of the download dispatched on this thread; whose latency is timed from its transfer.*/
+    private final ThreadLocal<AdaptiveLimit.Token> dispatched = new ThreadLocal<>();
+    /** Last modified time of the files verified for serving to the peers.*/
+    private final ConcurrentMap<File, Long> servableFiles = new ConcurrentHashMap<>();
 
     AgentDownloader(Duration timeOut, Storage minFreeSpace, AtomicReference<File> folder) {
+        this(timeOut, minFreeSpace, folder, false, false, DEFAULT_BULKHEAD_PERMITS, false, List.of(), null,
+                null, List.of(), DEFAULT_AGENTS_OF_A_TYPE, null, Catalog.AGENTS, null, null, null);
+    }
+
+    /**
+     * A downloader; see {@link #builder()} for the options left out (defaulted) when built
+     * @param timeOut of a transfer (excluding its pauses) and of the waits on the locks
+     * @param minFreeSpace kept free on a volume over the reservations
+     * @param destinationFolder the primary destination root
+     * @param bulkheadPermits {@link #getBulkheadPermits()}; {@value #DEFAULT_BULKHEAD_PERMITS} unless positive
+     * @param extraRoots {@link #getExtraRoots()}; none when null
+     * @param memoryThresholds {@link #getMemoryThresholds()}; no memory gate when null
+     * @param peers {@link #getPeers()}; none when null
+     * @param agentsOfAType {@link #getAgentsOfAType()}; {@value #DEFAULT_AGENTS_OF_A_TYPE} unless positive
+     * @param catalog {@link #getCatalog()}; the {@link Catalog#AGENTS} when null
+     * @param lowWaterMark {@link #getLowWaterMark()}; {@link #LOW_WATER_MARK} when null
+     * @param highWaterMark {@link #getHighWaterMark()}; {@link #HIGH_WATER_MARK} when null
+     */
+    @Builder(toBuilder = true)
+    AgentDownloader(@NonNull Duration timeOut, @NonNull Storage minFreeSpace, @NonNull AtomicReference<File> destinationFolder,
+                    boolean deltaUpdates, boolean compressAtRest, int bulkheadPermits, boolean evictUnderPressure,
+                    List<File> extraRoots, File coldFolder, CgroupMemoryGate.Thresholds memoryThresholds,
+                    List<URI> peers, int agentsOfAType, EvictionPolicy evictionPolicy,
+                    Catalog catalog, File extractFolder, Storage lowWaterMark, Storage highWaterMark) {
         this.timeOut=timeOut;
         this.minFreeSpace=minFreeSpace;
-        this.destinationFolder = (folder);
-        Schedulers.computation().schedulePeriodicallyDirect(
-                () -> Optional.ofNullable(getDestinationFolder())
-                        .map(AtomicReference::get).map(FileUtils::gatherDiskSpace)
-                        .ifPresentOrElse(spaceMap::putAll, () -> log.warn("Unable to get spacemap")),
-                0, 10, SECONDS);
+        this.destinationFolder = (destinationFolder);
+        this.deltaUpdates = deltaUpdates;
+        this.compressAtRest = compressAtRest;
+        this.bulkheadPermits = bulkheadPermits > 0 ? bulkheadPermits : DEFAULT_BULKHEAD_PERMITS;
+        this.evictUnderPressure = evictUnderPressure;
+        this.extraRoots = extraRoots == null ? List.of() : List.copyOf(extraRoots);
+        this.coldFolder = coldFolder;
+        this.memoryThresholds = memoryThresholds;
+        this.peers = peers == null ? List.of() : List.copyOf(peers);
+        this.agentsOfAType = agentsOfAType > 0 ? agentsOfAType : DEFAULT_AGENTS_OF_A_TYPE;
+        this.evictionPolicy = evictionPolicy;
+        this.catalog = catalog == null ? Catalog.AGENTS : catalog;
+        this.extractFolder = extractFolder;
+        this.lowWaterMark = lowWaterMark == null ? LOW_WATER_MARK : lowWaterMark;
+        this.highWaterMark = highWaterMark == null ? HIGH_WATER_MARK : highWaterMark;
+        var roots = new ArrayList<File>();
+        roots.add(destinationFolder.get());
+        roots.addAll(this.extraRoots);
+        this.resources.set(Try.of(() -> Resources.acquire(roots, coldFolder, memoryThresholds,
+                this.lowWaterMark, this.highWaterMark)).get());
+    }
+
+    /**
+     * A copy with another timeout; sharing the roots of this one and to be closed as well
+     * @param timeOut of a transfer and of the waits on the locks
+     * @return AgentDownloader
+     */
+    AgentDownloader withTimeOut(@NonNull final Duration timeOut) {
+        return toBuilder().timeOut(timeOut).build();
+    }
+
+    /**
+     * A copy onto another primary root; sharing the roots of this one when the same and to be closed as well
+     * @param destinationFolder the primary destination root
+     * @return AgentDownloader
+     */
+    AgentDownloader withDestinationFolder(@NonNull final AtomicReference<File> destinationFolder) {
+        return toBuilder().destinationFolder(destinationFolder).build();
+    }
+
+    /**
+     * A downloader onto the same roots following a plan; to be closed once done
+     * @param plan with the concurrency, minimum free space and versions retained
+     * @return AgentDownloader
+     */
+    AgentDownloader planned(@NonNull final DownloadPlanner.Plan plan) {
+        return toBuilder().minFreeSpace(plan.getMinFreeSpace()).bulkheadPermits(plan.getConcurrency())
+                .agentsOfAType(plan.getRetain()).build();
+    }
+
+    /** Releases the roots; the volume monitors, index and memory gate close once their last downloader is closed.*/
+    @Override
+    public void close() {
+        Optional.ofNullable(resources.getAndSet(null)).ifPresent(Resources::release);
+    }
+
+    private DestinationRoots roots() {
+        return Optional.ofNullable(resources.get()).map(Resources::getRoots)
+                .orElseThrow(() -> new IllegalStateException("Downloader for " + destinationFolder.get() + " is closed"));
     }
 
     String agentType(URI uri) {
-        return agentTypes.stream().filter(uri.getPath()::contains).findFirst().orElseThrow();
+        return catalog.of(uri).map(artifact -> artifact.getMetadata().getType())
+                .or(() -> Optional.ofNullable(StringUtils.substringBetween(uri.getPath(), "/packages/", "/")))
+                .orElseThrow();
+    }
+
+    ReentrantLock getAgentTypeLock(URI uri) {
+        return agentTypeLock.computeIfAbsent(agentType(uri), type -> new ReentrantLock(true));
+    }
+
+    /** A fair bulkhead per agent type; created on first use.*/
+    Semaphore getBulkhead(String agentType) {
+        return bulkheads.computeIfAbsent(agentType, type -> new Semaphore(bulkheadPermits, true));
+    }
+
+    /**
+     * Locates an agent on whichever destination root it is published; promoting it if found on the cold tier
+     * @param uri of the agent
+     * @return the agent file
+     */
+    Optional<File> locate(URI uri) {
+        return roots().locate(Reconciler.relativePath(catalog, uri)).map(file -> promoteOnAccess(uri, file)).map(this::touch);
+    }
+
+    /**
+     * A read only channel of a single entry of a published tar agent; without extracting the archive
+     * @param uri of the agent
+     * @param entry path of the entry in the archive
+     * @return SeekableByteChannel of the entry; to be closed
+     * @throws IOException when the agent is not published, is not a tar or has no such entry
+     */
+    SeekableByteChannel openEntry(@NonNull URI uri, @NonNull String entry) throws IOException {
+        var file = locate(uri).orElseThrow(() -> new NoSuchFileException(Reconciler.relativePath(catalog, uri), null,
+                "Not published"));
+        return TarIndex.of(file).open(entry);
+    }
+
+    /**
+     * The extracted tree of a tar agent; extracting the published agent first if it was not extracted while downloaded
+     * @param uri of the agent
+     * @return the directory of the tree
+     * @throws IOException when the agent is not published or it cannot be extracted
+     */
+    Path extracted(@NonNull URI uri) throws IOException {
+        if (extractFolder == null) throw new IllegalStateException("No extract folder set");
+        var payload = artifact(uri);
+        var tree = extractedTree(payload.getMetadata().getRelativePath());
+        if (Files.isDirectory(tree)) return tree;
+        var file = locate(uri).orElseThrow(() -> new NoSuchFileException(Reconciler.relativePath(catalog, uri), null,
+                "Not published"));
+        var lockOnUri = lockMap.computeIfAbsent(uri, k -> new ReentrantLock());
+        lockOnUri.lock();
+        try (var extractor = Files.isDirectory(tree) ? null : TarExtractor.of(file, extractFolder.toPath())) {
+            return extractor == null ? tree : extractor.publish(payload.getCheckSum(), tree);
+        } finally {
+            lockOnUri.unlock();
+        }
+    }
+
+    /**
+     * The verified agent to be served to a peer; verified once per version of its file
+     * @param relativePath path of the agent uri
+     * @return the agent file with its checksum
+     */
+    Optional<PeerServer.Artifact> servable(String relativePath) {
+        return catalog.ofPath(relativePath)
+                .flatMap(agent -> roots().locate(relativePath)
+                        .filter(file -> Objects.equals(servableFiles.get(file), file.lastModified()) ||
+                                agent.verify(file).peek(ok -> servableFiles.put(file, file.lastModified())).isRight())
+                        .map(file -> new PeerServer.Artifact(touch(file), agent.getCheckSum())));
+    }
+
+    private File touch(File file) {
+        roots().touch(file);
+        return file;
+    }
+
+    /** Promotes a cold file to the hot tier; the cold file is still served if that fails.*/
+    private File promoteOnAccess(URI uri, File file) {
+        if (!roots().isCold(file)) return file;
+        var promoted = new AtomicReference<>(file);
+        Try.run(() -> underTypeLock(uri, () -> promoted.set(roots().promote(file))))
+                .onFailure(e -> log.warn("Serving {} from the cold tier; promotion failed:{}", file, e.getMessage()));
+        return promoted.get();
+    }
+
+    /** Demotes (in the background) all but the newest hot version of the agent type onto the cold tier.*/
+    private void demoteOlderAgents(URI uri) {
+        if (roots().getCold().isEmpty()) return;
+        var agentType = agentType(uri);
+        roots().olderThanNewest(agentType, file -> !roots().isCold(file), 1)
+                .forEach(file -> Schedulers.io().scheduleDirect(() ->
+                        Try.run(() -> underTypeLock(uri, () -> roots().demote(file)))
+                                .andThen(() -> TarIndex.evict(file))
+                                .onFailure(e -> log.warn("Unable to demote {}:{}", file, e.getMessage()))));
+    }
+
+    private void createRoots() {
+        log.info("Running to store at:{}", roots().all());
+        for (var stripe : roots().all()) {
+            if (!stripe.getRoot().exists()) {
+                boolean created = stripe.getRoot().mkdirs();
+                log.info("volumeMount {} created:{}", stripe.getRoot(), created);
+            }
+        }
     }
 
-    Object getAgentTypeLock(URI uri) {
-        return agentTypeLock.get(agentType(uri));
+    /**
+     * Reconcile the destination roots with the newest {@link #getAgentsOfAType()} versions of each agent type of
+     * the manifest; doing only the work the {@link Reconciler.Plan plan} calls for.
+     * @param dryRun when set, only the plan is computed (and logged)
+     * @param uris of the manifest
+     * @return the plan
+     */
+    Reconciler.Plan reconcile(boolean dryRun, @NonNull URI... uris) {
+        createRoots();
+        roots().reindex();
+        var plan = new Reconciler(agentsOfAType, catalog).plan(uris,
+                Reconciler.observe(roots().all().stream().map(DestinationRoots.Stripe::getRoot).toList(),
+                        roots().listFiles(file -> true, Comparator.naturalOrder(), 0)),
+                getAvailableSpace(), getMinFreeSpace());
+        log.info("{}econcile plan:{}", dryRun ? "Dry run r" : "R", plan);
+        if (dryRun || plan.isSteady()) return plan;
+
+        plan.getBeforeDownloads().parallelStream().forEach(this::delete);
+        dispatch(plan.getSteps(), step -> Try.of(() -> switch (step.getAction()) {
+                    case VERIFY -> {
+                        if (step.getAgent().verify(step.getFile()).isRight()) {
+                            Reconciler.cacheChecksum(roots().stripeOf(step.getFile()).getRoot(), step.getFile(),
+                                    step.getAgent().getCheckSum());
+                            yield Storage.ZERO;
+                        }
+                        delete(step);
+                        yield download(step.getAgent());
+                    }
+                    case DOWNLOAD -> download(step.getAgent());
+                    default -> Storage.ZERO;
+                })
+                .onFailure(e -> log.error("Error reconciling {}:{}", step, e.getMessage())));
+        plan.getAfterDownloads().parallelStream().forEach(this::delete);
+        return plan;
+    }
+
+    private Storage download(Artifact agent) {
+        var transferred = downloadAgent(agent.getUri(), false);
+        roots().locate(agent.getMetadata().getRelativePath())
+                .ifPresent(file -> Reconciler.cacheChecksum(roots().stripeOf(file).getRoot(), file, agent.getCheckSum()));
+        return transferred;
+    }
+
+    /**
+     * Runs the tasks with as many of them together as the {@link AdaptiveLimit} (learnt on the primary root) allows;
+     * a task failing or taking longer per byte cuts the limit whereas a rising throughput raises it.
+     * @param work items
+     * @param task returning the bytes transferred (zero when nothing was) or the failure
+     */
+    private <T> void dispatch(List<T> work, Function<T, Try<Storage>> task) {
+        if (work.isEmpty()) return;
+        var limit = AdaptiveLimit.load(roots().primary(), 1, AdaptiveLimit.DEFAULT_MAX);
+        var pool = Executors.newCachedThreadPool();
+        var futures = new ArrayList<Future<?>>();
+        try {
+            for (T item : work) {
+                var token = limit.acquire();
+                futures.add(pool.submit(() -> {
+                    dispatched.set(token);
+                    try {
+                        return task.apply(item)
+                                .onSuccess(bytes -> token.onSuccess(bytes.getBytes()))
+                                .onFailure(e -> token.onDropped());
+                    } finally {
+                        dispatched.remove();
+                    }
+                }));
+            }
+            for (var future : futures) Try.run(future::get);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            futures.forEach(future -> future.cancel(true));
+        } finally {
+            pool.shutdownNow();
+            limit.save(roots().primary());
+            log.info("Download limit learnt:{}", limit.getLimit());
+        }
+    }
+
+    private void delete(Reconciler.Step step) {
+        if (step.getFile().delete() || !step.getFile().exists()) {
+            removed(step.getFile());
+            log.info("Deleted {} ({})", step.getFile(), step.getReason());
+        } else {
+            log.warn("Unable to delete {}", step.getFile());
+        }
     }
 
     @SneakyThrows
     void doCopy(boolean isParallel, @NonNull URI... uris) {
-        log.info("Running to store at:{}", destinationFolder.get());
-        if (!destinationFolder.get().exists()) {
-            boolean created = destinationFolder.get().mkdirs();
-            log.info("volumeMount created:{}", created);
+        createRoots();
+        var journal = WorkJournal.open(roots().primary());
+        var work = uris;
+        var cleanups = new ArrayList<CompletableFuture<AsyncCleanup.Report>>();
+        if (journal.isResumable(uris)) {
+            work = journal.unfinished();
+            log.info("Resuming an interrupted batch with {} of {} URIs unfinished", work.length, uris.length);
+        } else {
+            // renamed aside at once and deleted in the background; the volume is sampled again as space is freed
+            roots().all().forEach(stripe -> cleanups.add(AsyncCleanup.cleanup(stripe.getRoot(),
+                    freed -> stripe.getVolume().sample())));
+            journal.plan(uris);
         }
-        FileUtils.cleanupDirectory(destinationFolder.get());//"/agent/hcs-agents-stable");
+        roots().reindex();
 
-        Function<URI, String> uriToFile = uri -> Try.of(() -> uri.toURL().getFile()).get();
-        Consumer<URI> runner = uri -> Try.run(() -> downloadAgent(uri))
-                .onFailure(e -> log.error("Error downloading {}:{}", uriToFile.apply(uri), e.getMessage()));
-        var stream = isParallel ? Arrays.stream(uris).parallel() : Arrays.stream(uris);
-        stream.forEach(runner);
+        Function<URI, Try<Storage>> runner = uri -> Try.of(() -> {
+                    journal.record(uri, WorkJournal.State.DOWNLOADING);
+                    return downloadAgent(uri, true);
+                })
+                .onSuccess(ignore -> journal.record(uri, WorkJournal.State.VERIFIED))
+                .onFailure(e -> {
+                    journal.record(uri, WorkJournal.State.FAILED);
+                    log.error("Error downloading {}:{}", Reconciler.relativePath(catalog, uri), e.getMessage());
+                });
+        if (isParallel) {
+            dispatch(Arrays.asList(work), runner);
+        } else {
+            Arrays.stream(work).forEach(runner::apply);
+        }
+        journal.finish();
+        cleanups.forEach(cleanup -> Try.of(cleanup::join)
+                .onFailure(e -> log.warn("Cleanup did not complete:{}", e.getMessage())));
     }
 
+    /**
+     * Downloads an agent unless present and verified; evicting (as the {@link #getEvictionPolicy() policy} chooses)
+     * once it is verified and published if so asked.
+     * @return the bytes transferred; zero when it was not downloaded
+     */
     @SneakyThrows
-    private void downloadAgent(URI uri) {
-        var destFile = new File(destinationFolder.get(), uri.toURL().getFile());
-        var agentType = agentType(uri);
-        var typeLock = getAgentTypeLock(uri);
-        log.debug("Waiting to acquire lock for URI:{}",
+    private Storage downloadAgent(URI uri, boolean evict) {
+        var payload = artifact(uri);
+        var relativePath = payload.getMetadata().getRelativePath();
+        var agentType = payload.getMetadata().getType();
+        var bulkhead = getBulkhead(agentType);
+        log.debug("Waiting for a {} bulkhead permit for URI:{}", agentType,
                 StringUtils.substringAfter(uri.getPath(), "-Agent"));
 
-        synchronized (typeLock) {
-            var payload = Agents.getUriToAgentsMap().get(uri);
-            if (payload.checkFile(destinationFolder.get()).isRight()) {
-                log.info("No need to download this file:{}", destFile);
-                return;
+        try {
+            if (!bulkhead.tryAcquire(timeOut.toMillis(), MILLISECONDS)) {
+                throw new IllegalStateException("No " + agentType + " bulkhead permit within " + timeOut + " for " + uri);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on the bulkhead for " + uri, ie);
+        }
+        var downloadLockOnUri = lockMap.computeIfAbsent(uri, k -> new ReentrantLock());
+        try {
+            var located = roots().locate(relativePath);
+            if (located.isPresent() && payload.verify(located.get()).isRight()) {
+                log.info("No need to download this file:{}", touch(promoteOnAccess(uri, located.get())));
+                return Storage.ZERO;
             }
 
-            var downloadLockOnUri = lockMap.computeIfAbsent(uri, k -> new ReentrantLock());
-            try {
-                int counter = 0;
-                while (!downloadLockOnUri.tryLock(150, SECONDS) && counter++ < 3) {
-                    log.warn("{}:Trying to acquire lock on {}...", counter, uri);
-                }
-                if (!downloadLockOnUri.isLocked()) {
-                    throw new IllegalStateException("Unable to get Download URI lock for " + uri.getFragment());
-                }
+            int counter = 0;
+            while (!downloadLockOnUri.tryLock(150, SECONDS) && counter++ < 3) {
+                log.warn("{}:Trying to acquire lock on {}...", counter, uri);
+            }
+            if (!downloadLockOnUri.isHeldByCurrentThread()) {
+                throw new IllegalStateException("Unable to get Download URI lock for " + uri.getFragment());
+            }
 
-                var agentFilesToBeRemoved = listFiles(destinationFolder.get(),
-                        file -> StringUtils.containsIgnoreCase(file.getAbsolutePath(), agentType),
-                        Comparator.comparing(File::lastModified).reversed(),
-                        maxAgentsOfAType - 1); // please note beyond maximum hz agents-1 all agents list up
-                var count = agentFilesToBeRemoved.stream()
-                        .filter(File::exists)
-                        .map(File::delete)
-                        .map(BooleanUtils::toInteger)
-                        .reduce(0, Integer::sum);
-
-                if (count > 0)
-                    log.info("All old agent files deleted:{}; Files:{}", count, agentFilesToBeRemoved);
-
-                while (spaceMap.isEmpty()) {
-                    log.info("Sleeping as spaceMap is empty");
-                    SECONDS.sleep(5);
+            // only one process (pod) sharing the volume downloads it; the others wait and then verify it once
+            try (var lease = ArtifactLease.acquire(new File(roots().primary(), relativePath), timeOut)) {
+                var published = roots().discover(relativePath);
+                if (published.isPresent() && payload.verify(published.get()).isRight()) {
+                    log.info("Published meanwhile by another process:{}", published.get());
+                    return Storage.ZERO;
                 }
 
-                if (getAvailableSpace().isGreaterThanOrEqualTo(getMinFreeSpace())) {
+                var stripe = roots().place(relativePath, payload.getFileSize());
+                var destFile = new File(stripe.getRoot(), relativePath);
+                var partFile = partFile(destFile);
+                var size = payload.getFileSize().getBytes();
+                try (var reservation = stripe.getVolume().getLedger()
+                        .reserve(B.toStorage(extracts(destFile) ? 2 * size : size), getMinFreeSpace(), partFile, timeOut);
+                     var extractor = extracting(destFile)) {
+                    if (extractor != null) extractors.put(destFile, extractor);
                     var start = System.currentTimeMillis();
-                    var trier = toCheckedBiFunction(this::doAgentCopy).tryWrap(uri, start).onFailure(t ->
+                    var trier = toCheckedBiFunction(this::doAgentCopy).tryWrap(uri, destFile).onFailure(t ->
                             log.error("Time spent:{} ms. Blocking Get Error encountered:{}",
                                     (System.currentTimeMillis() - start), t.getMessage()));
                     var result = trier.getOrElseThrow(Function.identity());
-                    if (result.isRight() && result.get().isGreaterThan(Storage.ZERO)) {
+                    if (result.isRight() && partFile.exists()) {
                         log.debug("File copied length: {}", result.get());
+                        // the tree is still to be extracted unless it was teed off the copy
+                        reservation.adjust(B.toStorage(partFile.length()
+                                + (extractor != null && !extractor.isWhole(size) ? size : 0L)));
+                        var verified = verifiedCopies.contains(destFile) ? Either.<Exception, Storage>right(Storage.ZERO)
+                                : verify(payload, partFile, extractor);
+                        if (verified.isLeft()) throw verified.getLeft();
+                        underTypeLock(uri, () -> {
+                            publish(partFile, destFile);
+                            if (evict) evict(destFile);
+                        });
+                        if (extractor != null) publishExtracted(payload, destFile, extractor);
+                        demoteOlderAgents(uri);
+                        return result.get();
                     } else if (result.isLeft()) {
                         throw result.getLeft();
                     }
-                } else throw new IllegalStateException("No space left on device!!! to write " +
-                        uri.getPath() + " Available:" + spaceMap.get("Available") +
-                        " Used:" + spaceMap.get("Used"));
-            } catch (InterruptedException ie) {
-                Thread.currentThread().interrupt();
-                throw new IOException("Interrupted while locking for " + uri, ie);
-            } finally {
-                try {
-                    if (downloadLockOnUri.isHeldByCurrentThread())
-                        downloadLockOnUri.unlock();
-                } catch (IllegalMonitorStateException ignore) {
+                } finally {
+                    extractors.remove(destFile);
+                    verifiedCopies.remove(destFile);
+                    Files.deleteIfExists(partFile.toPath());
+                    stripe.done();
                 }
             }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while locking for " + uri, ie);
+        } finally {
+            try {
+                if (downloadLockOnUri.isHeldByCurrentThread())
+                    downloadLockOnUri.unlock();
+            } catch (IllegalMonitorStateException ignore) {
+            }
+            bulkhead.release();
+        }
+        return Storage.ZERO;
+    }
+
+    /** Runs the (short) evict / publish step mutually exclusive to other downloads of the same agent type.*/
+    private void underTypeLock(URI uri, CheckedRunnable step) throws Throwable {
+        var typeLock = getAgentTypeLock(uri);
+        if (!typeLock.tryLock(timeOut.toMillis(), MILLISECONDS)) {
+            throw new IllegalStateException("Unable to get the " + agentType(uri) + " lock within " + timeOut);
+        }
+        try {
+            step.run();
+        } finally {
+            typeLock.unlock();
+        }
+    }
+
+    private void evictOldAgents(String agentType, int retain) {
+        var agentFilesToBeRemoved = roots().olderThanNewest(agentType, file -> true,
+                retain); // please note beyond the newest retained agents all agents list up
+        var count = agentFilesToBeRemoved.stream()
+                .filter(File::exists)
+                .map(file -> {
+                    var deleted = file.delete();
+                    if (deleted) removed(file);
+                    return deleted;
+                })
+                .map(BooleanUtils::toInteger)
+                .reduce(0, Integer::sum);
+
+        if (count > 0)
+            log.info("All old agent files deleted:{}; Files:{}", count, agentFilesToBeRemoved);
+    }
+
+    /** Evicts the agents the policy chooses; never the one just published.*/
+    private void evict(File published) {
+        var policy = Optional.ofNullable(evictionPolicy).orElseGet(() -> EvictionPolicy.newest(agentsOfAType));
+        var victims = policy.victims(roots().candidates(), published).stream()
+                .filter(victim -> !victim.getFile().equals(published))
+                .filter(victim -> victim.getFile().delete() || !victim.getFile().exists())
+                .peek(victim -> removed(victim.getFile()))
+                .toList();
+        if (!victims.isEmpty()) {
+            log.info("Evicted {} agents freeing {} after publishing {}:{}", victims.size(),
+                    B.toStorage(victims.stream().mapToLong(victim -> victim.getSize().getBytes()).sum()), published,
+                    victims.stream().map(EvictionPolicy.Candidate::getFile).toList());
+        }
+    }
+
+    /** Drops an agent deleted from the roots; with its index and extracted tree if any.*/
+    private void removed(File file) {
+        roots().removed(file);
+        TarIndex.evict(file);
+        if (extractFolder == null) return;
+        Try.of(() -> roots().stripeOf(file).getRoot().toPath().relativize(file.toPath()).toString())
+                .andThenTry(relative -> TarExtractor.delete(extractedTree(relative)))
+                .onFailure(e -> log.warn("Unable to delete the tree extracted from {}:{}", file, e.getMessage()));
+    }
+
+    /** Is the agent to be extracted; a tar agent when an extract folder is set (and so taking about twice its size).*/
+    private boolean extracts(File destFile) {
+        return extractFolder != null && destFile.getName().endsWith(TarIndex.SUFFIX);
+    }
+
+    /** An extractor the full copy to a destination file tees into; null unless a tar agent is to be extracted.*/
+    private TarExtractor extracting(File destFile) throws IOException {
+        return extracts(destFile) ? new TarExtractor(extractFolder.toPath(), destFile.getName()) : null;
+    }
+
+    /** Where the tree of an agent is extracted to; by its relative path less the tar suffix.*/
+    private Path extractedTree(String relativePath) {
+        return extractFolder.toPath().resolve(StringUtils.removeEnd(StringUtils.removeStart(relativePath, "/"),
+                TarIndex.SUFFIX));
+    }
+
+    /**
+     * Verifies a copy; by the digest of its bytes taken while teed into the extractor if the whole of it was, else
+     * reading it once more
+     */
+    private static Either<Exception, Storage> verify(Artifact payload, File partFile, TarExtractor extractor) {
+        if (extractor == null || !extractor.isWhole(payload.getFileSize().getBytes())) return payload.verify(partFile);
+        return payload.getCheckSum().equalsIgnoreCase(extractor.hexDigest()) ? Either.right(Storage.ZERO)
+                : Either.left(new IllegalStateException("Checksum did not match for " + partFile));
+    }
+
+    /**
+     * Publishes the tree extracted while downloading; or extracts the published agent when it came otherwise (from
+     * a peer or as a delta). The agent stays published if its tree cannot be extracted.
+     */
+    private void publishExtracted(Artifact payload, File destFile, TarExtractor extractor) {
+        var tree = extractedTree(payload.getMetadata().getRelativePath());
+        Try.of(() -> {
+                    if (extractor.isWhole(payload.getFileSize().getBytes())) {
+                        return extractor.publish(payload.getCheckSum(), tree);
+                    }
+                    try (var fromFile = TarExtractor.of(destFile, extractFolder.toPath())) {
+                        return fromFile.publish(payload.getCheckSum(), tree);
+                    }
+                })
+                .onFailure(e -> log.warn("Unable to extract {} to {}:{}", destFile, tree, e.getMessage()));
+    }
+
+    private void publish(File partFile, File destFile) throws IOException {
+        Files.move(partFile.toPath(), destFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        roots().published(destFile);
+        log.info("Published {}", destFile);
+        if (destFile.getName().endsWith(TarIndex.SUFFIX)) {
+            Schedulers.io().scheduleDirect(() -> Try.of(() -> TarIndex.of(destFile))
+                    .onSuccess(index -> log.debug("Indexed {} entries of {}", index.entries().size(), destFile))
+                    .onFailure(e -> log.warn("Unable to index the entries of {}:{}", destFile, e.getMessage())));
         }
     }
 
+    /**
+     * The gate of a transfer: the container memory gate (if any) and the low space gate of its stripe; which
+     * evicts older agents of its type when paused for space if so configured. Its pauses are reported to the
+     * watchdog of the copy if any.
+     */
+    private TransferGate gateFor(URI uri, File destFile) {
+        var stripe = Try.of(() -> roots().stripeOf(destFile)).getOrNull();
+        var memory = Optional.ofNullable(resources.get()).map(Resources::getMemoryGate)
+                .<TransferGate>map(TransferGate.class::cast).orElse(TransferGate.OPEN);
+        var watchdog = Optional.ofNullable(watchdogs.get(destFile));
+        return new TransferGate() {
+            @Override
+            public Duration awaitOpen(Duration maxPause) throws InterruptedException, TimeoutException {
+                return awaitOpen(maxPause, 0L);
+            }
+
+            @Override
+            public Duration awaitOpen(Duration maxPause, long bytes) throws InterruptedException, TimeoutException {
+                watchdog.ifPresent(Watchdog::entered);
+                var paused = Duration.ZERO;
+                try {
+                    paused = memory.awaitOpen(maxPause, bytes);
+                    if (stripe == null) return paused;
+                    var gate = stripe.getGate();
+                    if (!gate.isOpen() && isEvictUnderPressure()) {
+                        Try.run(() -> underTypeLock(uri, () -> evictOldAgents(agentType(uri), 1)))
+                                .onSuccess(ignore -> stripe.getVolume().sample())
+                                .onFailure(e -> log.warn("Unable to evict under low space for {}:{}", uri, e.getMessage()));
+                    }
+                    paused = paused.plus(gate.awaitOpen(maxPause, bytes));
+                    return paused;
+                } finally {
+                    final Duration reported = paused;
+                    watchdog.ifPresent(dog -> dog.left(reported));
+                }
+            }
+        };
+    }
+
+    private Artifact artifact(URI uri) {
+        return catalog.of(uri).orElseThrow(() -> new IllegalArgumentException("Not an artifact of " + catalog + ":" + uri));
+    }
+
+    private static File partFile(File destFile) {
+        return new File(destFile.getParentFile(), destFile.getName() + FileUtils.PART_SUFFIX);
+    }
+
+    /** Free space across the distinct volumes of the destination roots.*/
     Storage getAvailableSpace() {
-        return spaceMap.getOrDefault("Available", Storage.ZERO);
+        return roots().sumOfVolumes(volume -> volume.latest().getOrDefault(VolumeMonitor.AVAILABLE, Storage.ZERO));
     }
 
+    /** Used space across the distinct volumes of the destination roots.*/
     Storage getUsedSpace() {
-        return spaceMap.getOrDefault("Used", Storage.ZERO);
+        return roots().sumOfVolumes(volume -> volume.latest().getOrDefault(VolumeMonitor.USED, Storage.ZERO));
+    }
+
+    /** Space reserved by the downloads in flight but not yet written.*/
+    Storage getReservedSpace() {
+        return roots().sumOfVolumes(volume -> volume.getLedger().getReserved());
+    }
+
+    /** Uncompressed size of all the files under the destination roots.*/
+    Storage getLogicalSpace() {
+        return usage(CompressedStore.LOGICAL);
+    }
+
+    /** Size the files under the destination roots actually take on the volumes.*/
+    Storage getPhysicalSpace() {
+        return usage(CompressedStore.PHYSICAL);
     }
 
-    private Either<Exception, Storage> doAgentCopy(URI uri, long start) throws MalformedURLException {
-        var destFile = new File(destinationFolder.get(), uri.toURL().getFile());
+    private Storage usage(String key) {
+        return B.toStorage(roots().all().stream()
+                .mapToLong(stripe -> CompressedStore.usage(stripe.getRoot()).getOrDefault(key, Storage.ZERO).getBytes())
+                .sum());
+    }
+
+    /** Fetches from the first peer holding the agent; a left when there are no peers or none holds it.*/
+    private Either<Exception, Storage> peerCopy(URI uri, File destFile) {
+        if (peers.isEmpty()) return Either.left(new NoSuchElementException("No peers"));
+        var payload = artifact(uri);
+        var result = PeerServer.fetch(peers, payload.getMetadata().getRelativePath(), payload.getCheckSum(),
+                partFile(destFile), getTimeOut(), isCompressAtRest(), gateFor(uri, destFile));
+        if (result.isRight()) verifiedCopies.add(destFile); // by the fetch against the checksum
+        return result;
+    }
+
+    private Either<Exception, Storage> fullCopy(URI uri, File destFile) throws MalformedURLException {
+        return FileUtils.copy(uri.toURL(), partFile(destFile),
+                KB.toStorage(8), getTimeOut(), isCompressAtRest(), gateFor(uri, destFile), extractors.get(destFile));
+    }
+
+    /** Assembles from the latest local file of the same agent type; falls back to a full copy otherwise.*/
+    private Either<Exception, Storage> deltaCopy(URI uri, File destFile) throws MalformedURLException {
+        var previous = previousVersion(uri, destFile);
+        if (previous.isEmpty()) return fullCopy(uri, destFile);
+
+        var payload = artifact(uri);
+        var result = new DeltaSync(getTimeOut(), isCompressAtRest())
+                .sync(uri.toURL(), previous.get(), partFile(destFile), payload.getFileSize(), payload.getCheckSum(),
+                        gateFor(uri, destFile));
+        if (result.isRight()) {
+            verifiedCopies.add(destFile); // against the checksum as it was assembled
+            return result;
+        }
+        log.warn("Delta update of {} failed; falling back to full copy:{}", destFile, result.getLeft().getMessage());
+        return fullCopy(uri, destFile);
+    }
+
+    private Optional<File> previousVersion(URI uri, File destFile) {
+        return roots().olderThanNewest(agentType(uri), file -> !file.equals(destFile), 0).stream().findFirst();
+    }
+
+    private Either<Exception, Storage> doAgentCopy(URI uri, File destFile) {
+        var start = System.currentTimeMillis();
         if (destFile.exists()) {
-            return Agents.getUriToAgentsMap().get(uri).checkFile(destinationFolder.get());
+            return artifact(uri).verify(destFile);
         }
         log.debug("Lock obtained for {}!", destFile);
+        Optional.ofNullable(dispatched.get()).ifPresent(AdaptiveLimit.Token::started); // past the bulkhead, lease and reservation
 
-        var callable = callableMaker.apply(uri);
+        // the copy times itself out excluding the pauses it reports; and so does its watchdog, allowing for a full
+        // copy after a failed peer or delta one
+        var watchdog = new Watchdog();
+        watchdogs.put(destFile, watchdog);
+        var budget = 2 * timeOut.toNanos() + MILLISECONDS.toNanos(100L);
+        var expired = Observable.interval(Watchdog.PERIOD.toMillis(), MILLISECONDS, Schedulers.computation())
+                .filter(tick -> watchdog.unpaused() > budget)
+                .firstOrError()
+                .flatMap(tick -> Single.<Either<Exception, Storage>>error(new TimeoutException(
+                        "Copy to " + destFile + " ran beyond " + timeOut.multipliedBy(2) + " besides its pauses")));
+        var callable = callableMaker.apply(uri, destFile);
         var single = Single.fromCallable(callable).subscribeOn(Schedulers.io())
-                .timeout(timeOut.toMillis() + 100L, MILLISECONDS, Schedulers.computation())
+                .ambWith(expired)
                 .doOnEvent((result, error) -> {
                     if (error != null) log.error("Outer Error encountered:{}", error.getMessage(), error);
                     else if (result.isLeft()) log.error("Inner Error encountered:{}", result.getLeft().getMessage());
                     else log.info("Copied {} in {} (ms) and bytes written={}", destFile,
                                 (System.currentTimeMillis() - start), result.get());
                 });
-        return single.blockingGet();
+        try {
+            return single.blockingGet();
+        } finally {
+            watchdogs.remove(destFile);
+        }
+    }
+
+    /** Times a copy on what it spent out of its gates; the pauses are not timed whether ongoing or reported.*/
+    private static final class Watchdog {
+        /** How often the watchdog looks at the copy.*/
+        static final Duration PERIOD = Duration.ofMillis(100);
+        private final long start = System.nanoTime();
+        private final AtomicLong paused = new AtomicLong();
+        /** When the copy entered its gate; 0 when out of it.*/
+        private final AtomicLong gated = new AtomicLong();
+
+        void entered() {
+            gated.set(System.nanoTime());
+        }
+
+        void left(Duration reported) {
+            paused.addAndGet(reported.toNanos());
+            gated.set(0L);
+        }
+
+        /** Nanos elapsed less the pauses.*/
+        long unpaused() {
+            final long since = gated.get();
+            final long now = System.nanoTime();
+            return now - start - paused.get() - (since == 0L ? 0L : now - since);
+        }
+    }
+
+    /**
+     * The destination roots (with their volume monitors and index) and the memory gate of a downloader; shared by
+     * reference count between the downloaders (say the copies of one) of the same roots and closed by the last release.
+     */
+    private static final class Resources {
+        private static final Map<List<Object>, Resources> shared = new HashMap<>();
+        private final List<Object> key;
+        @Getter
+        private final DestinationRoots roots;
+        @Getter
+        private final CgroupMemoryGate memoryGate;
+        private int references;
+
+        private Resources(List<Object> key, DestinationRoots roots, CgroupMemoryGate memoryGate) {
+            this.key = key;
+            this.roots = roots;
+            this.memoryGate = memoryGate;
+        }
+
+        /** Acquire (a reference to) the resources of the roots; opened on the first acquisition.*/
+        static Resources acquire(List<File> roots, File coldFolder, CgroupMemoryGate.Thresholds thresholds,
+                                 Storage lowWaterMark, Storage highWaterMark) throws IOException {
+            final List<Object> key = Arrays.asList(List.copyOf(roots), coldFolder, thresholds,
+                    lowWaterMark.getBytes(), highWaterMark.getBytes());
+            synchronized (Resources.class) {
+                Resources resources = shared.get(key);
+                if (resources == null) {
+                    resources = new Resources(key, new DestinationRoots(roots, coldFolder, lowWaterMark, highWaterMark),
+                            Optional.ofNullable(thresholds)
+                                    .flatMap(t -> CgroupMemoryGate.open(CgroupMemoryGate.DEFAULT_CGROUP, t)).orElse(null));
+                    shared.put(key, resources);
+                }
+                resources.references++;
+                return resources;
+            }
+        }
+
+        /** Release a reference; the last release closes them.*/
+        void release() {
+            synchronized (Resources.class) {
+                if (references > 0 && --references == 0) {
+                    shared.remove(key);
+                    Optional.ofNullable(memoryGate).ifPresent(CgroupMemoryGate::close);
+                    roots.close();
+                }
+            }
+        }
+
+        /** Number of the downloaders holding them.*/
+        int getReferences() {
+            synchronized (Resources.class) {
+                return references;
+            }
+        }
     }
 }
@@ -0,0 +1,45 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+import lombok.Value;
+import org.apache.commons.lang3.StringUtils;
+
+import java.net.URI;
+import java.util.Comparator;
+
+/**
+ * The static facts of an agent parsed once from its uri ({@code .../packages/<type>/<version>/<build>/<file>}); so
+ * that the hot paths do not search the type in the path or recompute the destination path on every call.
+ */
+@Value
+class AgentMetadata {
+    /** Highest version first; the highest build breaking a tie.*/
+    static final Comparator<AgentMetadata> NEWEST_VERSION = Comparator.comparing(AgentMetadata::getVersion,
+            Reconciler::compareVersions).thenComparing(AgentMetadata::getBuild, Reconciler::compareVersions).reversed();
+
+    /** Agent type; the folder under the packages folder (say {@value AgentDownloader#HZE_AGENT}).*/
+    String type;
+    /** Semantic version (say 8.12.0).*/
+    String version;
+    /** Build number.*/
+    String build;
+    /** Path of the uri; which is also the path of the agent under a destination root.*/
+    String relativePath;
+    /** Size of the agent.*/
+    Storage fileSize;
+
+    /**
+     * Parse the metadata of an agent uri
+     * @param uri of the agent
+     * @param fileSize of the agent
+     * @return AgentMetadata
+     */
+    static AgentMetadata parse(@NonNull final URI uri, @NonNull final Storage fileSize) {
+        final String relativePath = uri.getRawPath();
+        final String[] segments = StringUtils.split(StringUtils.substringAfter(relativePath, "/packages/"), '/');
+        if (segments.length < 4) {
+            throw new IllegalArgumentException("Not a <type>/<version>/<build>/<file> agent uri:" + uri);
+        }
+        return new AgentMetadata(segments[0], segments[1], segments[2], relativePath, fileSize);
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Deterministic partitioning of the agent uris across the completions of a kubernetes Indexed Job; so that a large
+ * manifest is spread over the pods rather than fetched by each one of them.
+ * <p>The uris are placed largest first (by {@link Agents#getFileSize()}) onto the least loaded shard
+ * (longest processing time first); with the ties broken on the uri and the shard index so that every completion
+ * arrives at the same plan independently.
+ */
+@Slf4j
+final class AgentShards {
+    /** Index of the completion as set by kubernetes on the pods of an Indexed Job.*/
+    static final String COMPLETION_INDEX = "JOB_COMPLETION_INDEX";
+    /** Number of completions; kubernetes does not expose it, so the job passes its {@code spec.completions}.*/
+    static final String COMPLETIONS = "JOB_COMPLETIONS";
+
+    private AgentShards() {
+    }
+
+    /**
+     * Partition the uris into shards of about the same size
+     * @param uris to be partitioned
+     * @param size of the agent at a uri; 0 when unknown
+     * @param count of the shards
+     * @return list of count shards; each with its uris in the order given
+     */
+    static List<List<URI>> partition(@NonNull final List<URI> uris, @NonNull final ToLongFunction<URI> size,
+                                     final int count) {
+        if (count < 1) throw new IllegalArgumentException("Shard count must be positive:" + count);
+        final List<URI> largestFirst = uris.stream().distinct()
+                .sorted(Comparator.comparingLong(size).reversed().thenComparing(URI::toString))
+                .toList();
+        final long[] loads = new long[count];
+        final Map<URI, Integer> shardOf = new HashMap<>();
+        for (URI uri : largestFirst) {
+            int least = 0;
+            for (int shard = 1; shard < count; shard++) {
+                if (loads[shard] < loads[least]) least = shard;
+            }
+            loads[least] += size.applyAsLong(uri);
+            shardOf.put(uri, least);
+        }
+        final List<List<URI>> shards = new ArrayList<>(count);
+        for (int shard = 0; shard < count; shard++) shards.add(new ArrayList<>());
+        uris.stream().distinct().forEach(uri -> shards.get(shardOf.get(uri)).add(uri));
+        log.debug("Shard loads:{}", Arrays.toString(loads));
+        return shards;
+    }
+
+    /**
+     * The uris of an agent manifest to be downloaded by a completion
+     * @param uris of the manifest
+     * @param index of the completion
+     * @param count of the completions
+     * @return the shard of the completion
+     */
+    static URI[] shardOf(@NonNull final URI[] uris, final int index, final int count) {
+        return shardOf(uris, index, count, Catalog.AGENTS);
+    }
+
+    /**
+     * The uris of a manifest to be downloaded by a completion
+     * @param uris of the manifest
+     * @param index of the completion
+     * @param count of the completions
+     * @param catalog sizing the artifacts
+     * @return the shard of the completion
+     */
+    static URI[] shardOf(@NonNull final URI[] uris, final int index, final int count, @NonNull final Catalog catalog) {
+        if (index < 0 || index >= count) {
+            throw new IllegalArgumentException("Completion index " + index + " is not within " + count);
+        }
+        return partition(Arrays.asList(uris), uri -> catalog.of(uri)
+                .map(agent -> agent.getFileSize().getBytes()).orElse(0L), count)
+                .get(index).toArray(URI[]::new);
+    }
+
+    /**
+     * The uris to be downloaded by this pod as per {@value #COMPLETION_INDEX} and {@value #COMPLETIONS}
+     * @param uris of the manifest
+     * @return the shard of this completion; or all the uris when not run as an Indexed Job
+     */
+    static URI[] ofThisCompletion(@NonNull final URI[] uris) {
+        return ofThisCompletion(uris, Catalog.AGENTS);
+    }
+
+    /**
+     * The uris to be downloaded by this pod as per {@value #COMPLETION_INDEX} and {@value #COMPLETIONS}
+     * @param uris of the manifest
+     * @param catalog sizing the artifacts
+     * @return the shard of this completion; or all the uris when not run as an Indexed Job
+     */
+    static URI[] ofThisCompletion(@NonNull final URI[] uris, @NonNull final Catalog catalog) {
+        final String index = System.getenv(COMPLETION_INDEX);
+        final int count = NumberUtils.toInt(System.getenv(COMPLETIONS), 1);
+        if (StringUtils.isBlank(index) || count <= 1) return uris;
+        final URI[] shard = shardOf(uris, Integer.parseInt(index.trim()), count, catalog);
+        log.info("Completion {} of {} downloads {} of the {} agents", index, count, shard.length, uris.length);
+        return shard;
+    }
+}
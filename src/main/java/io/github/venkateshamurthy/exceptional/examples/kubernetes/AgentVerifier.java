@@ -0,0 +1,142 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.vavr.control.Either;
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.MB;
+
+/**
+ * Audits the agents already published by running {@link Artifact#verify(File)} on every artifact of the
+ * {@link Catalog} present on any of the {@link DestinationRoots} (the primary, extra and cold roots), in parallel,
+ * without deleting or downloading anything.
+ * <p>Hashing a memory backed volume is cpu bound whereas a disk backed one is io bound; the concurrency therefore
+ * defaults to the processor count (to be raised for a disk backed volume) and the hashing buffers come from the {@link BufferPool#shared() shared pool}.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class AgentVerifier {
+    /** Exit code when all the present agents are intact.*/
+    static final int INTACT = 0;
+    /** Exit code when at least one agent is corrupt (length or checksum mismatch).*/
+    static final int CORRUPT = 1;
+    /** Exit code when the verification itself could not be carried out.*/
+    static final int FAILED = 2;
+
+    private final DestinationRoots roots;
+    private final Catalog catalog;
+    private final int concurrency;
+
+    AgentVerifier(@NonNull final DestinationRoots roots, @NonNull final Catalog catalog) {
+        this(roots, catalog, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Verify all the artifacts of the catalog present on the roots
+     * @return a {@link Report}
+     */
+    Report verify() {
+        final long start = System.currentTimeMillis();
+        final List<File> folders = roots.all().stream().map(DestinationRoots.Stripe::getRoot).toList();
+        var present = new ArrayList<Artifact>();
+        var files = new ArrayList<File>();
+        var absent = new ArrayList<Artifact>();
+        Arrays.stream(catalog.uris()).map(catalog::of).flatMap(Optional::stream).distinct().forEach(artifact ->
+                roots.discover(artifact.getMetadata().getRelativePath()).ifPresentOrElse(file -> {
+                    present.add(artifact);
+                    files.add(file);
+                }, () -> absent.add(artifact)));
+
+        var intact = new ArrayList<Artifact>();
+        var corrupt = new ArrayList<Artifact>();
+        var failed = new ArrayList<String>();
+        long bytes = 0L;
+        if (!present.isEmpty()) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, present.size())));
+            try {
+                List<Callable<Either<Exception, Storage>>> checks = IntStream.range(0, present.size())
+                        .mapToObj(i -> (Callable<Either<Exception, Storage>>) () -> present.get(i).verify(files.get(i)))
+                        .collect(Collectors.toList());
+                List<Future<Either<Exception, Storage>>> results = pool.invokeAll(checks);
+                for (int i = 0; i < present.size(); i++) {
+                    var artifact = present.get(i);
+                    var file = files.get(i);
+                    var result = Try.of(results.get(i)::get);
+                    if (result.isFailure()) {
+                        failed.add(artifact + ":" + result.getCause().getMessage());
+                    } else {
+                        (result.get().isRight() ? intact : corrupt).add(artifact);
+                        bytes += Try.of(() -> CompressedStore.logicalSize(file.toPath())).getOrElse(0L);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed.add("Interrupted while verifying " + folders);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        return new Report(folders, intact, corrupt, failed, absent, bytes,
+                Duration.ofMillis(System.currentTimeMillis() - start), failed.isEmpty() ? null : String.join("; ", failed));
+    }
+
+    /** Outcome of a verification run.*/
+    @Value
+    static class Report {
+        /** Roots verified.*/
+        List<File> roots;
+        /** Artifacts whose length and checksum matched.*/
+        List<Artifact> intact;
+        /** Artifacts whose length or checksum did not match.*/
+        List<Artifact> corrupt;
+        /** Artifacts (or reasons) that could not be verified.*/
+        List<String> failed;
+        /** Artifacts present on none of the roots.*/
+        List<Artifact> absent;
+        /** Logical bytes of the artifacts whose check completed.*/
+        long bytes;
+        /** Wall clock time taken.*/
+        Duration elapsed;
+        /** An error summary if any.*/
+        String error;
+
+        /**
+         * Throughput of hashing
+         * @return MB/s hashed
+         */
+        double throughput() {
+            return elapsed.isZero() ? 0d : (bytes / (double) MB.getBytesPerUnit()) / (elapsed.toMillis() / 1000d);
+        }
+
+        /**
+         * An exit code for a kubernetes Job
+         * @return one of {@link #INTACT}, {@link #CORRUPT} or {@link #FAILED}
+         */
+        int exitCode() {
+            return error != null ? FAILED : corrupt.isEmpty() ? INTACT : CORRUPT;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("verify %s: intact=%d corrupt=%s absent=%d hashed=%d MB in %d ms (%.1f MB/s) exit=%d%s",
+                    roots, intact.size(), corrupt, absent.size(), MB.noOfUnits(bytes), elapsed.toMillis(),
+                    throughput(), exitCode(), error == null ? "" : " error=" + error);
+        }
+    }
+}
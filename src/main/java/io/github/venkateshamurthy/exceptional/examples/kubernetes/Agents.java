@@ -1,21 +1,14 @@
 package io.github.venkateshamurthy.exceptional.examples.kubernetes;
 
-import io.github.resilience4j.core.functions.CheckedFunction;
-import io.github.venkateshamurthy.exceptional.RxTry;
 import io.vavr.control.Either;
 import lombok.Getter;
 import lombok.NonNull;
-import lombok.SneakyThrows;
-import lombok.experimental.ExtensionMethod;
-import lombok.extern.slf4j.Slf4j;
 
 import java.io.File;
-import java.math.BigInteger;
 import java.net.URI;
-import java.nio.file.Files;
-import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -24,10 +17,8 @@ import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUn
 /**
  * All agents to be downloaded
  */
-@Slf4j
 @Getter
-@ExtensionMethod(RxTry.class)
-public enum Agents {
+public enum Agents implements Artifact {
     /** DEM 10.15.*/
     DEM15( "DEM-Agent/10.15.0/2268/agent.tar", 12206080L,
             "ee85b69ee51c0ad07cf4cdd6f93ec0228589e62d1c96bdeb26be5c0b9870f7e6"),
@@ -58,20 +49,23 @@ public enum Agents {
 
     /** HCS_AGENTS_STABLE_PACKAGES prefix url.*/
     public static final String HCS_AGENTS_STABLE_PACKAGES = "https://softwareupdate.omnissa.com/hcs-agents-stable/packages/";
+    /** Agents by their uri; built once.*/
+    private static final Map<URI, Agents> BY_URI = Arrays.stream(values())
+            .collect(Collectors.toUnmodifiableMap(Agents::getUri, Function.identity()));
+    /** Agents by their relative path; built once.*/
+    private static final Map<String, Agents> BY_PATH = Arrays.stream(values())
+            .collect(Collectors.toUnmodifiableMap(agent -> agent.getMetadata().getRelativePath(), Function.identity()));
 
     /** URI from where this agent is downloaded.*/
     final URI uri;
     /** An accurate file size to be compared with when the agent file gets downloaded.*/
     final Storage fileSize;
     /** The checksum algorithm is currently defaulted to SHA-256.*/
-    final String checkSumType = "SHA-256";
+    final String checkSumType = CHECKSUM_TYPE;
     /** The checksum (SHA-256) as may be computed by shaSum -A 256 <file>.*/
     final String checkSum;
-
-    private final CheckedFunction<File, String> hexComputer = destFile -> {
-        var hash = MessageDigest.getInstance(checkSumType).digest(Files.readAllBytes(destFile.toPath()));
-        return String.format("%0" + (hash.length * 2) + "x", new BigInteger(1, hash));
-    };
+    /** Type, version, build and path parsed from the uri.*/
+    final AgentMetadata metadata;
 
     /**
      * Constructor
@@ -83,6 +77,7 @@ public enum Agents {
         this.uri = URI.create(HCS_AGENTS_STABLE_PACKAGES + uri);
         this.fileSize = B.toStorage(fileLengthInBytes);
         this.checkSum = checkSum256;
+        this.metadata = AgentMetadata.parse(this.uri, this.fileSize);
     }
 
     /**
@@ -90,30 +85,34 @@ public enum Agents {
      * @param destinationFolder to the place where file needs to be downloaded
      * @return an Either with exception or the {@link Storage}
      */
-    @SneakyThrows
     public Either<Exception, Storage> checkFile(@NonNull final File destinationFolder) {
-        final File destFile = new File(destinationFolder, uri.toURL().getFile());
-        if (destFile.exists() &&
-                B.toStorage(destFile.length()).isEquivalentTo(fileSize) &&
-                isEqualCheckSum(hexComputer.tryWrap(destFile).get())) {
-            log.debug("File is present (with length and checksum matching); so not copying... {}", destFile);
-            return Either.right(Storage.ZERO);
-        }
-        return Either.left(new IllegalStateException("Length / Checksum did not match for " + destFile +
-                " Check if this is the intended file??"));
-    }
-
-    /** An equal check for a passed in sum.*/
-    private boolean isEqualCheckSum(@NonNull final String checkSum) {
-        return checkSum.equalsIgnoreCase(this.checkSum);
+        return verify(new File(destinationFolder, metadata.getRelativePath()));
     }
 
     /**
      * Returns a map of URI to Agents.
-     * @return map
+     * @return map; immutable and built once
      */
     public static Map<URI, Agents> getUriToAgentsMap() {
-        return Arrays.stream(values()).collect(Collectors.toMap(Agents::getUri, Function.identity()));
+        return BY_URI;
+    }
+
+    /**
+     * The agent of a uri
+     * @param uri of the agent
+     * @return the agent; empty when not in the manifest
+     */
+    static Optional<Agents> of(@NonNull final URI uri) {
+        return Optional.ofNullable(BY_URI.get(uri));
+    }
+
+    /**
+     * The agent of a relative path (as under a destination root)
+     * @param relativePath path of the agent uri
+     * @return the agent; empty when not in the manifest
+     */
+    static Optional<Agents> ofPath(@NonNull final String relativePath) {
+        return Optional.ofNullable(BY_PATH.get(relativePath));
     }
 
     /**
@@ -0,0 +1,57 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.vavr.control.Either;
+import lombok.NonNull;
+
+import java.io.File;
+import java.net.URI;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * An artifact downloaded, verified and published by the {@link AgentDownloader}; one of the {@link Agents} or an
+ * entry of a {@link Manifest}.
+ */
+interface Artifact {
+    /** The checksum algorithm of the artifacts.*/
+    String CHECKSUM_TYPE = "SHA-256";
+
+    /**
+     * URI from where the artifact is downloaded
+     * @return URI
+     */
+    URI getUri();
+
+    /**
+     * The accurate size of the artifact
+     * @return Storage
+     */
+    Storage getFileSize();
+
+    /**
+     * The {@value #CHECKSUM_TYPE} checksum in hex
+     * @return checksum
+     */
+    String getCheckSum();
+
+    /**
+     * Type, version, build and path of the artifact
+     * @return AgentMetadata
+     */
+    AgentMetadata getMetadata();
+
+    /**
+     * Checks the integrity of a given file (say a download yet to be published) against this artifact.
+     * @param destFile to be checked
+     * @return an Either with exception or the {@link Storage}
+     */
+    default Either<Exception, Storage> verify(@NonNull final File destFile) {
+        if (destFile.exists() &&
+                B.toStorage(CompressedStore.logicalSize(destFile.toPath())).isEquivalentTo(getFileSize()) &&
+                getCheckSum().equalsIgnoreCase(FileUtils.hexDigest(destFile.toPath(), CHECKSUM_TYPE))) {
+            return Either.right(Storage.ZERO);
+        }
+        return Either.left(new IllegalStateException("Length / Checksum did not match for " + destFile +
+                " Check if this is the intended file??"));
+    }
+}
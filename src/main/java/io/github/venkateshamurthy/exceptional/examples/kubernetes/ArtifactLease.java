@@ -0,0 +1,227 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.vavr.control.Try;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A lease on downloading an artifact shared by the processes (pods) writing onto the same volume.
+ * <p>The lease is an exclusive {@link FileLock} on a hidden {@code .<artifact>.lease} file next to the artifact
+ * which the holder stamps with its identity every {@link #HEARTBEAT} and deletes on release. The others wait on
+ * {@link WatchService} notifications of the folder (a heartbeat or a release) instead of polling. Once the holder has
+ * not stamped it for {@link #STALE} the lease is taken over: the lock of a dead holder is released by the OS, and the
+ * file of a hung one (still locking it) is deleted for a fresh one to be locked and stamped. As a waiter may have
+ * locked the file just unlinked by the holder, a new holder checks the path still refers to the file it locked.
+ * <p>The holder locks the first byte of the file; a waiter taking over a stale lease locks the second one so that
+ * only one of them deletes it.
+ * <p>Note: closing any descriptor of a file drops the (POSIX) locks the process holds on it; so the lease file is
+ * never opened again by the process holding it, which is why the threads of a process are kept off it in-process.
+ */
+@Slf4j
+final class ArtifactLease implements AutoCloseable {
+    /** Suffix of a lease file.*/
+    static final String SUFFIX = ".lease";
+    /** How often the holder stamps its lease.*/
+    static final Duration HEARTBEAT = Duration.ofSeconds(2);
+    /** Age of the last stamp beyond which a held lease is taken to be of a hung holder.*/
+    static final Duration STALE = HEARTBEAT.multipliedBy(5);
+    private static final String HOLDER = StringUtils.defaultIfBlank(System.getenv("HOSTNAME"), "localhost") +
+            ":" + ProcessHandle.current().pid();
+    /** Byte of the lease file locked by the holder.*/
+    private static final long HELD = 0L;
+    /** Byte of the lease file locked by a waiter taking over a stale lease.*/
+    private static final long TAKING_OVER = 1L;
+    /** Leases held by this process; its other threads wait on this set (as a monitor) rather than the file.*/
+    private static final Set<Path> heldHere = ConcurrentHashMap.newKeySet();
+
+    /** The artifact leased.*/
+    @Getter
+    private final File artifact;
+    private final String holder;
+    private final Path path;
+    private final Object fileKey;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final Disposable heartbeat;
+
+    private ArtifactLease(File artifact, Path path, Object fileKey, FileChannel channel, FileLock lock) {
+        this.artifact = artifact;
+        this.holder = HOLDER + "#" + Long.toHexString(System.nanoTime());
+        this.path = path;
+        this.fileKey = fileKey;
+        this.channel = channel;
+        this.lock = lock;
+        stamp();
+        this.heartbeat = Schedulers.io().schedulePeriodicallyDirect(this::stamp,
+                HEARTBEAT.toMillis(), HEARTBEAT.toMillis(), MILLISECONDS);
+    }
+
+    /**
+     * The lease file of an artifact
+     * @param artifact to be leased
+     * @return File
+     */
+    static File leaseFile(@NonNull final File artifact) {
+        return new File(artifact.getParentFile(), "." + artifact.getName() + SUFFIX);
+    }
+
+    /**
+     * Take the lease of an artifact waiting for its current holder (if any) to release it.
+     * @param artifact to be leased
+     * @param timeout maximum time to wait
+     * @return ArtifactLease to be closed once the artifact is published (or given up)
+     * @throws IOException when the lease file cannot be created or watched
+     * @throws InterruptedException when interrupted while waiting
+     * @throws TimeoutException when the lease is neither released nor stale within the timeout
+     */
+    static ArtifactLease acquire(@NonNull final File artifact, @NonNull final Duration timeout)
+            throws IOException, InterruptedException, TimeoutException {
+        final Path path = leaseFile(artifact).toPath();
+        Files.createDirectories(path.getParent());
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        try (WatchService watcher = path.getFileSystem().newWatchService()) {
+            path.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            while (true) {
+                final Optional<ArtifactLease> lease = tryAcquire(artifact, path);
+                if (lease.isPresent()) return lease.get();
+                final boolean inProcess = heldHere.contains(path);
+                if (!inProcess && !Files.exists(path)) continue; // released meanwhile
+
+                final Duration age = inProcess ? Duration.ZERO : ageOf(path);
+                if (age.compareTo(STALE) > 0 && takeOver(path)) continue; // for a fresh one to be locked
+                final String holder = inProcess ? HOLDER : holderOf(path);
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    throw new TimeoutException("Lease of " + artifact + " is held by " + holder + " beyond " + timeout);
+                }
+                log.debug("Waiting on the lease of {} held by {}", artifact.getName(), holder);
+                if (inProcess) {
+                    synchronized (heldHere) {
+                        if (heldHere.contains(path)) TimeUnit.NANOSECONDS.timedWait(heldHere, remaining);
+                    }
+                    continue;
+                }
+                final WatchKey key = watcher.poll(Math.min(remaining, STALE.toNanos()), TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+    }
+
+    private static Optional<ArtifactLease> tryAcquire(File artifact, Path path) throws IOException {
+        if (!heldHere.add(path)) return Optional.empty();
+        FileChannel channel = null;
+        FileLock lock = null;
+        try {
+            Try.run(() -> Files.createFile(path));
+            final Object key = fileKey(path);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            lock = channel.tryLock(HELD, 1L, false);
+            if (lock != null && Files.exists(path) && Objects.equals(key, fileKey(path))) {
+                final ArtifactLease lease = new ArtifactLease(artifact, path, key, channel, lock);
+                log.debug("Leased {} to {}", artifact.getName(), lease.holder);
+                return Optional.of(lease);
+            }
+        } catch (NoSuchFileException gone) {
+            // released and deleted meanwhile
+        } catch (IOException | RuntimeException e) {
+            close(lock, channel, path);
+            throw e;
+        }
+        close(lock, channel, path);
+        return Optional.empty();
+    }
+
+    /**
+     * Delete a stale lease file still locked by a hung holder; unless another waiter is taking it over or has
+     * @return true when deleted (or gone meanwhile)
+     */
+    private static boolean takeOver(Path path) throws IOException {
+        if (!heldHere.add(path)) return false;
+        FileChannel channel = null;
+        try {
+            final Object key = fileKey(path);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final FileLock taking = channel.tryLock(TAKING_OVER, 1L, false);
+            final Duration age = ageOf(path);
+            if (taking == null || !Objects.equals(key, fileKey(path)) || age.compareTo(STALE) <= 0) return false;
+            log.warn("Taking over the lease {} from {} which has not stamped it for {}", path, holderOf(path), age);
+            Files.delete(path);
+            return true;
+        } catch (NoSuchFileException gone) {
+            return true; // released or taken over meanwhile
+        } finally {
+            close(null, channel, path);
+        }
+    }
+
+    private static Object fileKey(Path path) {
+        return Try.of(() -> Files.readAttributes(path, BasicFileAttributes.class).fileKey()).getOrNull();
+    }
+
+    private static void close(FileLock lock, FileChannel channel, Path path) {
+        if (lock != null) Try.run(lock::release);
+        if (channel != null) Try.run(channel::close);
+        synchronized (heldHere) {
+            heldHere.remove(path);
+            heldHere.notifyAll();
+        }
+    }
+
+    private void stamp() {
+        Try.run(() -> {
+            channel.truncate(0L);
+            channel.write(ByteBuffer.wrap((holder + " " + System.currentTimeMillis())
+                    .getBytes(StandardCharsets.UTF_8)), 0L);
+        }).onFailure(e -> log.warn("Unable to stamp the lease of {}:{}", artifact, e.getMessage()));
+    }
+
+    /** Time since the holder last stamped the lease; zero when not stamped yet.*/
+    static Duration ageOf(Path path) {
+        final long stamped = NumberUtils.toLong(StringUtils.substringAfterLast(read(path), " "), 0L);
+        return stamped == 0L ? Duration.ZERO : Duration.ofMillis(Math.max(0L, System.currentTimeMillis() - stamped));
+    }
+
+    private static String holderOf(Path path) {
+        return StringUtils.defaultIfBlank(StringUtils.substringBeforeLast(read(path), " "), "unknown");
+    }
+
+    private static String read(Path path) {
+        return Try.of(() -> Files.readString(path)).getOrElse("").trim();
+    }
+
+    /** Release the lease deleting its file (before unlocking it) unless taken over; which notifies the waiters.*/
+    @Override
+    public void close() {
+        heartbeat.dispose();
+        if (Objects.equals(fileKey, fileKey(path))) Try.run(() -> Files.deleteIfExists(path));
+        close(lock, channel, path);
+        log.debug("Released the lease of {}", artifact.getName());
+    }
+}
@@ -0,0 +1,278 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * Cleans up a directory without holding its callers up: the children are renamed aside (atomically, on the same
+ * volume) into a hidden {@value #TRASH} folder under it so that the directory is empty at once, and are deleted in
+ * the background in batches of {@value #BATCH} files run in parallel. The {@link #KEPT state} carried from run to
+ * run and the {@link ArtifactLease leases} (of the downloads other processes may be running) are left in place.
+ * <p>A cleanup holds a lock on a {@value #LOCK} file beside its trash generation while it deletes it; a generation
+ * left in the trash is taken over (deleted along) only when that lock is free, as its process is gone.
+ * <p>The bytes freed by every batch are handed to a callback; say to sample the volume again so that the space
+ * accounting (and a transfer paused for space) sees them as soon as they are freed.
+ */
+@Slf4j
+final class AsyncCleanup {
+    /** Hidden folder the children are renamed aside into.*/
+    static final String TRASH = ".trash";
+    /** Files deleted by a task.*/
+    static final int BATCH = 256;
+    /** Children kept; the download limit learnt (loaded once the roots are cleaned up) and the checksums cached.*/
+    static final Set<String> KEPT = Set.of(AdaptiveLimit.SIDECAR, Reconciler.CHECKSUMS);
+    /** Suffix of the file locked by the cleanup deleting a trash generation.*/
+    static final String LOCK = ".lock";
+    private static final ExecutorService deleters = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                final Thread thread = new Thread(runnable, "async-cleanup");
+                thread.setDaemon(true);
+                return thread;
+            });
+    /** Trash folders being deleted by this process.*/
+    private static final Set<Path> deleting = ConcurrentHashMap.newKeySet();
+
+    private AsyncCleanup() {
+    }
+
+    /** Outcome of a cleanup.*/
+    @Value
+    static class Report {
+        /** Directory cleaned up.*/
+        File directory;
+        /** Files deleted.*/
+        long files;
+        /** Directories deleted.*/
+        long directories;
+        /** Bytes freed.*/
+        Storage freed;
+        /** Time taken to delete (after the rename).*/
+        Duration elapsed;
+
+        @Override
+        public String toString() {
+            return String.format("cleaned up %s: files=%d directories=%d freed=%s in %d ms", directory, files,
+                    directories, freed, elapsed.toMillis());
+        }
+    }
+
+    /**
+     * Rename the children of a directory aside and delete them in the background; along with whatever an earlier
+     * (interrupted) cleanup left in the trash
+     * @param directory to be emptied; it is kept
+     * @param onFreed called with the bytes freed by every batch
+     * @return the report once all is deleted
+     */
+    static CompletableFuture<Report> cleanup(@NonNull final File directory, @NonNull final Consumer<Storage> onFreed) {
+        if (!directory.isDirectory()) {
+            return CompletableFuture.completedFuture(new Report(directory, 0L, 0L, Storage.ZERO, Duration.ZERO));
+        }
+        final Path trash = directory.toPath().resolve(TRASH);
+        final Path generation = trash.resolve(ProcessHandle.current().pid() + "-" + System.nanoTime());
+        final FileChannel owner;
+        try {
+            Files.createDirectories(generation);
+            owner = FileChannel.open(lockOf(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        try {
+            owner.lock();
+            deleting.add(generation);
+            final Set<Path> holding = holdingKept(directory.toPath());
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(directory.toPath())) {
+                for (Path child : children) {
+                    if (!child.equals(trash)) moveAside(directory.toPath(), child, generation, holding);
+                }
+            }
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(trash)) {
+                for (Path leftover : leftovers) {
+                    if (!deleting.contains(leftover) && !leftover.getFileName().toString().endsWith(LOCK)
+                            && abandoned(leftover)) {
+                        Files.move(leftover, generation.resolve(leftover.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            deleting.remove(generation);
+            release(owner, generation);
+            return CompletableFuture.failedFuture(e);
+        }
+        log.debug("Renamed the contents of {} aside to {}", directory, generation);
+        return CompletableFuture.supplyAsync(() -> delete(generation, onFreed), deleters)
+                .thenCompose(deletion -> deletion)
+                .thenApply(counts -> new Report(directory, counts[0], counts[1], B.toStorage(counts[2]),
+                        Duration.ofNanos(System.nanoTime() - counts[3])))
+                .whenComplete((report, e) -> {
+                    deleting.remove(generation);
+                    release(owner, generation);
+                    try {
+                        Files.deleteIfExists(trash); // once no other cleanup uses it
+                    } catch (IOException notEmpty) {
+                        // another cleanup is still deleting its own
+                    }
+                    if (e != null) log.warn("Unable to clean up {} fully:{}", directory, e.getMessage());
+                    else log.info("{}", report);
+                });
+    }
+
+    /** Is the file kept in place; the state carried from run to run or a lease.*/
+    private static boolean isKept(Path path) {
+        final String name = path.getFileName().toString();
+        return KEPT.contains(name) || name.endsWith(ArtifactLease.SUFFIX);
+    }
+
+    /** The directories under the directory (and itself) holding a kept file somewhere below.*/
+    private static Set<Path> holdingKept(Path directory) throws IOException {
+        final Set<Path> holding = new HashSet<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.filter(path -> !path.startsWith(directory.resolve(TRASH)) && isKept(path))
+                    .forEach(kept -> {
+                        for (Path parent = kept.getParent(); parent != null && parent.startsWith(directory);
+                             parent = parent.getParent()) {
+                            if (!holding.add(parent)) break;
+                        }
+                    });
+        }
+        return holding;
+    }
+
+    /** Moves the child aside (to the same relative path in the generation); the children one by one of a directory
+     * holding a kept file.*/
+    private static void moveAside(Path directory, Path child, Path generation, Set<Path> holding) throws IOException {
+        if (isKept(child)) return;
+        if (holding.contains(child)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(child)) {
+                for (Path grandChild : children) moveAside(directory, grandChild, generation, holding);
+            }
+            return;
+        }
+        final Path target = generation.resolve(directory.relativize(child));
+        Files.createDirectories(target.getParent());
+        Files.move(child, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path lockOf(Path generation) {
+        return generation.resolveSibling(generation.getFileName() + LOCK);
+    }
+
+    /** Is the generation left by a cleanup that is gone; its lock (if any) is free and is then removed.*/
+    private static boolean abandoned(Path generation) {
+        final Path lock = lockOf(generation);
+        if (!Files.exists(lock)) return true;
+        try (FileChannel channel = FileChannel.open(lock, StandardOpenOption.WRITE)) {
+            final FileLock held = channel.tryLock();
+            if (held == null) return false;
+            Files.deleteIfExists(lock);
+            return true;
+        } catch (NoSuchFileException gone) {
+            return true;
+        } catch (IOException | OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    /** Removes the lock of the generation and then releases it.*/
+    private static void release(FileChannel owner, Path generation) {
+        try (owner) {
+            Files.deleteIfExists(lockOf(generation));
+        } catch (IOException e) {
+            log.debug("Unable to remove the lock of {}:{}", generation, e.getMessage());
+        }
+    }
+
+    /** Walks the trash submitting its files in batches; and then deletes the directories (the deepest first).*/
+    private static CompletableFuture<long[]> delete(Path generation, Consumer<Storage> onFreed) {
+        final long start = System.nanoTime();
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final List<CompletableFuture<Void>> batches = new ArrayList<>();
+        final List<Path> directories = new ArrayList<>();
+        final List<Path> batch = new ArrayList<>();
+        final AtomicLong batchBytes = new AtomicLong();
+        final Runnable submit = () -> {
+            final List<Path> paths = List.copyOf(batch);
+            final long size = batchBytes.getAndSet(0L);
+            batch.clear();
+            batches.add(CompletableFuture.runAsync(() -> {
+                long deleted = 0L;
+                for (Path path : paths) {
+                    try {
+                        if (Files.deleteIfExists(path)) deleted++;
+                    } catch (IOException e) {
+                        log.debug("Unable to delete {}:{}", path, e.getMessage());
+                    }
+                }
+                files.addAndGet(deleted);
+                bytes.addAndGet(size);
+                onFreed.accept(B.toStorage(size));
+            }, deleters));
+        };
+        try {
+            Files.walkFileTree(generation, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    batch.add(file);
+                    batchBytes.addAndGet(attributes.size());
+                    if (batch.size() >= BATCH) submit.run();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e) {
+                    directories.add(directory);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Unable to walk {}:{}", generation, e.getMessage());
+        }
+        if (!batch.isEmpty()) submit.run();
+        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new)).thenApplyAsync(ignore -> {
+            long deleted = 0L;
+            for (Path directory : directories) {
+                try {
+                    if (Files.deleteIfExists(directory)) deleted++;
+                } catch (IOException e) {
+                    log.debug("Unable to delete {}:{}", directory, e.getMessage());
+                }
+            }
+            return new long[]{files.get(), deleted, bytes.get(), start};
+        }, deleters);
+    }
+}
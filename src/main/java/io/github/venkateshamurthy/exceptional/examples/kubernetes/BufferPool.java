@@ -0,0 +1,125 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * A process wide pool of direct {@link ByteBuffer}s bounded by a byte budget.
+ * <p>Copy and verify loops lease a buffer for their whole duration; when the budget is exhausted a lease waits
+ * (fairly) for a buffer to be returned, so the in-flight memory stays flat irrespective of how many agents are
+ * downloaded or hashed in parallel.
+ */
+@Slf4j
+@Getter
+final class BufferPool {
+    private static final BufferPool SHARED = new BufferPool(Storage.mb(16), Storage.kb(64));
+
+    /** Maximum bytes that may be leased out at any time.*/
+    private final Storage budget;
+    /** Size of every pooled buffer.*/
+    private final Storage bufferSize;
+    @Getter(AccessLevel.NONE) private final int capacity;
+    @Getter(AccessLevel.NONE) private final Semaphore permits;
+    @Getter(AccessLevel.NONE) private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    @Getter(AccessLevel.NONE) private final AtomicInteger inUse = new AtomicInteger();
+    @Getter(AccessLevel.NONE) private final AtomicInteger highWaterMark = new AtomicInteger();
+    @Getter(AccessLevel.NONE) private final AtomicInteger allocated = new AtomicInteger();
+    @Getter(AccessLevel.NONE) private final AtomicLong waits = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param budget total bytes that can be leased out
+     * @param bufferSize size of each buffer; at least one buffer is always allowed
+     */
+    BufferPool(@NonNull final Storage budget, @NonNull final Storage bufferSize) {
+        this.budget = budget;
+        this.bufferSize = bufferSize;
+        this.capacity = (int) Math.max(1L, budget.getBytes() / bufferSize.getBytes());
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    /**
+     * The pool shared by all copy and verify loops of this process.
+     * @return BufferPool
+     */
+    static BufferPool shared() { return SHARED; }
+
+    /**
+     * Lease a buffer waiting for capacity if the budget is exhausted.
+     * @return a {@link Lease} to be closed to return the buffer
+     * @throws InterruptedException when interrupted while waiting for capacity
+     */
+    Lease acquire() throws InterruptedException {
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+            log.debug("Buffer budget of {} exhausted; waiting for capacity", budget);
+            permits.acquire();
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect((int) bufferSize.getBytes());
+            allocated.incrementAndGet();
+        }
+        highWaterMark.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+        return new Lease(buffer.clear());
+    }
+
+    private void release(ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        free.offer(buffer.clear());
+        permits.release();
+    }
+
+    /**
+     * Current statistics of the pool
+     * @return Stats
+     */
+    Stats stats() {
+        long size = bufferSize.getBytes();
+        return new Stats(budget, B.toStorage(inUse.get() * size), B.toStorage(highWaterMark.get() * size),
+                B.toStorage(allocated.get() * size), waits.get());
+    }
+
+    /** A snapshot of pool usage.*/
+    @Value
+    static class Stats {
+        /** Configured budget.*/
+        Storage budget;
+        /** Bytes leased out now.*/
+        Storage inUse;
+        /** Maximum bytes ever leased out at once.*/
+        Storage highWaterMark;
+        /** Bytes of direct memory allocated by the pool.*/
+        Storage allocated;
+        /** Number of leases that had to wait for capacity.*/
+        long waits;
+    }
+
+    /** A leased buffer which goes back to the pool on close.*/
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    final class Lease implements AutoCloseable {
+        /** The leased buffer; not to be used after close.*/
+        @Getter
+        private final ByteBuffer buffer;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) release(buffer);
+        }
+    }
+}
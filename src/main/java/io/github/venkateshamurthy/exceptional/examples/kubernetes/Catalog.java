@@ -0,0 +1,65 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+
+import java.net.URI;
+import java.util.Optional;
+
+/**
+ * The artifacts known to a downloader; looked up by their uri or their path under a destination root.
+ */
+interface Catalog {
+    /** The (built in) {@link Agents}.*/
+    Catalog AGENTS = new Catalog() {
+        @Override
+        public Optional<Artifact> of(@NonNull final URI uri) {
+            return Agents.of(uri).map(Artifact.class::cast);
+        }
+
+        @Override
+        public Optional<Artifact> ofPath(@NonNull final String relativePath) {
+            return Agents.ofPath(relativePath).map(Artifact.class::cast);
+        }
+
+        @Override
+        public URI[] uris() {
+            return Agents.getUris();
+        }
+
+        @Override
+        public int size() {
+            return Agents.values().length;
+        }
+
+        @Override
+        public String toString() {
+            return "Agents";
+        }
+    };
+
+    /**
+     * The artifact of a uri
+     * @param uri of the artifact
+     * @return the artifact; empty when not in the catalog
+     */
+    Optional<Artifact> of(URI uri);
+
+    /**
+     * The artifact of a relative path (as under a destination root)
+     * @param relativePath path of the artifact uri
+     * @return the artifact; empty when not in the catalog
+     */
+    Optional<Artifact> ofPath(String relativePath);
+
+    /**
+     * The uris of all the artifacts
+     * @return URI[]
+     */
+    URI[] uris();
+
+    /**
+     * Number of the artifacts
+     * @return size
+     */
+    int size();
+}
@@ -0,0 +1,187 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.subjects.BehaviorSubject;
+import io.reactivex.rxjava3.subjects.Subject;
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A {@link TransferGate} following the cgroup v2 memory of the container; which a memory backed emptyDir is charged
+ * to, unlike what the free space of the volume tells.
+ * <p>It samples {@code memory.current}, {@code memory.max} and {@code memory.pressure} every {@link #PERIOD}. Writes
+ * are throttled once the memory headroom (max less current) falls below {@link Thresholds#getThrottleBelow()} or
+ * the memory pressure (some avg10) reaches {@link #PRESSURE_THRESHOLD}; and paused below
+ * {@link Thresholds#getPauseBelow()} until the headroom is back above {@link Thresholds#getResumeAbove()}.
+ * <p>Throttled writes (of all the transfers together) are held to {@link #THROTTLE_RATE} per second by a token bucket
+ * holding a second of it; a write waits only for the bytes it takes beyond what the bucket holds.
+ */
+@Slf4j
+class CgroupMemoryGate implements TransferGate, AutoCloseable {
+    /** The cgroup (v2) of the container as mounted within it.*/
+    static final Path DEFAULT_CGROUP = Path.of("/sys/fs/cgroup");
+    static final String CURRENT = "memory.current";
+    static final String MAX = "memory.max";
+    static final String PRESSURE = "memory.pressure";
+    /** Sampling period.*/
+    static final Duration PERIOD = Duration.ofSeconds(1);
+    /** Bytes a second the writes are held to while throttled.*/
+    static final Storage THROTTLE_RATE = Storage.mb(16);
+    /** Share (in percent) of the last 10s some task stalled on memory beyond which writes are throttled.*/
+    static final double PRESSURE_THRESHOLD = 10.0;
+
+    private final Path cgroup;
+    private final Thresholds thresholds;
+    /** Serialized; as both the sampler and the callers sampling now publish onto it.*/
+    private final Subject<Map<String, Storage>> readings = BehaviorSubject.<Map<String, Storage>>create().toSerialized();
+    private final LowSpaceGate pauseGate;
+    private final Disposable sampler;
+    private volatile boolean throttled;
+    /** Bytes the throttled writes may take without waiting; negative for those owed.*/
+    private long tokens = THROTTLE_RATE.getBytes();
+    private long refilled = System.nanoTime();
+
+    /** Memory headroom thresholds.*/
+    @Value
+    static class Thresholds {
+        /** Defaults fitting a container limit of a GB or two.*/
+        static final Thresholds DEFAULT = new Thresholds(Storage.mb(64), Storage.mb(128), Storage.mb(256));
+        /** Headroom below which the writes pause.*/
+        Storage pauseBelow;
+        /** Headroom above which the paused writes resume.*/
+        Storage resumeAbove;
+        /** Headroom below which the writes are throttled.*/
+        Storage throttleBelow;
+    }
+
+    private CgroupMemoryGate(Path cgroup, Thresholds thresholds) throws IOException {
+        this.cgroup = cgroup;
+        this.thresholds = thresholds;
+        this.pauseGate = new LowSpaceGate(readings, () -> Storage.ZERO, thresholds.getPauseBelow(),
+                thresholds.getResumeAbove());
+        sample();
+        this.sampler = Schedulers.computation().schedulePeriodicallyDirect(() -> Try.run(this::sample)
+                        .onFailure(e -> log.warn("Unable to sample the memory of cgroup {}:{}", cgroup, e.getMessage())),
+                PERIOD.toMillis(), PERIOD.toMillis(), MILLISECONDS);
+    }
+
+    /**
+     * Open the gate over a cgroup
+     * @param cgroup directory of the cgroup (v2)
+     * @param thresholds of the memory headroom
+     * @return the gate; empty when the directory does not have the cgroup v2 memory controller files
+     */
+    static Optional<CgroupMemoryGate> open(@NonNull final Path cgroup, @NonNull final Thresholds thresholds) {
+        if (!Files.isRegularFile(cgroup.resolve(CURRENT))) {
+            log.info("No cgroup v2 memory accounting at {}; not gating on memory", cgroup);
+            return Optional.empty();
+        }
+        return Try.of(() -> new CgroupMemoryGate(cgroup, thresholds))
+                .onFailure(e -> log.warn("Not gating on memory of cgroup {}:{}", cgroup, e.getMessage()))
+                .toJavaOptional();
+    }
+
+    /**
+     * Sample the cgroup now and update the gate
+     * @return reading with {@value #CURRENT}, {@value #MAX} and the headroom as {@link VolumeMonitor#AVAILABLE}
+     * @throws IOException when the cgroup files cannot be read
+     */
+    Map<String, Storage> sample() throws IOException {
+        final long current = Long.parseLong(read(CURRENT));
+        final String limit = read(MAX);
+        final long max = "max".equals(limit) ? Long.MAX_VALUE : Long.parseLong(limit);
+        final long headroom = Math.max(0L, max - current);
+        final double pressure = pressure();
+        final boolean throttle = headroom < thresholds.getThrottleBelow().getBytes() || pressure >= PRESSURE_THRESHOLD;
+        if (throttle != throttled) {
+            log.info("{} writes; memory headroom:{} pressure:{}%", throttle ? "Throttling" : "Unthrottling",
+                    B.toStorage(headroom), pressure);
+            throttled = throttle;
+        }
+        final Map<String, Storage> reading = new HashMap<>();
+        reading.put(CURRENT, B.toStorage(current));
+        reading.put(MAX, B.toStorage(max));
+        reading.put(VolumeMonitor.AVAILABLE, B.toStorage(headroom));
+        readings.onNext(reading);
+        return reading;
+    }
+
+    /** The some avg10 of the memory pressure stall information; 0 when not available.*/
+    private double pressure() throws IOException {
+        final Path file = cgroup.resolve(PRESSURE);
+        if (!Files.isRegularFile(file)) return 0.0;
+        return Files.readAllLines(file).stream().filter(line -> line.startsWith("some "))
+                .map(line -> StringUtils.substringBetween(line, "avg10=", " "))
+                .filter(StringUtils::isNotBlank).mapToDouble(Double::parseDouble)
+                .findFirst().orElse(0.0);
+    }
+
+    private String read(String name) throws IOException {
+        return Files.readString(cgroup.resolve(name)).trim();
+    }
+
+    /**
+     * Is the gate open
+     * @return true when the writes are not paused
+     */
+    boolean isOpen() {
+        return pauseGate.isOpen();
+    }
+
+    /**
+     * Are the writes throttled
+     * @return true when throttled
+     */
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    @Override
+    public Duration awaitOpen(@NonNull final Duration maxPause) throws InterruptedException, TimeoutException {
+        return awaitOpen(maxPause, 0L);
+    }
+
+    @Override
+    public Duration awaitOpen(@NonNull final Duration maxPause, final long bytes)
+            throws InterruptedException, TimeoutException {
+        final Duration paused = pauseGate.awaitOpen(maxPause);
+        final long wait = throttled ? take(bytes) : 0L;
+        if (wait <= 0L) return paused;
+        NANOSECONDS.sleep(wait);
+        return paused.plus(Duration.ofNanos(wait));
+    }
+
+    /** Takes the bytes from the bucket (refilled at the throttle rate); the nanos to wait for those owed.*/
+    private synchronized long take(long bytes) {
+        final long now = System.nanoTime();
+        final long rate = THROTTLE_RATE.getBytes();
+        tokens = Math.min(rate, tokens + (long) ((now - refilled) / 1e9 * rate));
+        refilled = now;
+        tokens -= bytes;
+        return tokens >= 0L ? 0L : (long) (-tokens * 1e9 / rate);
+    }
+
+    /** Stop sampling; which opens the gate.*/
+    @Override
+    public void close() {
+        sampler.dispose();
+        pauseGate.close();
+    }
+}
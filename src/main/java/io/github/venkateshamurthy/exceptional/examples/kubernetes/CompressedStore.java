@@ -0,0 +1,364 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * A block compressed container to keep agent files compressed at rest on a memory backed volume.
+ * <p>Layout: {@code magic | blockSize | deflated blocks... | block index | logicalLength | indexOffset | magic}.
+ * The trailing block index makes the container seekable so that a reader inflates only the block it needs.
+ * Files without the magic are treated as plain files so that callers can always go through {@link #open(Path)}.
+ */
+@Slf4j
+final class CompressedStore {
+    /** Marks both the start and the end of a container.*/
+    static final int MAGIC = 0x41475A31; // AGZ1
+    /** Logical bytes per deflated block.*/
+    static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+    /** Key for the logical (uncompressed) bytes in a space map.*/
+    static final String LOGICAL = "Logical";
+    /** Key for the physical (on volume) bytes in a space map.*/
+    static final String PHYSICAL = "Physical";
+    private static final int HEADER = Integer.BYTES * 2;
+    private static final int TRAILER = Long.BYTES * 2 + Integer.BYTES;
+
+    private CompressedStore() {}
+
+    /**
+     * Check if the file is a compressed container; a plain file which happens to start with the magic is not one
+     * @param file to be checked
+     * @return true if the file starts and ends with the container magic and its trailer fits the file
+     */
+    @SneakyThrows
+    static boolean isCompressed(@NonNull final Path file) {
+        if (!Files.isRegularFile(file) || Files.size(file) < HEADER + Integer.BYTES + TRAILER) return false;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = in.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            readFully(in, header, 0L);
+            if (header.flip().getInt() != MAGIC) return false;
+            final int blockSize = header.getInt();
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+            readFully(in, trailer, size - TRAILER);
+            trailer.flip();
+            final long logicalLength = trailer.getLong();
+            final long indexOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC || blockSize <= 0 || logicalLength < 0
+                    || indexOffset < HEADER || indexOffset > size - TRAILER - Integer.BYTES) return false;
+
+            ByteBuffer count = ByteBuffer.allocate(Integer.BYTES);
+            readFully(in, count, indexOffset);
+            final long blocks = count.flip().getInt();
+            return blocks >= 0
+                    && indexOffset + Integer.BYTES + blocks * (Long.BYTES + Integer.BYTES) + TRAILER == size
+                    && logicalLength <= blocks * blockSize && logicalLength > (blocks - 1) * blockSize;
+        }
+    }
+
+    /**
+     * Opens a channel over the logical bytes of the file, inflating if it is a container.
+     * @param file plain or compressed
+     * @return a read only {@link SeekableByteChannel}
+     * @throws IOException when the file cannot be opened
+     */
+    static SeekableByteChannel open(@NonNull final Path file) throws IOException {
+        return isCompressed(file) ? new Reader(FileChannel.open(file, StandardOpenOption.READ))
+                : FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /**
+     * The logical length of a file
+     * @param file plain or compressed
+     * @return length of the uncompressed content
+     */
+    @SneakyThrows
+    static long logicalSize(@NonNull final Path file) {
+        if (!isCompressed(file)) return Files.size(file);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+            readFully(in, trailer, in.size() - TRAILER);
+            return trailer.flip().getLong();
+        }
+    }
+
+    /**
+     * Compresses a plain file into a container.
+     * @param source plain file
+     * @param target container to be (over)written
+     * @throws IOException when either file cannot be accessed
+     */
+    static void compress(@NonNull final Path source, @NonNull final Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new Writer(out)) {
+            ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BLOCK_SIZE);
+            long bytes;
+            do {
+                bytes = writer.transferFrom(in, buffer);
+            } while (bytes > 0);
+        }
+    }
+
+    /**
+     * Logical and physical usage of all the files under a folder
+     * @param folder to be walked
+     * @return a map with {@link #LOGICAL} and {@link #PHYSICAL} storage
+     */
+    @SneakyThrows
+    static Map<String, Storage> usage(@NonNull final File folder) {
+        long logical = 0L, physical = 0L;
+        if (folder.exists()) {
+            try (Stream<Path> paths = Files.walk(folder.toPath())) {
+                for (Path path : (Iterable<Path>) paths.filter(Files::isRegularFile)::iterator) {
+                    physical += Files.size(path);
+                    logical += logicalSize(path);
+                }
+            }
+        }
+        log.debug("Space under {} logical:{} physical:{}", folder, B.toStorage(logical), B.toStorage(physical));
+        return Map.of(LOGICAL, B.toStorage(logical), PHYSICAL, B.toStorage(physical));
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of container at " + position);
+            position += read;
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) out.write(buffer);
+    }
+
+    /**
+     * Writes a container onto a channel positioned at its start; closing it appends the index but leaves the
+     * underlying channel open for its owner.
+     */
+    static final class Writer implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final ByteBuffer pending;
+        private final ByteBuffer deflated;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        private final DataOutputStream index = new DataOutputStream(indexBytes);
+        private int blocks;
+        private long logical;
+        private long physical;
+        private boolean open = true;
+
+        Writer(@NonNull final WritableByteChannel out) throws IOException {
+            this(out, DEFAULT_BLOCK_SIZE);
+        }
+
+        Writer(@NonNull final WritableByteChannel out, final int blockSize) throws IOException {
+            this.out = out;
+            this.pending = ByteBuffer.allocate(blockSize);
+            this.deflated = ByteBuffer.allocate(blockSize + blockSize / 8 + 64);
+            writeFully(out, ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(blockSize).flip());
+            physical = HEADER;
+        }
+
+        /**
+         * Reads once from the source and writes what was read
+         * @param in source channel
+         * @param buffer a scratch buffer
+         * @return the bytes transferred or 0 at the end of the source
+         * @throws IOException on read / write failures
+         */
+        long transferFrom(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = in.read(buffer);
+            if (read <= 0) return 0L;
+            write(buffer.flip());
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            int written = src.remaining();
+            while (src.hasRemaining()) {
+                int chunk = Math.min(pending.remaining(), src.remaining());
+                pending.put(src.slice(src.position(), chunk));
+                src.position(src.position() + chunk);
+                if (!pending.hasRemaining()) flushBlock();
+            }
+            logical += written;
+            return written;
+        }
+
+        private void flushBlock() throws IOException {
+            pending.flip();
+            if (!pending.hasRemaining()) {
+                pending.clear();
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(pending);
+            deflater.finish();
+            long length = 0L;
+            while (!deflater.finished()) {
+                deflater.deflate(deflated);
+                length += deflated.position();
+                writeFully(out, deflated.flip());
+                deflated.clear();
+            }
+            index.writeLong(physical);
+            index.writeInt((int) length);
+            physical += length;
+            blocks++;
+            pending.clear();
+        }
+
+        @Override
+        public boolean isOpen() { return open; }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            try {
+                flushBlock();
+                long indexOffset = physical;
+                writeFully(out, ByteBuffer.allocate(Integer.BYTES).putInt(blocks).flip());
+                writeFully(out, ByteBuffer.wrap(indexBytes.toByteArray()));
+                writeFully(out, ByteBuffer.allocate(TRAILER).putLong(logical).putLong(indexOffset).putInt(MAGIC).flip());
+            } finally {
+                open = false;
+                deflater.end();
+            }
+        }
+    }
+
+    /** A read only seekable view of the logical bytes of a container; owns the underlying channel.*/
+    static final class Reader implements SeekableByteChannel {
+        private final FileChannel in;
+        private final Inflater inflater = new Inflater();
+        private final int blockSize;
+        private final long size;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final byte[] block;
+        private int blockLength;
+        private int current = -1;
+        private long position;
+
+        Reader(@NonNull final FileChannel in) throws IOException {
+            this.in = in;
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER);
+            readFully(in, trailer, in.size() - TRAILER);
+            trailer.flip();
+            this.size = trailer.getLong();
+            long indexOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC) throw new IOException("Not a compressed container (bad trailer)");
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            readFully(in, header, 0L);
+            header.flip().getInt();
+            this.blockSize = header.getInt();
+
+            ByteBuffer count = ByteBuffer.allocate(Integer.BYTES);
+            readFully(in, count, indexOffset);
+            int blocks = count.flip().getInt();
+            ByteBuffer entries = ByteBuffer.allocate(blocks * (Long.BYTES + Integer.BYTES));
+            readFully(in, entries, indexOffset + Integer.BYTES);
+            entries.flip();
+            this.offsets = new long[blocks];
+            this.lengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                offsets[i] = entries.getLong();
+                lengths[i] = entries.getInt();
+            }
+            this.block = new byte[blockSize];
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!in.isOpen()) throw new ClosedChannelException();
+            if (position >= size) return -1;
+            int index = (int) (position / blockSize);
+            if (index >= offsets.length) throw new IOException("No block " + index + " in container of " + size);
+            load(index);
+            int offset = (int) (position - (long) index * blockSize);
+            int count = Math.min(dst.remaining(), blockLength - offset);
+            dst.put(block, offset, count);
+            position += count;
+            return count;
+        }
+
+        private void load(int index) throws IOException {
+            if (index == current) return;
+            ByteBuffer compressed = ByteBuffer.allocate(lengths[index]);
+            readFully(in, compressed, offsets[index]);
+            inflater.reset();
+            inflater.setInput(compressed.array());
+            final long expected = Math.min(blockSize, size - (long) index * blockSize);
+            try {
+                blockLength = 0;
+                while (!inflater.finished() && blockLength < block.length) {
+                    int inflated = inflater.inflate(block, blockLength, block.length - blockLength);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    blockLength += inflated;
+                }
+                if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) blockLength++; // beyond the block
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt block " + index + " in container", e);
+            }
+            if (!inflater.finished() || blockLength != expected) {
+                current = -1;
+                throw new IOException("Corrupt block " + index + " in container; inflated " + blockLength
+                        + " of " + expected + " bytes");
+            }
+            current = index;
+        }
+
+        @Override
+        public int write(ByteBuffer src) { throw new NonWritableChannelException(); }
+
+        @Override
+        public long position() { return position; }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position:" + newPosition);
+            this.position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() { return size; }
+
+        @Override
+        public SeekableByteChannel truncate(long size) { throw new NonWritableChannelException(); }
+
+        @Override
+        public boolean isOpen() { return in.isOpen(); }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+}
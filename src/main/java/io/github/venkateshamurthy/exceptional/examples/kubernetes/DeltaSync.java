@@ -0,0 +1,376 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.vavr.control.Either;
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeoutException;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * A zsync style delta transfer which assembles a new agent file from the blocks of a previous local version
+ * and fetches only the missing blocks with http Range requests.
+ * <p>The remote side publishes a block map next to the artifact (i.e. {@code <uri>.blockmap}) holding a rolling
+ * (rsync style) checksum and a SHA-256 for every block; see {@link BlockMap}.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class DeltaSync {
+    /** Suffix of the published block map relative to the artifact url.*/
+    static final String BLOCK_MAP_SUFFIX = ".blockmap";
+    /** Default block size used while publishing a block map.*/
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    private static final String STRONG_SUM = "SHA-256";
+    private static final int READ_AHEAD = 64 * 1024;
+
+    /** Connect / read timeout applied to every http request.*/
+    private final Duration timeout;
+    /** When set, the assembled file is placed as a {@link CompressedStore} container.*/
+    private final boolean compressAtRest;
+
+    /**
+     * Assemble the file at the url into the destination reusing blocks from a previous version.
+     * @param in the source {@link URL} which also has its block map published
+     * @param previous a previous local version (plain or compressed) of the same agent type
+     * @param out the destination {@link File}; written in place (say a part file the caller publishes) and deleted
+     *            unless verified
+     * @param fileSize the expected length of the assembled file
+     * @param checkSum the expected SHA-256 of the assembled file
+     * @return {@link Either} with the exception encountered or the bytes fetched over the network; a right only for a
+     * destination verified against the checksum
+     */
+    Either<Exception, Storage> sync(@NonNull final URL in,
+                                    @NonNull final File previous,
+                                    @NonNull final File out,
+                                    @NonNull final Storage fileSize,
+                                    @NonNull final String checkSum) {
+        return sync(in, previous, out, fileSize, checkSum, TransferGate.OPEN);
+    }
+
+    /**
+     * Assemble the file at the url into the destination reusing blocks from a previous version; pausing while the
+     * gate is closed. The blocks (reused or fetched) are written in order straight into the destination (compressed
+     * if so set) and digested on the way; so the volume holds no more than the destination itself and it is verified
+     * without being read again.
+     * @param in the source {@link URL} which also has its block map published
+     * @param previous a previous local version (plain or compressed) of the same agent type
+     * @param out the destination {@link File}; written in place (say a part file the caller publishes) and deleted
+     *            unless verified
+     * @param fileSize the expected length of the assembled file
+     * @param checkSum the expected SHA-256 of the assembled file
+     * @param gate consulted before every write
+     * @return {@link Either} with the exception encountered or the bytes fetched over the network; a right only for a
+     * destination verified against the checksum
+     */
+    Either<Exception, Storage> sync(@NonNull final URL in,
+                                    @NonNull final File previous,
+                                    @NonNull final File out,
+                                    @NonNull final Storage fileSize,
+                                    @NonNull final String checkSum,
+                                    @NonNull final TransferGate gate) {
+        return Try.of(() -> {
+                    final long start = System.currentTimeMillis();
+                    final BlockMap map = fetchBlockMap(new URL(in.toExternalForm() + BLOCK_MAP_SUFFIX));
+                    if (map.getLength() != fileSize.getBytes()) {
+                        throw new IllegalStateException("Block map length " + map.getLength() +
+                                " does not match the expected size " + fileSize + " for " + in);
+                    }
+                    Files.createDirectories(out.toPath().getParent());
+                    final long[] sources = reuse(previous, map);
+                    final Sink sink;
+                    try (FileChannel target = FileChannel.open(out.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        final CompressedStore.Writer compressor = compressAtRest ? new CompressedStore.Writer(target) : null;
+                        sink = new Sink(compressor == null ? target : compressor, gate);
+                        assemble(in, previous, map, sources, sink);
+                        if (compressor != null) compressor.close();
+                        target.force(false);
+                    }
+                    if (sink.written != map.getLength()) {
+                        throw new EOFException("Assembled " + sink.written + " of " + map.getLength() + " bytes of " + in);
+                    }
+                    if (!HexFormat.of().formatHex(sink.digest.digest()).equalsIgnoreCase(checkSum)) {
+                        throw new IllegalStateException("Checksum did not match after delta assembly of " + out);
+                    }
+                    log.info("Delta assembled {} in {} ms; reused:{} fetched:{} from previous:{}", out,
+                            System.currentTimeMillis() - start, B.toStorage(sink.reused), B.toStorage(sink.fetched),
+                            previous);
+                    return B.toStorage(sink.fetched);
+                })
+                .onFailure(ignore -> Try.run(() -> Files.deleteIfExists(out.toPath())))
+                .toEither()
+                .mapLeft(t -> (t instanceof Exception) ? (Exception) t : new Exception(t));
+    }
+
+    /**
+     * Rolls over the previous file and finds the blocks of the map in it
+     * @return the offset in the previous file of every block found; -1 for those to be fetched
+     */
+    private long[] reuse(File previous, BlockMap map) throws IOException {
+        final long[] sources = new long[map.count()];
+        Arrays.fill(sources, -1L);
+        final int size = map.getBlockSize();
+        final Map<Integer, List<Integer>> byWeak = map.weakIndex();
+        if (byWeak.isEmpty()) return sources;
+
+        final MessageDigest digest = newDigest();
+        final byte[] ring = new byte[size];
+        final byte[] block = new byte[size];
+        final byte[] chunk = new byte[READ_AHEAD];
+        long offset = 0L; // of the next byte of the previous file
+        int filled = 0, head = 0, a = 0, b = 0, read;
+        try (InputStream in = Channels.newInputStream(CompressedStore.open(previous.toPath()))) {
+            while ((read = in.read(chunk)) > 0) {
+                for (int i = 0; i < read; i++, offset++) {
+                    final int next = chunk[i] & 0xff;
+                    if (filled < size) {
+                        ring[filled++] = (byte) next;
+                        a = (a + next) & 0xffff;
+                        b = (b + a) & 0xffff;
+                        if (filled < size) continue;
+                    } else {
+                        final int drop = ring[head] & 0xff;
+                        ring[head] = (byte) next;
+                        head = (head + 1) % size;
+                        a = (a - drop + next) & 0xffff;
+                        b = (b - size * drop + a) & 0xffff;
+                    }
+                    final List<Integer> candidates = byWeak.get(a | (b << 16));
+                    if (candidates == null) continue;
+
+                    System.arraycopy(ring, head, block, 0, size - head);
+                    System.arraycopy(ring, 0, block, size - head, head);
+                    final byte[] strong = digest.digest(block);
+                    boolean matched = false;
+                    for (int index : candidates) {
+                        if (sources[index] < 0 && Arrays.equals(strong, map.getStrong()[index])) {
+                            sources[index] = offset - size + 1;
+                            matched = true;
+                        }
+                    }
+                    if (matched) {
+                        filled = head = a = b = 0;
+                    }
+                }
+            }
+        }
+        return sources;
+    }
+
+    /** Writes the blocks in order; the ones found from the previous file and the others fetched (coalesced).*/
+    private void assemble(URL in, File previous, BlockMap map, long[] sources, Sink sink) throws IOException {
+        final ByteBuffer block = ByteBuffer.allocate(map.getBlockSize());
+        try (SeekableByteChannel old = CompressedStore.open(previous.toPath())) {
+            int index = 0;
+            while (index < sources.length) {
+                if (sources[index] >= 0) {
+                    block.clear().limit(map.blockLength(index));
+                    old.position(sources[index]);
+                    while (block.hasRemaining()) {
+                        if (old.read(block) < 0) throw new EOFException("Previous version " + previous + " shrank");
+                    }
+                    sink.reused += sink.write(block.flip());
+                    index++;
+                    continue;
+                }
+                final int first = index;
+                while (index < sources.length && sources[index] < 0) index++;
+                final long from = map.offset(first);
+                final long to = map.offset(index - 1) + map.blockLength(index - 1) - 1;
+                sink.fetched += fetchRange(in, from, to, sink);
+            }
+        }
+    }
+
+    /** Fetches the absent blocks coalescing the adjacent ones into a single Range request.*/
+    private long fetchRange(URL in, long from, long to, Sink sink) throws IOException {
+        final URLConnection conn = in.openConnection();
+        conn.setConnectTimeout((int) timeout.toMillis());
+        conn.setReadTimeout((int) timeout.toMillis());
+        conn.setRequestProperty("Range", "bytes=" + from + "-" + to);
+        if (conn instanceof HttpURLConnection http && http.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            http.disconnect();
+            throw new IOException("Range request is not honoured by " + in + "; response code:" + http.getResponseCode());
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD);
+        long position = from;
+        try (ReadableByteChannel channel = Channels.newChannel(conn.getInputStream())) {
+            while (position <= to) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), to - position + 1));
+                if (channel.read(buffer) < 0) break;
+                position += sink.write(buffer.flip());
+            }
+        }
+        if (position != to + 1) {
+            throw new EOFException("Range " + from + "-" + to + " of " + in + " ended at " + position);
+        }
+        return to - from + 1;
+    }
+
+    /** The destination written in order; digesting what is written and waiting on the gate before every write.*/
+    private final class Sink {
+        private final WritableByteChannel out;
+        private final TransferGate gate;
+        private final MessageDigest digest = newDigest();
+        private long written, reused, fetched;
+
+        private Sink(WritableByteChannel out, TransferGate gate) {
+            this.out = out;
+            this.gate = gate;
+        }
+
+        private int write(ByteBuffer buffer) throws IOException {
+            try {
+                gate.awaitOpen(timeout, buffer.remaining());
+            } catch (TimeoutException e) {
+                throw new IOException("Paused beyond " + timeout + " while assembling at " + written, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while assembling at " + written);
+            }
+            final int length = buffer.remaining();
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) out.write(buffer);
+            written += length;
+            return length;
+        }
+    }
+
+    private BlockMap fetchBlockMap(URL blockMapUrl) throws IOException {
+        final URLConnection conn = blockMapUrl.openConnection();
+        conn.setConnectTimeout((int) timeout.toMillis());
+        conn.setReadTimeout((int) timeout.toMillis());
+        try (InputStream in = conn.getInputStream()) {
+            return BlockMap.read(in);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(STRONG_SUM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The rsync style weak checksum of a block.
+     * @param block bytes
+     * @param length to be considered from the start of the block
+     * @return the 32 bit weak sum
+     */
+    static int weakSum(byte[] block, int length) {
+        int a = 0, b = 0;
+        for (int i = 0; i < length; i++) {
+            a = (a + (block[i] & 0xff)) & 0xffff;
+            b = (b + a) & 0xffff;
+        }
+        return a | (b << 16);
+    }
+
+    /**
+     * A published block map; written as a text file with a header line {@code <blockSize> <length>}
+     * followed by a {@code <weakHex> <sha256Hex>} line per block.
+     */
+    @Value
+    static class BlockMap {
+        /** Size of each block (but for the last one).*/
+        int blockSize;
+        /** Length of the whole file.*/
+        long length;
+        /** Weak rolling sums per block.*/
+        int[] weak;
+        /** SHA-256 per block.*/
+        byte[][] strong;
+
+        int count() { return weak.length; }
+
+        long offset(int index) { return (long) index * blockSize; }
+
+        int blockLength(int index) { return (int) Math.min(blockSize, length - offset(index)); }
+
+        /** Only the full sized blocks take part in the rolling match.*/
+        Map<Integer, List<Integer>> weakIndex() {
+            final Map<Integer, List<Integer>> index = new HashMap<>();
+            for (int i = 0; i < count(); i++) {
+                if (blockLength(i) == blockSize) index.computeIfAbsent(weak[i], k -> new ArrayList<>(1)).add(i);
+            }
+            return index;
+        }
+
+        /**
+         * Compute the block map of a file; this is what the publishing side runs.
+         * @param file to be mapped
+         * @param blockSize size of each block
+         * @return BlockMap
+         * @throws IOException when the file could not be read
+         */
+        static BlockMap of(@NonNull final File file, final int blockSize) throws IOException {
+            final long length = file.length();
+            final int count = (int) ((length + blockSize - 1) / blockSize);
+            final int[] weak = new int[count];
+            final byte[][] strong = new byte[count][];
+            final MessageDigest digest = newDigest();
+            final byte[] block = new byte[blockSize];
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                for (int i = 0; i < count; i++) {
+                    final int read = in.readNBytes(block, 0, blockSize);
+                    weak[i] = weakSum(block, read);
+                    digest.update(block, 0, read);
+                    strong[i] = digest.digest();
+                }
+            }
+            return new BlockMap(blockSize, length, weak, strong);
+        }
+
+        static BlockMap read(@NonNull final InputStream in) throws IOException {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+            final String[] header = Objects.requireNonNull(reader.readLine(), "Empty block map").trim().split("\\s+");
+            final int blockSize = Integer.parseInt(header[0]);
+            final long length = Long.parseLong(header[1]);
+            final int count = (int) ((length + blockSize - 1) / blockSize);
+            final int[] weak = new int[count];
+            final byte[][] strong = new byte[count][];
+            final HexFormat hex = HexFormat.of();
+            for (int i = 0; i < count; i++) {
+                final String line = reader.readLine();
+                if (line == null) throw new EOFException("Block map ended at block " + i + " of " + count);
+                final String[] sums = line.trim().split("\\s+");
+                weak[i] = (int) Long.parseLong(sums[0], 16);
+                strong[i] = hex.parseHex(sums[1]);
+            }
+            return new BlockMap(blockSize, length, weak, strong);
+        }
+
+        void write(@NonNull final OutputStream out) throws IOException {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII));
+            final HexFormat hex = HexFormat.of();
+            writer.write(blockSize + " " + length + "\n");
+            for (int i = 0; i < count(); i++) {
+                writer.write(Integer.toHexString(weak[i]) + " " + hex.formatHex(strong[i]) + "\n");
+            }
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * The destination roots (say one per local SSD) agents are striped across.
+ * <p>Each agent is placed on the {@link Stripe} with the fewest downloads in flight among those having the
+ * (unreserved) headroom for it, preferring the most headroom. The published files are kept in a
+ * {@link DirectoryIndex} (by agent type, the newest first) so that locating or listing them does not walk every root;
+ * it follows the changes on its own and is reconciled at once by {@link #reindex()} after a bulk change.
+ * <p>An optional cold root (say on disk while the others are memory backed) is never placed on; files are
+ * {@link #demote(File) demoted} to it and {@link #promote(File) promoted} back from it, keeping their relative path.
+ */
+@Slf4j
+class DestinationRoots implements AutoCloseable {
+    /** The stripes; the first is the primary root (which also holds the work journal).*/
+    @Getter
+    private final List<Stripe> stripes;
+    /** The cold tier; if any.*/
+    @Getter
+    private final Optional<Stripe> cold;
+    private final DirectoryIndex index;
+    /** Last access (in millis) of the files read, served or published by this process.*/
+    private final Map<File, Long> accessed = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     * @param roots the destination roots; the first being the primary
+     * @param lowWaterMark of the {@link LowSpaceGate} of each stripe
+     * @param highWaterMark of the {@link LowSpaceGate} of each stripe
+     * @throws IOException when the volume of a root cannot be determined
+     */
+    DestinationRoots(@NonNull final List<File> roots, @NonNull final Storage lowWaterMark,
+                     @NonNull final Storage highWaterMark) throws IOException {
+        this(roots, null, lowWaterMark, highWaterMark);
+    }
+
+    /**
+     * Constructor
+     * @param roots the destination roots; the first being the primary
+     * @param coldRoot root of the cold tier; null for a single tier
+     * @param lowWaterMark of the {@link LowSpaceGate} of each stripe
+     * @param highWaterMark of the {@link LowSpaceGate} of each stripe
+     * @throws IOException when the volume of a root cannot be determined
+     */
+    DestinationRoots(@NonNull final List<File> roots, final File coldRoot, @NonNull final Storage lowWaterMark,
+                     @NonNull final Storage highWaterMark) throws IOException {
+        if (roots.isEmpty()) throw new IllegalArgumentException("At least one destination root is needed");
+        final List<Stripe> list = new ArrayList<>();
+        for (File root : new LinkedHashSet<>(roots.stream().map(File::getAbsoluteFile).toList())) {
+            list.add(Stripe.open(root, lowWaterMark, highWaterMark));
+        }
+        this.stripes = List.copyOf(list);
+        this.cold = coldRoot == null ? Optional.empty()
+                : Optional.of(Stripe.open(coldRoot.getAbsoluteFile(), lowWaterMark, highWaterMark));
+        this.index = new DirectoryIndex(all().stream().map(Stripe::getRoot).toList(), DestinationRoots::typeOf,
+                file -> !FileUtils.isPartial(file) && !file.isHidden());
+    }
+
+    /**
+     * The agent type of a file; the folder under the packages folder
+     * @param file of an agent
+     * @return type; empty for other files
+     */
+    static String typeOf(@NonNull final File file) {
+        return StringUtils.defaultString(StringUtils.substringBetween(file.getPath(), "/packages/", "/"));
+    }
+
+    /**
+     * All the stripes including the cold tier
+     * @return List of stripes
+     */
+    List<Stripe> all() {
+        final List<Stripe> all = new ArrayList<>(stripes);
+        cold.ifPresent(all::add);
+        return all;
+    }
+
+    /**
+     * Is the file on the cold tier
+     * @param file on one of the roots
+     * @return true when cold
+     */
+    boolean isCold(@NonNull final File file) {
+        return cold.isPresent() && stripeOf(file) == cold.get();
+    }
+
+    /**
+     * The primary root
+     * @return File
+     */
+    File primary() {
+        return stripes.get(0).getRoot();
+    }
+
+    /** Reconcile the index walking every root once.*/
+    void reindex() {
+        index.reconcile();
+    }
+
+    /**
+     * Locate a published file
+     * @param relative path of the file under a root
+     * @return the file on whichever root it is published
+     */
+    Optional<File> locate(@NonNull final String relative) {
+        return all().stream().map(stripe -> new File(stripe.getRoot(), relative))
+                .filter(index::contains).findFirst();
+    }
+
+    /**
+     * Locate a file on the roots themselves (not the index); say one published by another process. The index is
+     * corrected for the file found or gone.
+     * @param relative path of the file under a root
+     * @return the file on whichever root it is present; the hot tier preferred
+     */
+    Optional<File> discover(@NonNull final String relative) {
+        Optional<File> found = Optional.empty();
+        for (Stripe stripe : all()) {
+            final File file = new File(stripe.getRoot(), relative);
+            index.refresh(file);
+            if (found.isEmpty() && index.contains(file)) found = Optional.of(file);
+        }
+        return found;
+    }
+
+    /**
+     * Choose the stripe for a file and count it in flight there until {@link Stripe#done()}; a file already
+     * published (on the hot tier) stays on its stripe.
+     * @param relative path of the file under a root
+     * @param size expected size of the file
+     * @return Stripe
+     */
+    synchronized Stripe place(@NonNull final String relative, @NonNull final Storage size) {
+        final Stripe chosen = locate(relative).map(this::stripeOf).filter(stripes::contains).orElseGet(() -> stripes.stream()
+                .filter(stripe -> stripe.headroom() >= size.getBytes())
+                .min(Comparator.comparingInt(Stripe::inFlight)
+                        .thenComparing(Comparator.comparingLong(Stripe::headroom).reversed()))
+                .orElseGet(() -> Collections.max(stripes, Comparator.comparingLong(Stripe::headroom))));
+        chosen.inFlight.incrementAndGet();
+        log.debug("Placed {} on {}; headroom:{} in flight:{}", relative, chosen.getRoot(),
+                B.toStorage(chosen.headroom()), chosen.inFlight());
+        return chosen;
+    }
+
+    /**
+     * The stripe (root) a file is under
+     * @param file on one of the roots
+     * @return Stripe
+     */
+    Stripe stripeOf(@NonNull final File file) {
+        final String path = file.getAbsolutePath();
+        return all().stream().filter(stripe -> path.startsWith(stripe.getRoot().getPath() + File.separator))
+                .findFirst().orElseThrow(() -> new IllegalArgumentException(file + " is not under any of " + stripes));
+    }
+
+    /**
+     * Record a file published
+     * @param file published
+     */
+    void published(@NonNull final File file) {
+        index.refresh(file);
+        touch(file);
+    }
+
+    /**
+     * Record a file accessed (say read or served)
+     * @param file published
+     */
+    void touch(@NonNull final File file) {
+        accessed.put(file, System.currentTimeMillis());
+    }
+
+    /**
+     * Record a file removed
+     * @param file removed
+     */
+    void removed(@NonNull final File file) {
+        index.remove(file);
+        accessed.remove(file);
+    }
+
+    /**
+     * Move a file from the hot tier onto the cold tier; a no-op without a cold tier or for a file gone meanwhile
+     * @param file on the hot tier
+     * @return the file on the cold tier
+     * @throws IOException when the file could not be moved
+     */
+    File demote(@NonNull final File file) throws IOException {
+        if (cold.isEmpty() || !file.exists() || isCold(file)) return file;
+        final File target = new File(cold.get().getRoot(), relativePath(file));
+        move(file, target);
+        log.info("Demoted {} to the cold tier", file);
+        return target;
+    }
+
+    /**
+     * Move a file from the cold tier back onto the hot tier (placed as any new file)
+     * @param file on the cold tier
+     * @return the file on the hot tier
+     * @throws IOException when the file could not be moved
+     */
+    File promote(@NonNull final File file) throws IOException {
+        if (!file.exists() || !isCold(file)) return file;
+        final String relative = relativePath(file);
+        final Stripe stripe = place(relative, Storage.of(file.length()));
+        try (var reservation = stripe.getVolume().getLedger().reserve(Storage.of(file.length()), Storage.ZERO,
+                new File(stripe.getRoot(), relative), Duration.ZERO)) {
+            final File target = new File(stripe.getRoot(), relative);
+            move(file, target);
+            log.info("Promoted {} to the hot tier at {}", file, stripe);
+            return target;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while promoting " + file);
+        } finally {
+            stripe.done();
+        }
+    }
+
+    /** Copies across the volumes into a part file, moves that into place atomically and then drops the source.*/
+    private void move(File from, File to) throws IOException {
+        final Path part = to.toPath().resolveSibling(to.getName() + FileUtils.PART_SUFFIX);
+        Files.createDirectories(part.getParent());
+        try {
+            Files.copy(from.toPath(), part, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(part, to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        index.refresh(to);
+        Optional.ofNullable(accessed.remove(from)).ifPresent(millis -> accessed.put(to, millis));
+        Files.deleteIfExists(from.toPath());
+        index.remove(from);
+    }
+
+    private String relativePath(File file) {
+        return file.getAbsolutePath().substring(stripeOf(file).getRoot().getPath().length());
+    }
+
+    /**
+     * Lists the published files across the roots from the index
+     * @param filterPattern to select the files
+     * @param comparator to order the files
+     * @param skip the number of files (in order) to leave out
+     * @return list of files
+     */
+    List<File> listFiles(@NonNull final Predicate<File> filterPattern, @NonNull final Comparator<File> comparator,
+                         final int skip) {
+        return index.files().stream().filter(filterPattern).sorted(comparator).skip(skip).toList();
+    }
+
+    /**
+     * Lists the published files of an agent type older than its newest few; from the index without a stat
+     * @param type of the agent
+     * @param filter of the files
+     * @param retain the number of the newest (filtered) files to leave out
+     * @return list of files; the newest first
+     */
+    List<File> olderThanNewest(@NonNull final String type, @NonNull final Predicate<File> filter, final int retain) {
+        return index.olderThanNewest(type, filter, retain);
+    }
+
+    /**
+     * The published agents (on either tier) that an {@link EvictionPolicy} may choose from; from the index
+     * @return candidates by their agent type
+     */
+    Map<String, List<EvictionPolicy.Candidate>> candidates() {
+        final Map<String, List<EvictionPolicy.Candidate>> candidates = new HashMap<>();
+        index.keys().stream().filter(StringUtils::isNotBlank).forEach(type -> candidates.put(type,
+                index.entries(type).stream().map(entry -> {
+                    final long modified = entry.getAttributes().lastModifiedTime().toMillis();
+                    final long read = entry.getAttributes().lastAccessTime().toMillis();
+                    return new EvictionPolicy.Candidate(entry.getFile(), type,
+                            B.toStorage(entry.getAttributes().size()), modified,
+                            Math.max(accessed.getOrDefault(entry.getFile(), 0L), Math.max(read, modified)));
+                }).toList()));
+        return candidates;
+    }
+
+    /**
+     * Sum of a quantity of each distinct volume under the roots
+     * @param quantity of a volume
+     * @return Storage
+     */
+    Storage sumOfVolumes(@NonNull final Function<VolumeMonitor, Storage> quantity) {
+        return B.toStorage(all().stream().map(Stripe::getVolume).distinct()
+                .mapToLong(volume -> quantity.apply(volume).getBytes()).sum());
+    }
+
+    @Override
+    public void close() {
+        index.close();
+        all().forEach(Stripe::close);
+    }
+
+    /** A destination root with the accounting of its volume.*/
+    @Getter
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    static final class Stripe implements AutoCloseable {
+        private final File root;
+        private final VolumeMonitor volume;
+        private final LowSpaceGate gate;
+        @Getter(AccessLevel.NONE)
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private static Stripe open(File root, Storage lowWaterMark, Storage highWaterMark) throws IOException {
+            final VolumeMonitor volume = VolumeMonitor.acquire(root);
+            return new Stripe(root, volume, new LowSpaceGate(volume.readings(), volume.getLedger()::getReserved,
+                    lowWaterMark, highWaterMark));
+        }
+
+        /** Free space of the volume less the space reserved on it.*/
+        long headroom() {
+            return volume.latest().getOrDefault(VolumeMonitor.AVAILABLE, Storage.ZERO).getBytes()
+                    - volume.getLedger().getReserved().getBytes();
+        }
+
+        /** Number of downloads in flight on this stripe.*/
+        int inFlight() {
+            return inFlight.get();
+        }
+
+        /** A download placed here is done.*/
+        void done() {
+            inFlight.decrementAndGet();
+        }
+
+        @Override
+        public void close() {
+            gate.close();
+            volume.release();
+        }
+
+        @Override
+        public String toString() {
+            return root.getPath();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * An in-memory index of the files under a few roots with their {@link BasicFileAttributes}; kept by a key (the
+ * agent type) in sets sorted by the modification time, the newest first. So listing the files of a type beyond its
+ * newest few takes a skip list walk of those few rather than a walk of the tree and a stat per comparison.
+ * <p>It is kept current by the {@link WatchService} events of every directory under the roots and reconciled with a
+ * walk every {@link #RECONCILE_PERIOD} (and on an overflow of the events) for what the events miss.
+ */
+@Slf4j
+final class DirectoryIndex implements AutoCloseable {
+    /** How often the index is reconciled with a walk of the roots.*/
+    static final Duration RECONCILE_PERIOD = Duration.ofSeconds(30);
+    /** Newest first; the path breaking a tie.*/
+    static final Comparator<Entry> NEWEST_FIRST = Comparator.comparing((Entry entry) ->
+            entry.getAttributes().lastModifiedTime()).reversed().thenComparing(Entry::getFile);
+
+    private final List<File> roots;
+    private final Function<File, String> keyOf;
+    private final Predicate<File> indexed;
+    private final ConcurrentMap<File, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListSet<Entry>> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentMap<WatchKey, Path> watched = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, Watch> directories = new ConcurrentHashMap<>();
+    private final WatchService watcher;
+    private final Disposable watching;
+    private final Disposable reconciling;
+
+    /** An indexed file.*/
+    @Value
+    static class Entry {
+        /** The file.*/
+        File file;
+        /** Its attributes when last seen.*/
+        BasicFileAttributes attributes;
+    }
+
+    /** The watch of a directory; with the file key of the very directory registered.*/
+    @Value
+    private static class Watch {
+        WatchKey key;
+        Object fileKey;
+
+        /** Is it still watching the directory of the file key; not one moved aside (or deleted) meanwhile.*/
+        boolean watches(Object current) {
+            return key.isValid() && (fileKey == null || fileKey.equals(current));
+        }
+    }
+
+    /**
+     * Index the roots and start watching them
+     * @param roots to be indexed; they need not exist yet
+     * @param keyOf a file; say its agent type
+     * @param indexed the files to be indexed
+     * @throws IOException when the roots cannot be watched
+     */
+    DirectoryIndex(@NonNull final List<File> roots, @NonNull final Function<File, String> keyOf,
+                   @NonNull final Predicate<File> indexed) throws IOException {
+        this.roots = List.copyOf(roots);
+        this.keyOf = keyOf;
+        this.indexed = indexed;
+        this.watcher = roots.isEmpty() ? null : roots.get(0).toPath().getFileSystem().newWatchService();
+        reconcile();
+        this.watching = watcher == null ? Disposable.empty() : Schedulers.io().scheduleDirect(this::watch);
+        this.reconciling = Schedulers.io().schedulePeriodicallyDirect(() -> Try.run(this::reconcile)
+                        .onFailure(e -> log.warn("Unable to reconcile the index of {}:{}", roots, e.getMessage())),
+                RECONCILE_PERIOD.toMillis(), RECONCILE_PERIOD.toMillis(), MILLISECONDS);
+    }
+
+    /** Walk the roots; watching any directory not watched yet and correcting the entries.*/
+    synchronized void reconcile() {
+        final Set<File> seen = new HashSet<>();
+        for (File root : roots) {
+            if (root.isDirectory() && !walk(root.toPath(), seen)) return; // keep the entries rather than drop those not walked
+        }
+        entries.keySet().stream().filter(file -> !seen.contains(file)).toList().forEach(this::remove);
+        log.debug("Indexed {} files across {}", entries.size(), roots);
+    }
+
+    /**
+     * Index (and watch) the tree under a directory; but for the hidden directories (say a trash being deleted)
+     * @return false when it could not be walked through
+     */
+    private boolean walk(Path directory, Set<File> seen) {
+        if (isHidden(directory)) return true;
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                    if (isHidden(path)) return FileVisitResult.SKIP_SUBTREE;
+                    watch(path, attributes.fileKey());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile() && indexed.test(path.toFile())) {
+                        seen.add(path.toFile());
+                        put(path.toFile(), attributes);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE; // gone meanwhile
+                }
+            });
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to walk {}:{}", directory, e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean isHidden(Path directory) {
+        return !roots.contains(directory.toFile()) && directory.getFileName() != null
+                && directory.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * Refresh a file from the filesystem; indexing or dropping it as it is present or not
+     * @param file under a root
+     */
+    synchronized void refresh(@NonNull final File file) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (attributes.isRegularFile() && indexed.test(file)) {
+                put(file, attributes);
+            } else if (attributes.isDirectory()) {
+                walk(file.toPath(), new HashSet<>()); // created (or moved in) with whatever it holds already
+            } else {
+                remove(file);
+            }
+        } catch (NoSuchFileException gone) {
+            removeUnder(file);
+        } catch (IOException e) {
+            log.debug("Unable to refresh {}:{}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Drop a file
+     * @param file under a root
+     */
+    synchronized void remove(@NonNull final File file) {
+        final Entry entry = entries.remove(file);
+        if (entry != null) byKey.get(keyOf.apply(file)).remove(entry);
+    }
+
+    private void put(File file, BasicFileAttributes attributes) {
+        final Entry previous = entries.get(file);
+        if (previous != null && previous.getAttributes().lastModifiedTime().equals(attributes.lastModifiedTime())
+                && previous.getAttributes().size() == attributes.size()) return;
+        remove(file);
+        final Entry entry = new Entry(file, attributes);
+        entries.put(file, entry);
+        byKey.computeIfAbsent(keyOf.apply(file), key -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(entry);
+    }
+
+    private void removeUnder(File fileOrDirectory) {
+        if (entries.containsKey(fileOrDirectory)) {
+            remove(fileOrDirectory);
+            return;
+        }
+        final Path gone = fileOrDirectory.toPath();
+        entries.keySet().stream().filter(file -> file.toPath().startsWith(gone)).toList().forEach(this::remove);
+    }
+
+    /**
+     * Is the file indexed
+     * @param file to be checked
+     * @return true when indexed
+     */
+    boolean contains(@NonNull final File file) {
+        return entries.containsKey(file);
+    }
+
+    /**
+     * The entry of a file
+     * @param file indexed
+     * @return the entry; empty when not indexed
+     */
+    Optional<Entry> get(@NonNull final File file) {
+        return Optional.ofNullable(entries.get(file));
+    }
+
+    /**
+     * All the files indexed
+     * @return set of files
+     */
+    Set<File> files() {
+        return entries.keySet();
+    }
+
+    /**
+     * The files of a key older than its newest few
+     * @param key of the files
+     * @param filter of the files
+     * @param skip the number of the newest (filtered) files to leave out
+     * @return the older files; the newest first
+     */
+    List<File> olderThanNewest(@NonNull final String key, @NonNull final Predicate<File> filter, final int skip) {
+        return Optional.ofNullable(byKey.get(key)).stream().flatMap(Set::stream)
+                .map(Entry::getFile).filter(filter).skip(skip).toList();
+    }
+
+    /**
+     * The entries of a key
+     * @param key of the files
+     * @return the entries; the newest first
+     */
+    List<Entry> entries(@NonNull final String key) {
+        return Optional.ofNullable(byKey.get(key)).map(List::copyOf).orElse(List.of());
+    }
+
+    /**
+     * The keys indexed
+     * @return set of keys
+     */
+    Set<String> keys() {
+        return byKey.keySet();
+    }
+
+    /**
+     * Watch a directory unless it is watched already; a directory moved aside (or deleted) and recreated at the same
+     * path is a different one (by its file key) and is watched afresh
+     */
+    private void watch(Path directory, Object fileKey) {
+        if (watcher == null) return;
+        final Watch current = directories.get(directory);
+        if (current != null && current.watches(fileKey)) return;
+        Try.of(() -> directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE))
+                .onSuccess(key -> {
+                    watched.put(key, directory);
+                    directories.put(directory, new Watch(key, fileKey));
+                    if (current != null && current.getKey() != key && watched.remove(current.getKey(), directory)) {
+                        current.getKey().cancel(); // of the one moved aside
+                    }
+                })
+                .onFailure(e -> {
+                    directories.remove(directory, current);
+                    log.debug("Unable to watch {}:{}", directory, e.getMessage());
+                });
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watcher.take();
+                final Path directory = watched.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW || directory == null) {
+                        reconcile();
+                    } else {
+                        final Path child = directory.resolve((Path) event.context());
+                        if (event.kind() == ENTRY_DELETE) {
+                            synchronized (this) {
+                                removeUnder(child.toFile());
+                            }
+                        } else {
+                            refresh(child.toFile());
+                        }
+                    }
+                }
+                if (!key.reset() && directory != null) {
+                    watched.remove(key);
+                    directories.computeIfPresent(directory, (path, watch) -> watch.getKey() == key ? null : watch);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException stopped) {
+            log.debug("Stopped watching {}", roots);
+        }
+    }
+
+    /**
+     * Number of the files indexed
+     * @return size
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /** Stop watching and reconciling.*/
+    @Override
+    public void close() {
+        reconciling.dispose();
+        if (watcher != null) Try.run(watcher::close);
+        watching.dispose();
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.kubernetes.client.custom.Quantity;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * Plans a batch of downloads within the ephemeral storage limit of the pod; picking the download concurrency (per
+ * agent type), the minimum free space for a download to start and the versions retained of an agent type such that
+ * the projected peak usage stays under the limit.
+ * <p>An agent type keeps its {@code retain} versions while {@code concurrency} of its newer versions are being
+ * downloaded (the older ones are evicted only once a newer one is published); and the types download together. So the
+ * projected peak of a type is the sum of its largest {@code retain + concurrency} agents; and that of the batch is the
+ * sum over its types. A tar agent extracted as well (see {@link AgentDownloader#extracted}) counts twice: its archive
+ * and its tree.
+ */
+@Slf4j
+final class DownloadPlanner {
+    /** Share of the limit held back for what the plan does not account (logs, journal, container layer).*/
+    static final double SAFETY_FACTOR = 0.9;
+    /** Most downloads of an agent type planned to run together.*/
+    static final int MAX_CONCURRENCY = 4;
+
+    /** A download plan.*/
+    @Value
+    static class Plan {
+        /** Downloads of an agent type to run together (the bulkhead permits).*/
+        int concurrency;
+        /** Free space left over the reservations of the downloads; the share of the limit held back (none when not
+         * limited).*/
+        Storage minFreeSpace;
+        /** Versions retained of an agent type.*/
+        int retain;
+        /** Projected peak usage of the batch.*/
+        Storage projectedPeak;
+        /** The limit planned for; null when not limited.*/
+        Storage limit;
+
+        /**
+         * Does the projected peak stay within the limit (less the safety margin)
+         * @return true when within
+         */
+        boolean fits() {
+            return limit == null || projectedPeak.getBytes() <= (long) (limit.getBytes() * SAFETY_FACTOR);
+        }
+    }
+
+    private DownloadPlanner() {
+    }
+
+    /**
+     * Converts a kubernetes resource quantity (such as {@code 1Gi}, {@code 500M} or {@code 2e9}) into storage
+     * @param quantity resource quantity
+     * @return storage; empty when not given
+     */
+    static Optional<Storage> toStorage(final Quantity quantity) {
+        return Optional.ofNullable(quantity).map(Quantity::getNumber).map(number -> B.toStorage(number.longValue()));
+    }
+
+    /**
+     * Plan the download of the agents; the most versions retained first and then the most concurrency that fit
+     * @param limit the storage limit; empty when not limited
+     * @param agents to be downloaded
+     * @param defaultConcurrency used when not limited
+     * @param defaultRetain the most versions retained of a type
+     * @return the plan; the least (retaining and downloading one at a time) when nothing {@link Plan#fits() fits}
+     */
+    static Plan plan(@NonNull final Optional<Storage> limit, @NonNull final Collection<? extends Artifact> agents,
+                     final int defaultConcurrency, final int defaultRetain) {
+        return plan(limit, agents, defaultConcurrency, defaultRetain, false);
+    }
+
+    /**
+     * Plan the download of the agents; the most versions retained first and then the most concurrency that fit
+     * @param limit the storage limit; empty when not limited
+     * @param agents to be downloaded
+     * @param defaultConcurrency used when not limited
+     * @param defaultRetain the most versions retained of a type
+     * @param extracting when the tar agents are also extracted (into a tree of about their size)
+     * @return the plan; the least (retaining and downloading one at a time) when nothing {@link Plan#fits() fits}
+     */
+    static Plan plan(@NonNull final Optional<Storage> limit, @NonNull final Collection<? extends Artifact> agents,
+                     final int defaultConcurrency, final int defaultRetain, final boolean extracting) {
+        final Map<String, List<Long>> sizesByType = agents.stream().collect(Collectors.groupingBy(
+                agent -> agent.getMetadata().getType(),
+                Collectors.mapping(agent -> footprint(agent, extracting),
+                        Collectors.collectingAndThen(Collectors.toList(),
+                                sizes -> sizes.stream().sorted(Comparator.reverseOrder()).toList()))));
+        if (limit.isEmpty()) {
+            return new Plan(defaultConcurrency, Storage.ZERO, defaultRetain,
+                    peak(sizesByType, defaultConcurrency, defaultRetain), null);
+        }
+        final Storage minFreeSpace = B.toStorage(limit.get().getBytes() - (long) (limit.get().getBytes() * SAFETY_FACTOR));
+        for (int retain = defaultRetain; retain >= 1; retain--) {
+            for (int concurrency = MAX_CONCURRENCY; concurrency >= 1; concurrency--) {
+                final Plan plan = new Plan(concurrency, minFreeSpace, retain,
+                        peak(sizesByType, concurrency, retain), limit.get());
+                if (plan.fits()) return plan;
+            }
+        }
+        final Plan least = new Plan(1, minFreeSpace, 1, peak(sizesByType, 1, 1), limit.get());
+        log.warn("Even the least plan {} does not fit the limit {}", least, limit.get());
+        return least;
+    }
+
+    /** Bytes an agent takes on the volume; twice its size for a tar agent extracted as well.*/
+    private static long footprint(Artifact agent, boolean extracting) {
+        final long size = agent.getFileSize().getBytes();
+        return extracting && agent.getMetadata().getRelativePath().endsWith(TarIndex.SUFFIX) ? 2 * size : size;
+    }
+
+    /** Sum over the types of their largest {@code retain + concurrency} agents.*/
+    private static Storage peak(Map<String, List<Long>> sizesByType, int concurrency, int retain) {
+        return B.toStorage(sizesByType.values().stream()
+                .mapToLong(sizes -> sizes.stream().limit((long) retain + concurrency).mapToLong(Long::longValue).sum())
+                .sum());
+    }
+}
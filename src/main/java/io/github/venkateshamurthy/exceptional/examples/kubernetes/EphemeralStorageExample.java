@@ -1,25 +1,33 @@
 package io.github.venkateshamurthy.exceptional.examples.kubernetes;
 
+import io.kubernetes.client.custom.Quantity;
 import io.kubernetes.client.openapi.ApiClient;
 import io.kubernetes.client.openapi.ApiException;
 import io.kubernetes.client.openapi.apis.CoreV1Api;
 import io.kubernetes.client.openapi.models.V1Container;
 import io.kubernetes.client.openapi.models.V1Pod;
+import io.kubernetes.client.openapi.models.V1PodSpec;
 import io.kubernetes.client.openapi.models.V1ResourceRequirements;
+import io.kubernetes.client.openapi.models.V1VolumeMount;
 import io.kubernetes.client.util.Config;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import static io.github.venkateshamurthy.exceptional.examples.kubernetes.FileUtils.listFiles;
 
@@ -41,11 +49,39 @@ public class EphemeralStorageExample {
     public static final int maxAgentsOfAType = 3;
     /** Agent URI common prefix to be used.*/
     public static final String HCS_AGENTS_STABLE_PACKAGES = "https://softwareupdate.omnissa.com/hcs-agents-stable/packages/";
+    /** Argument to only verify (audit) the agents already present instead of downloading.*/
+    public static final String VERIFY = "--verify";
+    /** Argument to reconcile the agent folder with the manifest (doing only the work needed) instead of a fresh copy.*/
+    public static final String RECONCILE = "--reconcile";
+    /** Argument to only print the reconciliation plan.*/
+    public static final String DRY_RUN = "--dry-run";
+    /** Environment variable with comma separated further destination roots (say other local SSDs) to stripe across.*/
+    public static final String EXTRA_ROOTS = "AGENT_EXTRA_ROOTS";
+    /** Environment variable with a disk backed folder the older agent versions are demoted to.*/
+    public static final String COLD_ROOT = "AGENT_COLD_ROOT";
+    /** Environment variable with comma separated base uris of the peers to fetch the agents from before the CDN.*/
+    public static final String PEERS = "AGENT_PEERS";
+    /** Environment variable with the port to serve the agents to the peers on.*/
+    public static final String PEER_PORT = "AGENT_PEER_PORT";
+    /** Environment variable with the path of an external {@link Manifest} (JSON or sha256sum like) of the artifacts.*/
+    public static final String MANIFEST = "AGENT_MANIFEST";
+    /** Environment variable with the byte budget (a quantity, say 600Mi) of the versions retained of an agent type.*/
+    public static final String TYPE_BUDGET = "AGENT_TYPE_BUDGET";
+    /** Environment variable with the byte budget (a quantity, say 1Gi) of the versions retained of all the types.*/
+    public static final String GLOBAL_BUDGET = "AGENT_GLOBAL_BUDGET";
+    /** Environment variable with a folder the tar agents are extracted into while being downloaded.*/
+    public static final String EXTRACT_FOLDER = "AGENT_EXTRACT_FOLDER";
+    /** Environment variable turning off (with false) the pausing of the downloads under cgroup memory pressure.*/
+    public static final String MEMORY_GATE = "AGENT_MEMORY_GATE";
+    /** Environment variable with the number of agents hashed together with {@value #VERIFY}; else the processors.*/
+    public static final String VERIFY_THREADS = "AGENT_VERIFY_THREADS";
     private static final Map<URI, Agents> inputMap = Agents.getUriToAgentsMap();
     private final AgentDownloader agentDownloader;
 
     /**
-     * Main code
+     * Main code; with {@value #VERIFY} as an argument it only audits the agent folder and exits with
+     * {@link #verify(File, List, File, Catalog, int) its exit code}; with {@value #RECONCILE} (or {@value #DRY_RUN}) it
+     * {@link #reconcile(boolean, URI...) reconciles} the agent folder rather than copy afresh
      * @param args to be used
      * @throws IOException when file / io exception encountered
      * @throws ApiException when kubernates related errors are encountered
@@ -53,29 +89,142 @@ public class EphemeralStorageExample {
     @lombok.Generated
     public static void main(String[] args) throws IOException, ApiException {
         final Duration timeOut = Duration.ofMinutes(5);
-        var ephemeralStorageAgentCopier = EphemeralStorageExample.builder();
+        var ephemeralStorageAgentCopierBuilder = EphemeralStorageExample.builder();
         final String kubeSvcHost = System.getenv("KUBERNETES_SERVICE_HOST");
-        URI[] uris = Arrays.stream(Agents.values()).map(Agents::getUri).toArray(URI[]::new);
-        File targetFolder;
-        if (StringUtils.isNotBlank(kubeSvcHost)) {
-            targetFolder = new File("/agent");
-            ephemeralStorageAgentCopier
-                    .agentDownloader(new AgentDownloader(timeOut, Storage.mb(245),new AtomicReference<>(targetFolder )))
-                    .build().doCopyWithinKubernetes(uris);
-        } else {
-            log.info("No it is not running in kubernetes..its a direct machine on which this program runs");
-            targetFolder = new File("/tmp/agent");
-            ephemeralStorageAgentCopier
-                    .agentDownloader(new AgentDownloader(timeOut, Storage.mb(245),new AtomicReference<>(targetFolder ) ))
-                    .build().doCopy( uris);
+        final Catalog catalog = StringUtils.isNotBlank(System.getenv(MANIFEST))
+                ? Manifest.load(Path.of(System.getenv(MANIFEST))) : Catalog.AGENTS;
+        if (ArrayUtils.contains(args, VERIFY)) {
+            System.exit(verify(new File(StringUtils.isNotBlank(kubeSvcHost) ? "/agent" : "/tmp/agent"),
+                    csvEnv(EXTRA_ROOTS).stream().map(File::new).toList(), fileEnv(COLD_ROOT), catalog,
+                    StringUtils.isNumeric(System.getenv(VERIFY_THREADS)) ? Integer.parseInt(System.getenv(VERIFY_THREADS))
+                            : Runtime.getRuntime().availableProcessors()));
         }
-        var listOfHzeAgents = listFiles(targetFolder,
-                file -> file.getAbsolutePath().contains("-Agent"), Comparator.naturalOrder(),0);
+        URI[] uris = AgentShards.ofThisCompletion(catalog.uris(), catalog);
+        final boolean inKubernetes = StringUtils.isNotBlank(kubeSvcHost);
+        final boolean dryRun = ArrayUtils.contains(args, DRY_RUN);
+        final boolean reconcile = dryRun || ArrayUtils.contains(args, RECONCILE);
+        final File targetFolder = new File(inKubernetes ? "/agent" : "/tmp/agent");
+        final List<File> extraRoots = csvEnv(EXTRA_ROOTS).stream().map(File::new).toList();
+        final List<URI> peers = csvEnv(PEERS).stream().map(URI::create).toList();
+        try (var agentDownloader = AgentDownloader.builder()
+                .timeOut(timeOut)
+                .minFreeSpace(Storage.mb(245))
+                .destinationFolder(new AtomicReference<>(targetFolder))
+                .extraRoots(extraRoots)
+                .coldFolder(fileEnv(COLD_ROOT))
+                .memoryThresholds(memoryThresholds())
+                .peers(peers)
+                .evictionPolicy(evictionPolicy())
+                .catalog(catalog)
+                .extractFolder(fileEnv(EXTRACT_FOLDER))
+                .build();
+             var peerServer = StringUtils.isNumeric(System.getenv(PEER_PORT))
+                     ? new PeerServer(Integer.parseInt(System.getenv(PEER_PORT)), agentDownloader::servable) : null) {
+            var ephemeralStorageAgentCopier = ephemeralStorageAgentCopierBuilder.agentDownloader(agentDownloader).build();
+            if (inKubernetes) {
+                ephemeralStorageAgentCopier.doCopyWithinKubernetes(reconcile, dryRun, uris);
+            } else {
+                log.info("No it is not running in kubernetes..its a direct machine on which this program runs");
+                if (reconcile) {
+                    ephemeralStorageAgentCopier.reconcile(dryRun, uris);
+                } else {
+                    ephemeralStorageAgentCopier.doCopy(uris);
+                }
+            }
+        }
+        var listOfHzeAgents = Stream.concat(Stream.of(targetFolder), extraRoots.stream())
+                .flatMap(root -> listFiles(root, file -> file.getAbsolutePath().contains("-Agent"),
+                        Comparator.naturalOrder(), 0).stream())
+                .toList();
         log.info("**** BEGIN ******");
         log.info("Final List of agents:{}", listOfHzeAgents);
+        log.info("Buffer pool usage:{}", BufferPool.shared().stats());
         log.info("**** COMPLETED ******");
     }
 
+    private static File fileEnv(String name) {
+        return Optional.ofNullable(System.getenv(name)).filter(StringUtils::isNotBlank).map(File::new).orElse(null);
+    }
+
+    /** The default thresholds of the memory gate unless turned off.*/
+    private static CgroupMemoryGate.Thresholds memoryThresholds() {
+        return "false".equalsIgnoreCase(StringUtils.trim(System.getenv(MEMORY_GATE)))
+                ? null : CgroupMemoryGate.Thresholds.DEFAULT;
+    }
+
+    private static List<String> csvEnv(String name) {
+        return Arrays.stream(StringUtils.split(StringUtils.defaultString(System.getenv(name)), ','))
+                .map(String::trim).filter(StringUtils::isNotBlank).toList();
+    }
+
+    /**
+     * A byte budget eviction policy (the least recently accessed evicted first) when either budget is set
+     * @return the policy; null to retain a count of versions
+     */
+    static EvictionPolicy evictionPolicy() {
+        var perType = budget(TYPE_BUDGET);
+        var global = budget(GLOBAL_BUDGET);
+        if (perType.isEmpty() && global.isEmpty()) return null;
+        var unlimited = Storage.of(Long.MAX_VALUE);
+        return EvictionPolicy.byteBudget(perType.orElse(unlimited), global.orElse(unlimited), EvictionPolicy.LAST_ACCESS);
+    }
+
+    private static Optional<Storage> budget(String name) {
+        return Optional.ofNullable(System.getenv(name)).filter(StringUtils::isNotBlank)
+                .map(Quantity::fromString).flatMap(DownloadPlanner::toStorage);
+    }
+
+    /**
+     * Verify the agents present in the folder in parallel without deleting or downloading any.
+     * @param targetFolder agent folder to be audited
+     * @return 0 when intact, 1 when some agent is corrupt and 2 when the verification failed
+     */
+    public static int verify(@NonNull File targetFolder) {
+        return verify(targetFolder, List.of(), null, Catalog.AGENTS);
+    }
+
+    /**
+     * Verify the artifacts of a catalog present on any of the roots in parallel without deleting or downloading any.
+     * @param targetFolder primary agent folder to be audited
+     * @param extraRoots further destination roots
+     * @param coldFolder root of the cold tier; null for none
+     * @param catalog of the artifacts
+     * @return 0 when intact, 1 when some agent is corrupt and 2 when the verification failed
+     */
+    static int verify(@NonNull File targetFolder, @NonNull List<File> extraRoots, File coldFolder,
+                      @NonNull Catalog catalog) {
+        return verify(targetFolder, extraRoots, coldFolder, catalog, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Verify the artifacts of a catalog present on any of the roots in parallel without deleting or downloading any.
+     * @param targetFolder primary agent folder to be audited
+     * @param extraRoots further destination roots
+     * @param coldFolder root of the cold tier; null for none
+     * @param catalog of the artifacts
+     * @param concurrency artifacts hashed together; say more than the processors for a disk backed root
+     * @return 0 when intact, 1 when some agent is corrupt and 2 when the verification failed
+     */
+    static int verify(@NonNull File targetFolder, @NonNull List<File> extraRoots, File coldFolder,
+                      @NonNull Catalog catalog, final int concurrency) {
+        log.info("**** VERIFY ******");
+        if (!targetFolder.isDirectory()) {
+            log.error("Folder is absent:{}", targetFolder);
+            return AgentVerifier.FAILED;
+        }
+        final List<File> roots = Stream.concat(Stream.of(targetFolder), extraRoots.stream().filter(File::isDirectory))
+                .toList();
+        final File cold = coldFolder != null && coldFolder.isDirectory() ? coldFolder : null;
+        try (var destinationRoots = new DestinationRoots(roots, cold, Storage.ZERO, Storage.ZERO)) {
+            var report = new AgentVerifier(destinationRoots, catalog, concurrency).verify();
+            log.info("{}", report);
+            return report.exitCode();
+        } catch (IOException e) {
+            log.error("Unable to verify {}:{}", roots, e.getMessage());
+            return AgentVerifier.FAILED;
+        }
+    }
+
     /**
      * Do agent copy from the uris sent
      * @param uris of the agents to be used for downloading
@@ -84,8 +233,19 @@ public class EphemeralStorageExample {
         agentDownloader.doCopy(true, uris);
     }
 
+    /**
+     * Reconcile the agent folder with the agents of the uris
+     * @param dryRun when set only the plan is logged
+     * @param uris of the agents desired
+     * @return the plan
+     */
+    public Reconciler.Plan reconcile(boolean dryRun, @NonNull URI... uris) {
+        return agentDownloader.reconcile(dryRun, uris);
+    }
+
     @lombok.Generated
-    private void doCopyWithinKubernetes(@NonNull URI... uris) throws IOException, ApiException {
+    private void doCopyWithinKubernetes(boolean reconcile, boolean dryRun, @NonNull URI... uris)
+            throws IOException, ApiException {
         log.info("Running on a kubernetes ...to store at emptyDir at:{}", agentDownloader.getDestinationFolder());
         ApiClient client = Config.defaultClient();
         CoreV1Api api = new CoreV1Api(client);
@@ -97,20 +257,44 @@ public class EphemeralStorageExample {
         log.info("Node Name:{}, Pod Name:{}, POd Namespace:{}", nodeName, podName, namespace);
 
         V1Pod pod = api.readNamespacedPod(podName, namespace).execute();
-        for (V1Container container : Objects.requireNonNull(pod.getSpec()).getContainers()) {
-            V1ResourceRequirements resources = container.getResources();
-            if (resources != null) {
-                log.info("Container:{},Requests:{},Limits:{}", container.getName(),
-                        resources.getRequests(), resources.getLimits());
-                // ephemeral-storage will appear as a key in the map if set
-                if (resources.getRequests() != null && resources.getRequests().containsKey("ephemeral-storage")) {
-                    log.info("Ephemeral storage request: {}", resources.getRequests().get("ephemeral-storage"));
-                }
-                if (resources.getLimits() != null && resources.getLimits().containsKey("ephemeral-storage")) {
-                    log.info("Ephemeral storage limit: {}", resources.getLimits().get("ephemeral-storage"));
-                }
-                doCopy(uris);
+        var limit = ephemeralStorageLimit(Objects.requireNonNull(pod.getSpec()), agentDownloader.getDestinationFolder().get());
+        var plan = DownloadPlanner.plan(limit, Arrays.stream(uris).map(agentDownloader.getCatalog()::of).flatMap(Optional::stream).toList(),
+                agentDownloader.getBulkheadPermits(), agentDownloader.getAgentsOfAType(),
+                agentDownloader.getExtractFolder() != null);
+        log.info("Download plan:{} fits:{}", plan, plan.fits());
+        try (var planned = agentDownloader.planned(plan)) {
+            if (reconcile) {
+                withAgentDownloader(planned).reconcile(dryRun, uris);
+            } else {
+                planned.doCopy(true, uris);
             }
         }
     }
+
+    /**
+     * The storage the agents may take in the pod; the least of the ephemeral-storage limit of the container mounting
+     * the destination and the size limit of the emptyDir mounted
+     * @param spec of the pod
+     * @param destination folder of the agents
+     * @return the limit; empty when neither is set
+     */
+    static Optional<Storage> ephemeralStorageLimit(@NonNull V1PodSpec spec, @NonNull File destination) {
+        var mounting = spec.getContainers().stream()
+                .filter(container -> Optional.ofNullable(container.getVolumeMounts()).orElse(List.of()).stream()
+                        .anyMatch(mount -> destination.toPath().startsWith(mount.getMountPath())))
+                .findFirst().or(() -> spec.getContainers().stream().findFirst());
+        mounting.map(V1Container::getResources).ifPresent(resources -> log.info("Container:{},Requests:{},Limits:{}",
+                mounting.get().getName(), resources.getRequests(), resources.getLimits()));
+        var containerLimit = mounting.map(V1Container::getResources).map(V1ResourceRequirements::getLimits)
+                .map(limits -> limits.get("ephemeral-storage")).flatMap(DownloadPlanner::toStorage);
+        var mounted = mounting.map(V1Container::getVolumeMounts).orElse(List.of()).stream()
+                .filter(mount -> destination.toPath().startsWith(mount.getMountPath()))
+                .map(V1VolumeMount::getName).toList();
+        var sizeLimit = Optional.ofNullable(spec.getVolumes()).orElse(List.of()).stream()
+                .filter(volume -> mounted.contains(volume.getName()) && volume.getEmptyDir() != null)
+                .map(volume -> volume.getEmptyDir().getSizeLimit())
+                .map(DownloadPlanner::toStorage).flatMap(Optional::stream).findFirst();
+        return Stream.of(containerLimit, sizeLimit).flatMap(Optional::stream)
+                .min(Comparator.comparingLong(Storage::getBytes));
+    }
 }
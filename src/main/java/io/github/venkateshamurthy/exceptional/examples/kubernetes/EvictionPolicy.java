@@ -0,0 +1,123 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+import lombok.Value;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the published agents to be evicted once a newer agent is verified and published; so that a download that
+ * fails never leaves its type without a copy. The agent just published and the most worth keeping of every type
+ * are never chosen.
+ */
+@FunctionalInterface
+interface EvictionPolicy {
+    /** The most recently accessed first; the most recently modified breaking a tie.*/
+    Comparator<Candidate> LAST_ACCESS = Comparator.comparingLong(Candidate::getLastAccess).reversed()
+            .thenComparing(Comparator.comparingLong(Candidate::getLastModified).reversed())
+            .thenComparing(Candidate::getFile);
+    /** The highest version first (the version path compared as {@link AgentMetadata#NEWEST_VERSION} does).*/
+    Comparator<Candidate> BY_VERSION = Comparator.comparing(Candidate::getVersion, Reconciler::compareVersions)
+            .reversed().thenComparing(Candidate::getFile);
+    /** The most recently modified first.*/
+    Comparator<Candidate> NEWEST = Comparator.comparingLong(Candidate::getLastModified).reversed()
+            .thenComparing(Candidate::getFile);
+
+    /** A published agent that may be evicted.*/
+    @Value
+    class Candidate {
+        /** The file.*/
+        File file;
+        /** Its agent type.*/
+        String type;
+        /** Size it takes on the volume.*/
+        Storage size;
+        /** Last modified time in millis.*/
+        long lastModified;
+        /** Last access (read, served or published) in millis.*/
+        long lastAccess;
+
+        /** The version path of the file; the path after its type.*/
+        String getVersion() {
+            return StringUtils.substringAfter(file.getPath(), "/packages/" + type + "/");
+        }
+    }
+
+    /**
+     * The candidates to be evicted
+     * @param candidates the published agents by their type
+     * @param justPublished the agent just published; never evicted
+     * @return the candidates to be evicted
+     */
+    List<Candidate> victims(Map<String, List<Candidate>> candidates, File justPublished);
+
+    /**
+     * Retain a number of the newest versions of each type
+     * @param retain versions of a type
+     * @return EvictionPolicy
+     */
+    static EvictionPolicy newest(final int retain) {
+        return (candidates, justPublished) -> {
+            final List<Candidate> victims = new ArrayList<>();
+            candidates.values().forEach(ofAType -> victims.addAll(ranked(ofAType, NEWEST, justPublished).stream()
+                    .skip(Math.max(1, retain)).toList()));
+            return victims;
+        };
+    }
+
+    /**
+     * Retain as many versions of each type as fit a byte budget per type and a global one; the versions the least
+     * worth keeping (in the given order) are evicted first, and across the types the ones ranked the lowest in their
+     * own type (the largest breaking a tie)
+     * @param perType budget of a type
+     * @param global budget of all the types
+     * @param order the most worth keeping first; say {@link #LAST_ACCESS} or {@link #BY_VERSION}
+     * @return EvictionPolicy
+     */
+    static EvictionPolicy byteBudget(@NonNull final Storage perType, @NonNull final Storage global,
+                                     @NonNull final Comparator<Candidate> order) {
+        return (candidates, justPublished) -> {
+            final List<Candidate> victims = new ArrayList<>();
+            final List<Candidate> kept = new ArrayList<>();
+            final Map<Candidate, Integer> rank = new HashMap<>();
+            final Map<String, Integer> keptOfAType = new HashMap<>();
+            long total = 0L;
+            for (List<Candidate> ofAType : candidates.values()) {
+                long used = 0L;
+                for (Candidate candidate : ranked(ofAType, order, justPublished)) {
+                    final long size = candidate.getSize().getBytes();
+                    if (used == 0L || used + size <= perType.getBytes()) {
+                        rank.put(candidate, keptOfAType.merge(candidate.getType(), 1, Integer::sum));
+                        kept.add(candidate);
+                        used += size;
+                    } else {
+                        victims.add(candidate);
+                    }
+                }
+                total += used;
+            }
+            kept.sort(Comparator.comparing((Candidate candidate) -> rank.get(candidate)).reversed()
+                    .thenComparing(Comparator.comparingLong((Candidate candidate) -> candidate.getSize().getBytes())
+                            .reversed()));
+            for (Candidate candidate : kept) {
+                if (total <= global.getBytes()) break;
+                if (rank.get(candidate) == 1) continue; // the last copy of its type (or the one just published)
+                victims.add(candidate);
+                total -= candidate.getSize().getBytes();
+            }
+            return victims;
+        };
+    }
+
+    /** The candidates of a type in order; the one just published first.*/
+    private static List<Candidate> ranked(List<Candidate> ofAType, Comparator<Candidate> order, File justPublished) {
+        return ofAType.stream().sorted(Comparator.comparing((Candidate candidate) ->
+                !candidate.getFile().equals(justPublished)).thenComparing(order)).toList();
+    }
+}
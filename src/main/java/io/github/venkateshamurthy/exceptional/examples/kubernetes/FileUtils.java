@@ -10,20 +10,22 @@ import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.experimental.ExtensionMethod;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.BooleanUtils;
-import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -32,7 +34,6 @@ import java.util.stream.Stream;
 
 import static io.github.venkateshamurthy.exceptional.RxFunction.toCheckedFunction;
 import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
-import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.KB;
 
 /**
  * A common utility to deal with File download
@@ -41,6 +42,8 @@ import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUn
 @ExtensionMethod({RxTry.class, Eithers.class})
 public class FileUtils {
     private static final CheckedFunction<Path, Path> checkedCreateDirectories = toCheckedFunction(Files::createDirectories);
+    /** Suffix of a download in progress; it is moved to its final name only once verified.*/
+    static final String PART_SUFFIX = ".part";
 
     /**
      * Copy file method
@@ -54,6 +57,67 @@ public class FileUtils {
                                                   @NonNull final File out,
                                                   @NonNull final Storage bufferSize,
                                                   @NonNull final Duration timeout) {
+        return copy(in, out, bufferSize, timeout, false);
+    }
+
+    /**
+     * Copy file method
+     * @param in the source {@link URL}
+     * @param out the destination {@link File} where the file is copied to
+     * @param bufferSize is a {@link Storage} instance indicating the buffer size for copying
+     * @param timeout is a {@link Duration} representing the timeout for the copy operation
+     * @param compressAtRest when true the file is written as a {@link CompressedStore} container
+     * @return {@link Either} with the exception encountered or the (logical) bytes of storage accomplished
+     */
+    public static Either<Exception, Storage> copy(@NonNull final URL in,
+                                                  @NonNull final File out,
+                                                  @NonNull final Storage bufferSize,
+                                                  @NonNull final Duration timeout,
+                                                  final boolean compressAtRest) {
+        return copy(in, out, bufferSize, timeout, compressAtRest, TransferGate.OPEN);
+    }
+
+    /**
+     * Copy file method which pauses (keeping the connection and the bytes written) while the gate is closed
+     * @param in the source {@link URL}
+     * @param out the destination {@link File} where the file is copied to
+     * @param bufferSize is a {@link Storage} instance indicating the buffer size for copying
+     * @param timeout is a {@link Duration} representing the timeout for the copy operation excluding the pauses;
+     *                a single pause may last as long
+     * @param compressAtRest when true the file is written as a {@link CompressedStore} container
+     * @param gate consulted before every write
+     * @return {@link Either} with the exception encountered or the (logical) bytes of storage accomplished
+     */
+    static Either<Exception, Storage> copy(@NonNull final URL in,
+                                           @NonNull final File out,
+                                           @NonNull final Storage bufferSize,
+                                           @NonNull final Duration timeout,
+                                           final boolean compressAtRest,
+                                           @NonNull final TransferGate gate) {
+        return copy(in, out, bufferSize, timeout, compressAtRest, gate, null);
+    }
+
+    /**
+     * Copy file method which also tees the incoming bytes into a {@link TarExtractor} (extracting and digesting them
+     * in the same pass); pausing while the gate is closed
+     * @param in the source {@link URL}
+     * @param out the destination {@link File} where the file is copied to
+     * @param bufferSize is a {@link Storage} instance indicating the buffer size for copying
+     * @param timeout is a {@link Duration} representing the timeout for the copy operation excluding the pauses;
+     *                a single pause may last as long
+     * @param compressAtRest when true the file is written as a {@link CompressedStore} container
+     * @param gate consulted before every write
+     * @param extractor fed every chunk written (as received, before any compression); null for none. It is closed
+     *                  and fed no more (leaving the copy to go on) if it fails on a chunk
+     * @return {@link Either} with the exception encountered or the (logical) bytes of storage accomplished
+     */
+    static Either<Exception, Storage> copy(@NonNull final URL in,
+                                           @NonNull final File out,
+                                           @NonNull final Storage bufferSize,
+                                           @NonNull final Duration timeout,
+                                           final boolean compressAtRest,
+                                           @NonNull final TransferGate gate,
+                                           final TarExtractor extractor) {
 
         var either = checkedCreateDirectories.either(out.toPath().getParent(),
                 ()->new Exception("Directories could not be created for "+out));
@@ -61,9 +125,12 @@ public class FileUtils {
 
         final AtomicLong position = new AtomicLong(0L);
         final long start = System.currentTimeMillis();
+        final AtomicLong paused = new AtomicLong(0L);
         final AtomicReference<FileLock> fileLockRef = new AtomicReference<>();
+        final AtomicReference<TarExtractor> tee = new AtomicReference<>(extractor);
 
         return Try.withResources(
+                        () -> BufferPool.shared().acquire(),
                         () -> {
                             URLConnection conn = in.openConnection();
                             conn.setConnectTimeout((int) timeout.toMillis());
@@ -71,7 +138,7 @@ public class FileUtils {
                             return Channels.newChannel(conn.getInputStream());
                         },
                         () -> new FileOutputStream(out, false).getChannel())
-                .of((urlIn, fileChannel) -> {
+                .of((lease, urlIn, fileChannel) -> {
 
                     // Get exclusive file lock to avoid any overwrite on this file (by other process/thread)
                     fileLockRef.set(fileChannel.tryLock());
@@ -83,12 +150,18 @@ public class FileUtils {
                     }
                     log.trace("Obtained exclusive lock; Copying agent file:{} to {},Timeout:{} ms", in.getFile(), out, timeout.toMillis());
 
-                    long bytes;
+                    final CompressedStore.Writer compressor = compressAtRest ? new CompressedStore.Writer(fileChannel) : null;
+                    final ByteBuffer buffer = lease.getBuffer()
+                            .slice(0, (int) Math.min(lease.getBuffer().capacity(), bufferSize.getBytes()));
+                    long bytes = 0L;
                     do {
-                        bytes = fileChannel.transferFrom(urlIn, position.get(), bufferSize.getBytes());
+                        paused.addAndGet(gate.awaitOpen(timeout, bytes).toMillis()); // charged the last write
+                        bytes = compressor == null ? transfer(urlIn, fileChannel, buffer, position.get())
+                                : compressor.transferFrom(urlIn, buffer);
+                        if (tee.get() != null && bytes > 0) tee.set(tee(tee.get(), buffer.flip(), out)); // the chunk just written
                         position.addAndGet(bytes);
                         //log.info("Copied {} so far..{}", in.getFile(), position.get());
-                        final long currentTime = System.currentTimeMillis();
+                        final long currentTime = System.currentTimeMillis() - paused.get(); // the pauses are not timed
                         if (Thread.interrupted()) {
                             throw new InterruptedIOException(Thread.currentThread().getName() +
                                     "; Interrupted and cancelled at position: " + position.get() +
@@ -101,6 +174,7 @@ public class FileUtils {
                             );
                         }
                     } while (bytes > 0);
+                    if (compressor != null) compressor.close();
                     return B.toStorage(position.get()); //position always gives in bytes
                 })
                 .andFinallyTry(() -> {
@@ -111,22 +185,58 @@ public class FileUtils {
                 .mapLeft(t -> (t instanceof Exception) ? (Exception) t : new Exception(t));
     }
 
-    static synchronized void cleanupDirectory(@NonNull final File directoryPath) {
-        if (directoryPath.exists()) {
-            try (Stream<Path> paths = Files.walk(directoryPath.toPath())) {
-                OptionalInt deletedFiles = paths
-                        .sorted(Comparator.reverseOrder())
-                        .map(Path::toFile)
-                        .filter(f -> !f.equals(directoryPath)) // Do not delete the base folder but remove all its children contents
-                        .map(File::delete)
-                        .mapToInt(BooleanUtils::toInteger)
-                        .reduce(Integer::sum);
-                deletedFiles.ifPresent(deletedCount ->
-                        log.info("Cleaned up all internal files and folder :{}", deletedCount));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /** Feeds the chunk to the extractor; closing it (and returning null) when it fails, as the copy goes on.*/
+    private static TarExtractor tee(TarExtractor extractor, ByteBuffer chunk, File out) {
+        try {
+            extractor.accept(chunk);
+            return extractor;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to extract {} while copying; it is read once more when copied:{}", out, e.getMessage());
+            extractor.close();
+            return null;
+        }
+    }
+
+    /** Reads once into the (pooled) buffer and writes it all at the position.*/
+    private static long transfer(ReadableByteChannel in, FileChannel out, ByteBuffer buffer, long position)
+            throws IOException {
+        buffer.clear();
+        int read = in.read(buffer);
+        if (read <= 0) return 0L;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return read;
+    }
+
+    /**
+     * Computes the hex digest of the logical content of a file streaming it through the {@link MessageDigest}
+     * with a buffer leased from the {@link BufferPool#shared() shared pool}
+     * @param file (plain or {@link CompressedStore compressed}) to be digested
+     * @param algorithm of the digest such as SHA-256
+     * @return lower case hex representation of the digest
+     */
+    @SneakyThrows
+    static String hexDigest(@NonNull final Path file, @NonNull final String algorithm) {
+        final MessageDigest digest = MessageDigest.getInstance(algorithm);
+        try (BufferPool.Lease lease = BufferPool.shared().acquire();
+             SeekableByteChannel in = CompressedStore.open(file)) {
+            final ByteBuffer buffer = lease.getBuffer();
+            while (in.read(buffer.clear()) >= 0) {
+                digest.update(buffer.flip());
             }
         }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Check if the file is an unpublished (in progress) download
+     * @param file to be checked
+     * @return true for a partial download
+     */
+    static boolean isPartial(@NonNull final File file) {
+        return file.getName().endsWith(PART_SUFFIX);
     }
 
     static List<File> listFiles(@NonNull final File agentDir,
@@ -151,46 +261,4 @@ public class FileUtils {
         }
         return agentFiles;
     }
-
-    /**
-     * Gather disk space periodically to check if the disk ahs free space for copying other files
-     *
-     * @param volumeMount shared volume/drive
-     */
-    @SneakyThrows
-    static Map<String, Storage> gatherDiskSpace(@NonNull final File volumeMount) {
-        Process p = new ProcessBuilder("df", "-k", volumeMount.getAbsolutePath()).start();
-        Map<String, Storage> map = new HashMap<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-            String title = br.readLine();
-            //log.info("title:{}", title);
-            if (StringUtils.isNotBlank(title)) {
-                Scanner tScanner = new Scanner(title);
-                String value = br.readLine();
-                //log.info("value:{}", value);
-                if (StringUtils.isNotBlank(value)) {
-                    Scanner vScanner = new Scanner(value);
-                    while (tScanner.hasNext()) {
-                        var head = tScanner.next();
-                        if (vScanner.hasNextLong())
-                            // please note you are doing a df -k above and hence this storage is STORAGE.KB
-                            map.put(head, KB.toStorage(vScanner.nextLong()));
-                        else if (vScanner.hasNext()) vScanner.next();
-                    }
-                    vScanner.close();
-                }
-                tScanner.close();
-            }
-        }
-        try {
-            p.waitFor(2, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-        // Normalize keys for availability between mac and linux
-        if (map.containsKey("Avail") && !map.containsKey("Available"))
-            map.put("Available", map.get("Avail"));
-        log.debug("Available space under {} is :{}", volumeMount, map.get("Available"));
-        return map;
-    }
 }
\ No newline at end of file
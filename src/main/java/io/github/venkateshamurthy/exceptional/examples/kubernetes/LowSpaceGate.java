@@ -0,0 +1,109 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * A {@link TransferGate} driven by the free space readings of a volume with hysteresis.
+ * <p>The headroom is the free space less what the downloads in flight still have to write (their reservation);
+ * so it drops only when some other writer fills the volume. The gate closes when the headroom falls below the
+ * low-water mark and opens again only once it is back above the high-water mark.
+ */
+@Slf4j
+class LowSpaceGate implements TransferGate, AutoCloseable {
+    private final Supplier<Storage> reserved;
+    private final Storage lowWaterMark;
+    private final Storage highWaterMark;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition opened = lock.newCondition();
+    private final Disposable subscription;
+    private volatile boolean open = true;
+
+    /**
+     * Constructor
+     * @param readings of the volume such as those published by {@link VolumeMonitor#readings()}
+     * @param reserved space yet to be written by the downloads in flight
+     * @param lowWaterMark headroom below which transfers pause
+     * @param highWaterMark headroom above which paused transfers resume
+     */
+    LowSpaceGate(@NonNull final Observable<Map<String, Storage>> readings, @NonNull final Supplier<Storage> reserved,
+                 @NonNull final Storage lowWaterMark, @NonNull final Storage highWaterMark) {
+        if (lowWaterMark.isGreaterThan(highWaterMark)) {
+            throw new IllegalArgumentException("Low-water mark " + lowWaterMark + " is above the high-water mark " + highWaterMark);
+        }
+        this.reserved = reserved;
+        this.lowWaterMark = lowWaterMark;
+        this.highWaterMark = highWaterMark;
+        this.subscription = readings.subscribe(reading -> onFreeSpace(reading.get(VolumeMonitor.AVAILABLE)),
+                e -> log.warn("Free space readings failed:{}", e.getMessage()));
+    }
+
+    /**
+     * Is the gate open
+     * @return true when transfers may proceed
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    void onFreeSpace(Storage available) {
+        if (available == null) return;
+        final long headroom = available.getBytes() - reserved.get().getBytes();
+        lock.lock();
+        try {
+            if (open && headroom < lowWaterMark.getBytes()) {
+                open = false;
+                log.warn("Pausing transfers; headroom:{} fell below the low-water mark:{}", B.toStorage(headroom), lowWaterMark);
+            } else if (!open && headroom >= highWaterMark.getBytes()) {
+                open = true;
+                opened.signalAll();
+                log.info("Resuming transfers; headroom:{} is above the high-water mark:{}", B.toStorage(headroom), highWaterMark);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Duration awaitOpen(@NonNull final Duration maxPause) throws InterruptedException, TimeoutException {
+        if (open) return Duration.ZERO;
+        final long start = System.nanoTime();
+        long nanos = maxPause.toNanos();
+        lock.lockInterruptibly();
+        try {
+            while (!open) {
+                if (nanos <= 0L) {
+                    throw new TimeoutException(Thread.currentThread().getName() + "; Paused for low space beyond " + maxPause);
+                }
+                nanos = opened.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    /** Stop following the readings.*/
+    @Override
+    public void close() {
+        subscription.dispose();
+        lock.lock();
+        try {
+            open = true;
+            opened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
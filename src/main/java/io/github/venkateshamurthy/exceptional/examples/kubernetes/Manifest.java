@@ -0,0 +1,305 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.EqualsAndHashCode;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * A {@link Catalog} of artifacts read from an external manifest; for catalogs of thousands of packages across many
+ * types that are not to be hard-coded as {@link Agents}.
+ * <p>Two formats are read, streaming (never as a tree):
+ * <ul>
+ *   <li>JSON: {@code {"base": "https://.../packages/", "artifacts": [{"path": "<type>/<version>/<build>/<file>",
+ *   "size": 12206080, "sha256": "ee85..."}, ...]}}</li>
+ *   <li>sha256sum like lines of {@code <sha256> <size> <path>}; with an optional {@code # base <uri>} line and
+ *   {@code #} comments</li>
+ * </ul>
+ * The paths are relative to the base; which (as the destination roots key the agent types by it) is a
+ * {@code /packages/} folder, {@link Agents#HCS_AGENTS_STABLE_PACKAGES} by default.
+ * <p>The index is kept compact in parallel arrays sorted by the path: the type names interned into a table, the sizes
+ * as primitives and the digests as raw bytes; an {@link Artifact} view of an entry is made only when looked up and its
+ * {@link AgentMetadata} parsed once, on its first use.
+ */
+@Slf4j
+final class Manifest implements Catalog {
+    /** Bytes of a SHA-256 digest.*/
+    static final int DIGEST_LENGTH = 32;
+    /** Directive of the base uri in the sha256sum format.*/
+    static final String BASE_DIRECTIVE = "# base ";
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final String base;
+    private final String basePath;
+    private final String[] typeNames;
+    private final int[] types;
+    private final String[] paths;
+    private final long[] sizes;
+    private final byte[] digests;
+    /** The metadata parsed so far; by the index (immutable, so published as is).*/
+    private final AgentMetadata[] metadata;
+
+    private Manifest(String base, Loader loader) {
+        this.base = base;
+        this.basePath = URI.create(base).getRawPath();
+        final int count = loader.count;
+        final Integer[] order = IntStream.range(0, count).boxed().toArray(Integer[]::new);
+        Arrays.sort(order, (left, right) -> loader.paths[left].compareTo(loader.paths[right]));
+        this.typeNames = loader.typeIds.keySet().toArray(String[]::new);
+        loader.typeIds.forEach((name, id) -> typeNames[id] = name);
+        this.types = new int[count];
+        this.paths = new String[count];
+        this.sizes = new long[count];
+        this.digests = new byte[count * DIGEST_LENGTH];
+        this.metadata = new AgentMetadata[count];
+        for (int i = 0; i < count; i++) {
+            final int from = order[i];
+            if (i > 0 && loader.paths[from].equals(paths[i - 1])) {
+                throw new IllegalArgumentException("Duplicate artifact in the manifest:" + loader.paths[from]);
+            }
+            types[i] = loader.types[from];
+            paths[i] = loader.paths[from];
+            sizes[i] = loader.sizes[from];
+            System.arraycopy(loader.digests, from * DIGEST_LENGTH, digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+        }
+    }
+
+    /**
+     * Load a manifest; a {@code .json} file as JSON and any other as sha256sum like lines
+     * @param file of the manifest
+     * @return Manifest
+     * @throws IOException when it cannot be read or is malformed
+     */
+    static Manifest load(@NonNull final Path file) throws IOException {
+        final long start = System.nanoTime();
+        try (InputStream in = Files.newInputStream(file)) {
+            final Manifest manifest = file.getFileName().toString().endsWith(".json") ? readJson(in) : readSums(in);
+            log.info("Loaded {} artifacts of {} types from {} in {} ms", manifest.size(), manifest.typeNames.length,
+                    file, (System.nanoTime() - start) / 1_000_000L);
+            return manifest;
+        }
+    }
+
+    /**
+     * Read a JSON manifest
+     * @param in of the manifest
+     * @return Manifest
+     * @throws IOException when it cannot be read or is malformed
+     */
+    static Manifest readJson(@NonNull final InputStream in) throws IOException {
+        final Loader loader = new Loader();
+        String base = Agents.HCS_AGENTS_STABLE_PACKAGES;
+        try (JsonParser parser = JSON.createParser(in)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                final JsonToken value = parser.nextToken();
+                if ("base".equals(field)) {
+                    base = parser.getText();
+                } else if ("artifacts".equals(field)) {
+                    expect(parser, value, JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readArtifact(parser, loader);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new Manifest(checkBase(base), loader);
+    }
+
+    private static void readArtifact(JsonParser parser, Loader loader) throws IOException {
+        String path = null;
+        String sha256 = null;
+        long size = -1L;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "path" -> path = parser.getText();
+                case "size" -> size = parser.getLongValue();
+                case "sha256" -> sha256 = parser.getText();
+                default -> parser.skipChildren();
+            }
+        }
+        loader.add(path, size, sha256);
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but found " + actual + " at " + parser.currentLocation());
+        }
+    }
+
+    /**
+     * Read a sha256sum like manifest
+     * @param in of the manifest
+     * @return Manifest
+     * @throws IOException when it cannot be read or is malformed
+     */
+    static Manifest readSums(@NonNull final InputStream in) throws IOException {
+        final Loader loader = new Loader();
+        String base = Agents.HCS_AGENTS_STABLE_PACKAGES;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(BASE_DIRECTIVE)) {
+                    base = line.substring(BASE_DIRECTIVE.length()).trim();
+                } else if (StringUtils.isNotBlank(line) && !line.startsWith("#")) {
+                    final String[] columns = StringUtils.split(line, " \t", 3);
+                    if (columns.length < 3) throw new IOException("Not a <sha256> <size> <path> line:" + line);
+                    loader.add(StringUtils.removeStart(columns[2].trim(), "*"), Long.parseLong(columns[1]), columns[0]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed size in the manifest:" + e.getMessage(), e);
+        }
+        return new Manifest(checkBase(base), loader);
+    }
+
+    private static String checkBase(String base) {
+        if (!URI.create(base).getRawPath().endsWith("/packages/")) {
+            throw new IllegalArgumentException("The base of a manifest is to be a /packages/ folder:" + base);
+        }
+        return base;
+    }
+
+    @Override
+    public Optional<Artifact> of(@NonNull final URI uri) {
+        final String text = uri.toString();
+        return text.startsWith(base) ? find(text.substring(base.length())) : Optional.empty();
+    }
+
+    @Override
+    public Optional<Artifact> ofPath(@NonNull final String relativePath) {
+        return relativePath.startsWith(basePath) ? find(relativePath.substring(basePath.length())) : Optional.empty();
+    }
+
+    private Optional<Artifact> find(String path) {
+        final int index = Arrays.binarySearch(paths, path);
+        return index < 0 ? Optional.empty() : Optional.of(new Entry(this, index));
+    }
+
+    @Override
+    public URI[] uris() {
+        return Arrays.stream(paths).map(path -> URI.create(base + path)).toArray(URI[]::new);
+    }
+
+    @Override
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * Number of the distinct types
+     * @return count
+     */
+    int types() {
+        return typeNames.length;
+    }
+
+    @Override
+    public String toString() {
+        return "Manifest(" + base + ", artifacts=" + size() + ", types=" + types() + ")";
+    }
+
+    /** A view of an entry; equal to another view of the same entry.*/
+    @EqualsAndHashCode
+    private static final class Entry implements Artifact {
+        private final Manifest manifest;
+        private final int index;
+
+        private Entry(Manifest manifest, int index) {
+            this.manifest = manifest;
+            this.index = index;
+        }
+
+        @Override
+        public URI getUri() {
+            return URI.create(manifest.base + manifest.paths[index]);
+        }
+
+        @Override
+        public Storage getFileSize() {
+            return B.toStorage(manifest.sizes[index]);
+        }
+
+        @Override
+        public String getCheckSum() {
+            return HEX.formatHex(manifest.digests, index * DIGEST_LENGTH, (index + 1) * DIGEST_LENGTH);
+        }
+
+        @Override
+        public AgentMetadata getMetadata() {
+            AgentMetadata parsed = manifest.metadata[index];
+            if (parsed == null) {
+                final String[] segments = StringUtils.split(manifest.paths[index], '/');
+                parsed = new AgentMetadata(manifest.typeNames[manifest.types[index]], segments[1], segments[2],
+                        manifest.basePath + manifest.paths[index], getFileSize());
+                manifest.metadata[index] = parsed;
+            }
+            return parsed;
+        }
+
+        @Override
+        public String toString() {
+            return manifest.paths[index];
+        }
+    }
+
+    /** Grows the parallel arrays while reading; interning the type names.*/
+    private static final class Loader {
+        private final Map<String, Integer> typeIds = new HashMap<>();
+        private int[] types = new int[1024];
+        private String[] paths = new String[1024];
+        private long[] sizes = new long[1024];
+        private byte[] digests = new byte[1024 * DIGEST_LENGTH];
+        private int count;
+
+        private void add(String path, long size, String sha256) throws IOException {
+            if (StringUtils.isBlank(path) || size < 0L || sha256 == null || sha256.length() != 2 * DIGEST_LENGTH) {
+                throw new IOException("Incomplete artifact in the manifest:" + path);
+            }
+            if (path.startsWith("/") || StringUtils.countMatches(path, '/') < 3) {
+                throw new IOException("Not a <type>/<version>/<build>/<file> path:" + path);
+            }
+            if (count == paths.length) {
+                types = Arrays.copyOf(types, count * 2);
+                paths = Arrays.copyOf(paths, count * 2);
+                sizes = Arrays.copyOf(sizes, count * 2);
+                digests = Arrays.copyOf(digests, count * 2 * DIGEST_LENGTH);
+            }
+            types[count] = typeIds.computeIfAbsent(StringUtils.substringBefore(path, "/"), name -> typeIds.size());
+            paths[count] = path;
+            sizes[count] = size;
+            try {
+                System.arraycopy(HEX.parseHex(sha256), 0, digests, count * DIGEST_LENGTH, DIGEST_LENGTH);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Not a sha256 digest for " + path + ":" + sha256, e);
+            }
+            count++;
+        }
+    }
+}
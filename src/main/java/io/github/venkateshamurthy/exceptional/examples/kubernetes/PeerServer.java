@@ -0,0 +1,197 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.vavr.control.Either;
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.KB;
+
+/**
+ * An embedded http server sharing the verified agents of a pod with its peers; so that an agent is fetched from
+ * the CDN once rather than once per replica.
+ * <p>{@code GET /agents/<path of the agent uri>} streams the (logical) content of the agent through a pooled buffer
+ * (the response body of the jdk http server is a stream, so a {@link FileChannel#transferTo} would copy as well) and
+ * carries its checksum in the {@value #CHECKSUM_HEADER} header; which a {@code HEAD} lets a peer {@link #fetch check}
+ * before fetching.
+ */
+@Slf4j
+class PeerServer implements AutoCloseable {
+    /** Context the agents are served under.*/
+    static final String CONTEXT = "/agents";
+    /** Header carrying the checksum of the agent served.*/
+    static final String CHECKSUM_HEADER = "X-Agent-Checksum";
+    private static final int THREADS = 4;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private final Function<String, Optional<Artifact>> lookup;
+
+    /** A verified artifact to be served.*/
+    @Value
+    static class Artifact {
+        /** The (plain or {@link CompressedStore compressed}) file.*/
+        File file;
+        /** Checksum of its logical content.*/
+        String checkSum;
+    }
+
+    /**
+     * Start serving
+     * @param port to listen on; 0 for any free port
+     * @param lookup of a verified artifact by its path (that of the agent uri)
+     * @throws IOException when the server cannot be bound
+     */
+    PeerServer(final int port, @NonNull final Function<String, Optional<Artifact>> lookup) throws IOException {
+        this.lookup = lookup;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(CONTEXT, this::handle);
+        server.setExecutor(executor);
+        server.start();
+        log.info("Serving agents to peers at port {}", getPort());
+    }
+
+    /**
+     * The port listened on
+     * @return port
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final String method = exchange.getRequestMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1);
+                return;
+            }
+            final String path = exchange.getRequestURI().getPath().substring(CONTEXT.length());
+            final Optional<Artifact> artifact = path.contains("..") ? Optional.empty() : lookup.apply(path);
+            if (artifact.isEmpty()) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                return;
+            }
+            final File file = artifact.get().getFile();
+            exchange.getResponseHeaders().set(CHECKSUM_HEADER, artifact.get().getCheckSum());
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            if ("HEAD".equals(method)) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+                return;
+            }
+            try (SeekableByteChannel in = CompressedStore.open(file.toPath())) {
+                final long size = in.size();
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, size);
+                final WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+                try (var lease = BufferPool.shared().acquire()) {
+                    final ByteBuffer buffer = lease.getBuffer();
+                    for (buffer.clear(); in.read(buffer) > 0; buffer.clear()) {
+                        buffer.flip();
+                        while (buffer.hasRemaining()) out.write(buffer);
+                    }
+                }
+                log.debug("Served {} ({}) to {}", file, B.toStorage(size), exchange.getRemoteAddress());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to serve {} to {}:{}", exchange.getRequestURI(), exchange.getRemoteAddress(), e.getMessage());
+        }
+    }
+
+    /**
+     * Fetch an agent from the first peer holding it (with the expected checksum) into the destination
+     * @param peers base uris of the peers such as {@code http://10.1.2.3:8089/}
+     * @param path of the agent uri
+     * @param checkSum expected checksum (SHA-256) of the agent
+     * @param out the destination (part) file
+     * @param timeout per peer
+     * @param compressAtRest when true the file is written as a {@link CompressedStore} container
+     * @param gate consulted before every write
+     * @return {@link Either} with the exception encountered or the bytes fetched; a right only for a destination
+     * verified against the checksum (so not to be hashed again)
+     */
+    static Either<Exception, Storage> fetch(@NonNull final List<URI> peers, @NonNull final String path,
+                                            @NonNull final String checkSum, @NonNull final File out,
+                                            @NonNull final Duration timeout, final boolean compressAtRest,
+                                            @NonNull final TransferGate gate) {
+        for (URI peer : peers) {
+            final Try<URL> url = Try.of(() -> urlOf(peer, path));
+            if (url.isFailure() || !holds(url.get(), checkSum, timeout)) continue;
+
+            final Either<Exception, Storage> result = FileUtils.copy(url.get(), out, KB.toStorage(8), timeout,
+                    compressAtRest, gate);
+            if (result.isRight() && Try.of(() -> FileUtils.hexDigest(out.toPath(), "SHA-256"))
+                    .filter(checkSum::equalsIgnoreCase).isSuccess()) {
+                log.info("Fetched {} from peer {}", path, peer);
+                return result;
+            }
+            log.warn("Fetching {} from peer {} failed:{}", path, peer,
+                    result.fold(Exception::getMessage, ignore -> "checksum did not match"));
+            Try.run(() -> Files.deleteIfExists(out.toPath()));
+        }
+        return Either.left(new NoSuchElementException("None of the peers " + peers + " holds " + path));
+    }
+
+    /**
+     * The url of an agent at a peer; under the path of its base uri
+     * @param peer base uri of the peer
+     * @param path of the agent uri
+     * @return url
+     * @throws MalformedURLException when the peer is not a url
+     */
+    static URL urlOf(@NonNull final URI peer, @NonNull final String path) throws MalformedURLException {
+        return URI.create(StringUtils.appendIfMissing(peer.toString(), "/"))
+                .resolve(StringUtils.removeStart(CONTEXT, "/") + path).toURL();
+    }
+
+    /** Does the peer hold the agent with the checksum.*/
+    private static boolean holds(URL url, String checkSum, Duration timeout) {
+        return Try.of(() -> {
+            final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("HEAD");
+            conn.setConnectTimeout((int) timeout.toMillis());
+            conn.setReadTimeout((int) timeout.toMillis());
+            try {
+                return conn.getResponseCode() == HttpURLConnection.HTTP_OK &&
+                        checkSum.equalsIgnoreCase(conn.getHeaderField(CHECKSUM_HEADER));
+            } finally {
+                conn.disconnect();
+            }
+        }).onFailure(e -> log.debug("Peer {} is not reachable:{}", url, e.getMessage())).getOrElse(false);
+    }
+
+    /** Stop serving.*/
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        log.info("Stopped serving agents to peers");
+    }
+}
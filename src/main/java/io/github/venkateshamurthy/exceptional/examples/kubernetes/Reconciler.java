@@ -0,0 +1,337 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * Compares the desired agents (the newest {@code retain} versions of each type in the manifest) with the files
+ * observed on the destination roots and computes a minimal {@link Plan} of {@link Action actions}.
+ * <p>An agent present with the expected size and a cached checksum (kept as a user extended attribute of the file,
+ * or in a hidden {@link #CHECKSUMS sidecar file} of its root where the volume does not support them) is kept as is;
+ * one without is verified; one absent or of a different size is downloaded. Files not desired are deleted after the downloads unless the free space needs them
+ * gone before.
+ */
+@Slf4j
+class Reconciler {
+    /** Name of the user extended attribute caching the verified checksum of an agent file.*/
+    static final String CHECKSUM_ATTRIBUTE = "agent.sha256";
+    /** Hidden file of a root caching the checksums (by the relative path) where the volume has no user attributes.*/
+    static final String CHECKSUMS = "." + CHECKSUM_ATTRIBUTE;
+
+    private final int retain;
+    private final Catalog catalog;
+
+    /**
+     * Constructor
+     * @param retain versions of an agent type desired
+     */
+    Reconciler(final int retain) {
+        this(retain, Catalog.AGENTS);
+    }
+
+    /**
+     * Constructor
+     * @param retain versions of an agent type desired
+     * @param catalog of the artifacts
+     */
+    Reconciler(final int retain, @NonNull final Catalog catalog) {
+        this.retain = Math.max(1, retain);
+        this.catalog = catalog;
+    }
+
+    /** Reconciliation actions.*/
+    enum Action {
+        /** Present, of the expected size and with a matching cached checksum.*/
+        KEEP,
+        /** Present and of the expected size; but yet to be hashed.*/
+        VERIFY,
+        /** Absent or not of the expected size.*/
+        DOWNLOAD,
+        /** Not desired (or to be replaced).*/
+        DELETE
+    }
+
+    /** An action on an agent (or a file).*/
+    @Value
+    static class Step {
+        /** Action to be taken.*/
+        Action action;
+        /** The agent; null for a file deleted that is not an agent of the manifest.*/
+        Artifact agent;
+        /** The file; null for an agent to be downloaded.*/
+        File file;
+        /** Bytes downloaded or freed.*/
+        Storage size;
+        /** Why.*/
+        String reason;
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %s (%s) %s", action, file != null ? file : agent.getUri(), size, reason);
+        }
+    }
+
+    /** A reconciliation plan.*/
+    @Value
+    static class Plan {
+        /** Deletions the downloads depend on for their space (or that replace a file).*/
+        List<Step> beforeDownloads;
+        /** Keep, verify and download steps; run in parallel.*/
+        List<Step> steps;
+        /** Deletions left for after the downloads; so that an older version stays until the newer is published.*/
+        List<Step> afterDownloads;
+
+        /**
+         * Number of steps by action
+         * @return map of action to count
+         */
+        Map<Action, Long> summary() {
+            return Stream.of(beforeDownloads, steps, afterDownloads).flatMap(List::stream)
+                    .collect(Collectors.groupingBy(Step::getAction, () -> new EnumMap<>(Action.class),
+                            Collectors.counting()));
+        }
+
+        /**
+         * Is there nothing to be done but keep
+         * @return true when in the desired state
+         */
+        boolean isSteady() {
+            return summary().keySet().stream().allMatch(Action.KEEP::equals);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder text = new StringBuilder(summary().toString());
+            beforeDownloads.forEach(step -> text.append("\n  1:").append(step));
+            steps.forEach(step -> text.append("\n  2:").append(step));
+            afterDownloads.forEach(step -> text.append("\n  3:").append(step));
+            return text.toString();
+        }
+    }
+
+    /**
+     * The desired agents of a manifest
+     * @param uris of the manifest
+     * @return the newest {@code retain} versions of each agent type
+     */
+    List<Artifact> desired(@NonNull final URI... uris) {
+        return Arrays.stream(uris).distinct().map(catalog::of).flatMap(Optional::stream)
+                .collect(Collectors.groupingBy(agent -> agent.getMetadata().getType(), Collectors.toList()))
+                .values().stream()
+                .flatMap(ofAType -> ofAType.stream().sorted(Comparator.comparing(Artifact::getMetadata, AgentMetadata.NEWEST_VERSION))
+                        .limit(retain))
+                .toList();
+    }
+
+    /**
+     * Compute the plan
+     * @param uris of the manifest
+     * @param observed published files by their path relative to a root
+     * @param available free space across the destination volumes
+     * @param minFreeSpace to be left free by the downloads
+     * @return Plan
+     */
+    Plan plan(@NonNull final URI[] uris, @NonNull final Map<String, File> observed, @NonNull final Storage available,
+              @NonNull final Storage minFreeSpace) {
+        final List<Step> before = new ArrayList<>();
+        final List<Step> steps = new ArrayList<>();
+        final List<Step> optional = new ArrayList<>();
+        final Set<String> wanted = new HashSet<>();
+        long downloads = 0L;
+        for (Artifact agent : desired(uris)) {
+            final String relative = agent.getMetadata().getRelativePath();
+            wanted.add(relative);
+            final File file = observed.get(relative);
+            if (file == null) {
+                steps.add(new Step(Action.DOWNLOAD, agent, null, agent.getFileSize(), "absent"));
+                downloads += agent.getFileSize().getBytes();
+                continue;
+            }
+            final long size = Try.of(() -> CompressedStore.logicalSize(file.toPath())).getOrElse(-1L);
+            if (size != agent.getFileSize().getBytes()) {
+                before.add(new Step(Action.DELETE, agent, file, B.toStorage(file.length()), "size " + size));
+                steps.add(new Step(Action.DOWNLOAD, agent, null, agent.getFileSize(), "replacing"));
+                downloads += agent.getFileSize().getBytes();
+            } else if (agent.getCheckSum().equalsIgnoreCase(cachedChecksum(rootOf(file, relative), file).orElse(""))) {
+                steps.add(new Step(Action.KEEP, agent, file, agent.getFileSize(), "checksum cached"));
+            } else {
+                steps.add(new Step(Action.VERIFY, agent, file, agent.getFileSize(), "checksum not cached"));
+            }
+        }
+        observed.forEach((relative, file) -> {
+            if (wanted.contains(relative)) return;
+            final Artifact agent = catalog.ofPath(relative).orElse(null);
+            optional.add(new Step(Action.DELETE, agent, file, B.toStorage(file.length()),
+                    agent == null ? "not an agent" : "beyond the newest " + retain));
+        });
+
+        // free (the largest first) only as much as the downloads need before them
+        optional.sort(Comparator.comparingLong((Step step) -> step.getSize().getBytes()).reversed());
+        long free = available.getBytes() + before.stream().mapToLong(step -> step.getSize().getBytes()).sum();
+        final long need = downloads == 0L ? 0L : downloads + minFreeSpace.getBytes();
+        final List<Step> after = new ArrayList<>();
+        for (Step step : optional) {
+            if (free < need) {
+                before.add(step);
+                free += step.getSize().getBytes();
+            } else {
+                after.add(step);
+            }
+        }
+        return new Plan(List.copyOf(before), List.copyOf(steps), List.copyOf(after));
+    }
+
+    /**
+     * The checksum cached for a file if it has not been modified since
+     * @param root the destination root of the file
+     * @param file agent file
+     * @return checksum
+     */
+    static Optional<String> cachedChecksum(@NonNull final File root, @NonNull final File file) {
+        final String stamped = Try.of(() -> {
+            final UserDefinedFileAttributeView view = view(file);
+            final ByteBuffer value = ByteBuffer.allocate(view.size(CHECKSUM_ATTRIBUTE));
+            view.read(CHECKSUM_ATTRIBUTE, value);
+            return new String(value.array(), StandardCharsets.UTF_8);
+        }).getOrElse(() -> sidecar(root).getProperty(relativeTo(root, file)));
+        return Optional.ofNullable(stamped)
+                .filter(value -> stamp(file).equals(StringUtils.substringBeforeLast(value, ":")))
+                .map(value -> StringUtils.substringAfterLast(value, ":"));
+    }
+
+    /**
+     * Cache the (verified) checksum of a file
+     * @param root the destination root of the file
+     * @param file agent file
+     * @param checkSum verified checksum
+     */
+    static void cacheChecksum(@NonNull final File root, @NonNull final File file, @NonNull final String checkSum) {
+        final String stamped = stamp(file) + ":" + checkSum;
+        Try.run(() -> view(file).write(CHECKSUM_ATTRIBUTE, ByteBuffer.wrap(stamped.getBytes(StandardCharsets.UTF_8))))
+                .orElse(() -> Try.run(() -> keepInSidecar(root, file, checkSum)))
+                .onFailure(e -> log.debug("Unable to cache the checksum of {}:{}", file, e.getMessage()));
+    }
+
+    /** The size and modification time of a file; for a cached checksum to be trusted.*/
+    private static String stamp(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+    private static String relativeTo(File root, File file) {
+        return "/" + root.toPath().relativize(file.toPath());
+    }
+
+    /** The root of an observed file; the path of the file less its relative path.*/
+    private static File rootOf(File file, String relative) {
+        return new File(StringUtils.removeEnd(file.getPath(), relative.replace('/', File.separatorChar)));
+    }
+
+    /** The checksums kept in the sidecar of a root; empty when it has none.*/
+    private static synchronized Properties sidecar(File root) {
+        final Properties checksums = new Properties();
+        Try.withResources(() -> Files.newBufferedReader(new File(root, CHECKSUMS).toPath(), StandardCharsets.UTF_8))
+                .of(reader -> { checksums.load(reader); return checksums; });
+        return checksums;
+    }
+
+    /**
+     * Keep the checksum of a file in the sidecar of its root; rewritten atomically and pruned of the files gone
+     * @param root the destination root of the file
+     * @param file agent file
+     * @param checkSum verified checksum
+     * @throws IOException when the sidecar cannot be written
+     */
+    static synchronized void keepInSidecar(@NonNull final File root, @NonNull final File file,
+                                           @NonNull final String checkSum) throws IOException {
+        final Properties checksums = sidecar(root);
+        checksums.setProperty(relativeTo(root, file), stamp(file) + ":" + checkSum);
+        checksums.stringPropertyNames().stream().filter(path -> !new File(root, path).exists()).toList()
+                .forEach(checksums::remove);
+        final Path temp = Files.createTempFile(root.toPath(), CHECKSUMS, FileUtils.PART_SUFFIX);
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            checksums.store(writer, null);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, new File(root, CHECKSUMS).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static UserDefinedFileAttributeView view(File file) {
+        return Optional.ofNullable(Files.getFileAttributeView(file.toPath(), UserDefinedFileAttributeView.class))
+                .orElseThrow(() -> new UnsupportedOperationException("No user attributes on " + file));
+    }
+
+    /**
+     * The path of an artifact under a destination root
+     * @param catalog of the artifact
+     * @param uri of the artifact
+     * @return the path of the uri; as parsed once by the catalog for its artifacts
+     */
+    static String relativePath(@NonNull final Catalog catalog, @NonNull final URI uri) {
+        return catalog.of(uri).map(artifact -> artifact.getMetadata().getRelativePath())
+                .orElseGet(() -> Try.of(() -> uri.toURL().getFile()).get());
+    }
+
+    /** Compares the version paths segment by segment; the numeric segments numerically.*/
+    static int compareVersions(String left, String right) {
+        final String[] l = left.split("[./-]");
+        final String[] r = right.split("[./-]");
+        for (int i = 0; i < Math.min(l.length, r.length); i++) {
+            final int compared = NumberUtils.isDigits(l[i]) && NumberUtils.isDigits(r[i])
+                    ? Long.compare(Long.parseLong(l[i]), Long.parseLong(r[i])) : l[i].compareTo(r[i]);
+            if (compared != 0) return compared;
+        }
+        return Integer.compare(l.length, r.length);
+    }
+
+    /**
+     * Index the published files by their path relative to their root
+     * @param roots the destination roots
+     * @param published files
+     * @return map of relative path to the file; the first root holding it preferred
+     */
+    static Map<String, File> observe(@NonNull final List<File> roots, @NonNull final List<File> published) {
+        final Function<File, Optional<File>> rootOf = file -> roots.stream()
+                .filter(root -> file.toPath().startsWith(root.toPath())).findFirst();
+        final Map<String, File> observed = new LinkedHashMap<>();
+        for (File root : roots) {
+            published.stream().filter(file -> rootOf.apply(file).filter(root::equals).isPresent())
+                    .forEach(file -> observed.putIfAbsent("/" + root.toPath().relativize(file.toPath()), file));
+        }
+        return observed;
+    }
+}
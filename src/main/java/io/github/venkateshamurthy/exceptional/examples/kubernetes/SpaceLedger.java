@@ -0,0 +1,126 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+
+/**
+ * A ledger of disk space reserved by the downloads in flight on a volume.
+ * <p>A download atomically reserves its expected size against the measured free space less what other downloads
+ * still have to write, leaving the minimum free space over it; what does not fit waits (queues) until a reservation is released or the space grows. As a
+ * reserved file grows on the volume, its outstanding reservation shrinks by the bytes already written, since those
+ * are already part of the measurement.
+ */
+@Slf4j
+@RequiredArgsConstructor
+class SpaceLedger {
+    /** How often a queued reservation re-measures the volume even without a release.*/
+    static final Duration RECHECK = Duration.ofSeconds(1);
+
+    /** Measures the free space of the volume.*/
+    private final Supplier<Storage> freeSpace;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition changed = lock.newCondition();
+    private final Set<Reservation> reservations = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Reserve space for a download waiting up to the timeout for it to fit.
+     * @param size expected size of the download
+     * @param minFreeSpace the free space to be left over the reservation (and those of the other downloads)
+     * @param growing the file the download writes into; its length is deducted from the reservation
+     * @param timeout maximum time to wait in the queue
+     * @return a {@link Reservation} to be closed on completion or failure
+     * @throws InterruptedException when interrupted while queued
+     */
+    Reservation reserve(@NonNull final Storage size, @NonNull final Storage minFreeSpace, @NonNull final File growing,
+                        @NonNull final Duration timeout) throws InterruptedException {
+        long nanos = timeout.toNanos();
+        lock.lockInterruptibly();
+        try {
+            long free;
+            while ((free = freeSpace.get().getBytes() - outstanding()) < size.getBytes() + minFreeSpace.getBytes()) {
+                if (nanos <= 0L) {
+                    throw new IllegalStateException("No space left on device!!! to reserve " + size + " for " +
+                            growing + "; unreserved free:" + B.toStorage(free) + " reserved:" + getReserved());
+                }
+                log.info("Queued a reservation of {} for {}; unreserved free:{}", size, growing.getName(), B.toStorage(free));
+                long waited = Math.min(nanos, RECHECK.toNanos());
+                nanos -= waited - changed.awaitNanos(waited);
+            }
+            var reservation = new Reservation(growing, size.getBytes());
+            reservations.add(reservation);
+            log.debug("Reserved {} for {}; total reserved:{}", size, growing.getName(), getReserved());
+            return reservation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Space reserved but not written yet
+     * @return Storage
+     */
+    Storage getReserved() {
+        lock.lock();
+        try {
+            return B.toStorage(outstanding());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long outstanding() {
+        return reservations.stream().mapToLong(Reservation::outstanding).sum();
+    }
+
+    /** A reservation held for the duration of a download.*/
+    final class Reservation implements AutoCloseable {
+        private final File growing;
+        private long size;
+
+        private Reservation(File growing, long size) {
+            this.growing = growing;
+            this.size = size;
+        }
+
+        private long outstanding() {
+            return Math.max(0L, size - growing.length());
+        }
+
+        /**
+         * Adjust the reservation to the actual size once known.
+         * @param actual size of the download
+         */
+        void adjust(@NonNull final Storage actual) {
+            lock.lock();
+            try {
+                size = actual.getBytes();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Release the reservation.*/
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (reservations.remove(this)) changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
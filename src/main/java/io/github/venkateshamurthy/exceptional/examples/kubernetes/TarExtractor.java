@@ -0,0 +1,315 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.vavr.control.Try;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.TarIndex.BLOCK;
+
+/**
+ * A streaming tar extractor fed the bytes of an archive as they arrive (say teed off {@link FileUtils#copy} of the
+ * download); writing the regular files and directories into a hidden staging directory while digesting the very same
+ * bytes. So the extracted tree is ready by the end of the one network pass rather than after a download, a hash and
+ * a separate extraction.
+ * <p>The tree is {@link #publish(String, Path) published} only when the digest matches the expected checksum; moved
+ * into a version directory (under {@value #TREES}) which the target, a symbolic link, is atomically switched to. So a
+ * reader of the target sees the earlier tree or the new one and never a missing one. Else (and on {@link #close()}
+ * before publishing) the staging directory is deleted. The headers are
+ * read as {@link TarIndex} reads them (ustar, GNU long names and pax paths); links and special files are skipped and
+ * no entry is written outside the staging directory.
+ */
+@Slf4j
+final class TarExtractor implements AutoCloseable {
+    /** Hidden folder (of the extract folder) the trees are staged in.*/
+    static final String STAGING = ".staging";
+    /** Hidden folder (of the extract folder) the published versions of the trees are kept in.*/
+    static final String TREES = ".trees";
+    /** Largest GNU long name or pax header read.*/
+    static final int MAX_EXTENDED = 1024 * 1024;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path staging;
+    private final MessageDigest digest;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK);
+    /** Bytes of the archive accepted so far.*/
+    @Getter
+    private long bytes;
+    /** Regular files extracted so far.*/
+    @Getter
+    private int files;
+    private long remaining;
+    private long padding;
+    private FileChannel out;
+    private ByteArrayOutputStream extended;
+    private byte extendedType;
+    private String longName;
+    private boolean ended;
+    private boolean published;
+    private boolean closed;
+
+    /**
+     * An extractor into a fresh staging directory
+     * @param extractFolder the folder the trees are published under; staged under its {@value #STAGING}
+     * @param name a hint for the staging directory; say the archive name
+     * @throws IOException when the staging directory cannot be created
+     */
+    TarExtractor(@NonNull final Path extractFolder, @NonNull final String name) throws IOException {
+        this.staging = Files.createTempDirectory(Files.createDirectories(extractFolder.resolve(STAGING)), name + "-");
+        this.digest = Try.of(() -> MessageDigest.getInstance(Artifact.CHECKSUM_TYPE)).get();
+    }
+
+    /**
+     * Extract (into the staging directory) an archive already on the volume; for the copies not teed
+     * @param archive a tar file; plain or {@link CompressedStore compressed}
+     * @param extractFolder the folder the trees are published under
+     * @return TarExtractor fed the whole archive
+     * @throws IOException when the archive cannot be read or is not a tar
+     */
+    static TarExtractor of(@NonNull final File archive, @NonNull final Path extractFolder) throws IOException {
+        final TarExtractor extractor = new TarExtractor(extractFolder, archive.getName());
+        try (BufferPool.Lease lease = BufferPool.shared().acquire();
+             var in = CompressedStore.open(archive.toPath())) {
+            final ByteBuffer buffer = lease.getBuffer();
+            while (in.read(buffer.clear()) >= 0) {
+                extractor.accept(buffer.flip());
+            }
+            return extractor;
+        } catch (InterruptedException e) {
+            extractor.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting " + archive);
+        } catch (IOException | RuntimeException e) {
+            extractor.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Digest and extract the next bytes of the archive
+     * @param chunk the bytes from its position to its limit; left as is
+     * @throws IOException when an entry cannot be written or the archive is not a tar
+     */
+    void accept(@NonNull final ByteBuffer chunk) throws IOException {
+        if (published) throw new IllegalStateException("Already published " + staging);
+        final ByteBuffer in = chunk.duplicate();
+        digest.update(chunk.duplicate());
+        bytes += in.remaining();
+        while (in.hasRemaining() && !ended) {
+            if (remaining > 0) {
+                content(in);
+            } else if (padding > 0) {
+                final int skip = (int) Math.min(padding, in.remaining());
+                in.position(in.position() + skip);
+                padding -= skip;
+            } else {
+                final int take = Math.min(header.remaining(), in.remaining());
+                header.put(in.slice(in.position(), take));
+                in.position(in.position() + take);
+                if (!header.hasRemaining()) {
+                    onHeader(header.array());
+                    header.clear();
+                }
+            }
+        }
+    }
+
+    private void content(ByteBuffer in) throws IOException {
+        final int take = (int) Math.min(remaining, in.remaining());
+        final ByteBuffer slice = in.slice(in.position(), take);
+        if (out != null) {
+            while (slice.hasRemaining()) out.write(slice);
+        } else if (extended != null) {
+            final byte[] text = new byte[take];
+            slice.get(text);
+            extended.writeBytes(text);
+        }
+        in.position(in.position() + take);
+        remaining -= take;
+        if (remaining == 0) endEntry();
+    }
+
+    private void onHeader(byte[] block) throws IOException {
+        if (TarIndex.isZero(block)) {
+            ended = true; // end of archive; the rest is digested only
+            return;
+        }
+        if (!TarIndex.checksumMatches(block)) throw new IOException("Not a tar (bad header checksum at " + bytes + ")");
+        final long size = TarIndex.number(block, 124, 12);
+        final byte type = block[156];
+        remaining = size;
+        padding = (BLOCK - size % BLOCK) % BLOCK;
+        if (type == 'L' || type == 'x') {
+            if (size > MAX_EXTENDED) throw new IOException("Extended header too large:" + size);
+            extended = new ByteArrayOutputStream((int) size);
+            extendedType = type;
+        } else {
+            final String name = longName != null ? longName : TarIndex.name(block);
+            longName = null;
+            if (type == '5') {
+                Files.createDirectories(resolve(name));
+            } else if (type == '0' || type == 0 || type == '7') {
+                final Path file = resolve(name);
+                Files.createDirectories(file.getParent());
+                out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                if ((TarIndex.number(block, 100, 8) & 0111) != 0) file.toFile().setExecutable(true, false);
+                files++;
+            } else {
+                log.debug("Skipping the entry {} of type {} in {}", name, (char) type, staging);
+            }
+        }
+        if (remaining == 0) endEntry();
+    }
+
+    private void endEntry() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        } else if (extended != null) {
+            final String text = extended.toString(StandardCharsets.UTF_8);
+            longName = extendedType == 'L' ? text.replace("\0", "") : TarIndex.paxPath(text).orElse(longName);
+            extended = null;
+        }
+    }
+
+    /** The path of an entry under the staging directory; refusing the absolute names and those climbing out of it.*/
+    private Path resolve(String name) throws IOException {
+        final Path path = staging.resolve(name).normalize();
+        if (name.startsWith("/") || !path.startsWith(staging) || path.equals(staging)) {
+            throw new IOException("Entry outside of the archive root:" + name);
+        }
+        return path;
+    }
+
+    /**
+     * Whether the whole of an archive was accepted by this (still open) extractor; else it is to be read once more
+     * @param size of the archive in bytes
+     * @return true when all of its bytes were accepted and the extractor was not closed
+     */
+    boolean isWhole(final long size) {
+        return !closed && bytes == size;
+    }
+
+    /**
+     * Lower case hex digest of the bytes accepted so far
+     * @return hex digest
+     */
+    String hexDigest() {
+        return HEX.formatHex(Try.of(() -> (MessageDigest) digest.clone()).get().digest());
+    }
+
+    /**
+     * Publish the extracted tree (replacing any earlier one) by switching the target link to it when the digest
+     * matches; else delete it
+     * @param checkSum the expected (hex) SHA-256 of the whole archive
+     * @param target the link the tree is published as
+     * @return the target
+     * @throws IOException when the digest does not match, the archive is truncated or the tree cannot be moved
+     */
+    Path publish(@NonNull final String checkSum, @NonNull final Path target) throws IOException {
+        try {
+            if (out != null) out.close();
+            final String actual = hexDigest();
+            if (!actual.equalsIgnoreCase(checkSum)) {
+                throw new IOException("Checksum of the archive extracted to " + target + " is " + actual
+                        + " rather than " + checkSum);
+            }
+            if (!ended) throw new IOException("Truncated tar (no end of archive) extracted to " + target);
+            Files.createDirectories(target.getParent());
+            final Path version = Files.createDirectories(staging.getParent().resolveSibling(TREES))
+                    .resolve(staging.getFileName());
+            Files.move(staging, version, StandardCopyOption.ATOMIC_MOVE);
+            final Path previous;
+            try {
+                previous = link(target, version);
+            } catch (IOException e) {
+                delete(version); // the earlier tree stays
+                throw e;
+            }
+            published = true;
+            if (previous != null) delete(previous);
+            log.info("Published {} files extracted from {} of the archive to {}", files, B.toStorage(bytes), target);
+            return target;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Switch the target to the version with an atomic rename of a fresh link over it
+     * @return what the target was before; a version or (once, for a tree published as a directory) the moved aside tree
+     */
+    private static Path link(Path target, Path version) throws IOException {
+        final Path link = target.resolveSibling("." + target.getFileName() + "-" + version.getFileName());
+        Files.createSymbolicLink(link, target.getParent().relativize(version));
+        try {
+            if (Files.isSymbolicLink(target)) {
+                final Path previous = target.resolveSibling(Files.readSymbolicLink(target)).normalize();
+                Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+                return previous;
+            }
+            if (!Files.exists(target)) {
+                Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+                return null;
+            }
+            // a directory is not replaced by a rename; it is moved aside (leaving it missing for that moment)
+            final Path aside = version.resolveSibling(version.getFileName() + ".previous");
+            Files.move(target, aside, StandardCopyOption.ATOMIC_MOVE);
+            try {
+                Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.move(aside, target, StandardCopyOption.ATOMIC_MOVE);
+                throw e;
+            }
+            return aside;
+        } finally {
+            Files.deleteIfExists(link);
+        }
+    }
+
+    /** Deletes the staging directory unless published.*/
+    @Override
+    public void close() {
+        closed = true;
+        Try.run(() -> { if (out != null) out.close(); });
+        out = null;
+        if (!published) Try.run(() -> delete(staging))
+                .onFailure(e -> log.warn("Unable to delete the staging directory {}:{}", staging, e.getMessage()));
+    }
+
+    /**
+     * Delete a tree; the link and the version it points to for a published one
+     * @param tree to be deleted; a missing one is ignored
+     * @throws IOException when it cannot be walked
+     */
+    static void delete(@NonNull final Path tree) throws IOException {
+        if (Files.isSymbolicLink(tree)) {
+            final Path version = tree.resolveSibling(Files.readSymbolicLink(tree)).normalize();
+            Files.delete(tree);
+            delete(version);
+            return;
+        }
+        if (!Files.exists(tree)) return;
+        try (Stream<Path> paths = Files.walk(tree)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.vavr.control.Try;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An index of the entries of a (published) tar agent by their name; so that a consumer reads a few entries through a
+ * {@link #open(String) channel} (or a {@link #map(String) mapped slice}) of the archive itself rather than extract
+ * the whole of it onto the (memory backed) volume.
+ * <p>The index is built once by a walk of the 512 byte headers (ustar, GNU long names and pax paths) and kept in
+ * memory and (deflated, stamped with the size and modification time of the archive) as a user extended attribute of the
+ * archive for the next run; where the volume supports them and the index is not too large for one. An archive kept
+ * as a {@link CompressedStore} container is indexed and read by its logical offsets.
+ */
+@Slf4j
+final class TarIndex {
+    /** Name of the user extended attribute the index is kept in.*/
+    static final String ATTRIBUTE = "agent.tar-index";
+    /** Suffix of the archives indexed.*/
+    static final String SUFFIX = ".tar";
+    /** Size of a tar block (and header).*/
+    static final int BLOCK = 512;
+    /** Indexes kept in memory; by the archive. Dropped as the archives are {@link #evict evicted}.*/
+    private static final ConcurrentMap<File, TarIndex> indexes = new ConcurrentHashMap<>();
+
+    private final File archive;
+    private final long stamp;
+    private final long size;
+    private final Map<String, Entry> entries;
+
+    /** A regular file of the archive.*/
+    @Value
+    static class Entry {
+        /** Path of the entry in the archive.*/
+        String name;
+        /** Offset of its content (in the logical bytes of the archive).*/
+        long offset;
+        /** Length of its content.*/
+        long length;
+    }
+
+    private TarIndex(File archive, long stamp, long size, Map<String, Entry> entries) {
+        this.archive = archive;
+        this.stamp = stamp;
+        this.size = size;
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * The index of an archive; from memory, its extended attribute or else built (and kept) afresh
+     * @param archive a tar file; plain or compressed
+     * @return TarIndex
+     * @throws IOException when the archive cannot be read or is not a tar
+     */
+    static TarIndex of(@NonNull final File archive) throws IOException {
+        if (archive.lastModified() == 0L) {
+            evict(archive);
+            throw new NoSuchFileException(archive.getPath());
+        }
+        final TarIndex cached = indexes.get(archive);
+        if (cached != null && cached.isCurrent()) return cached;
+        final Optional<TarIndex> kept = load(archive).filter(TarIndex::isCurrent);
+        final TarIndex index = kept.isPresent() ? kept.get() : build(archive);
+        if (kept.isEmpty()) index.save();
+        indexes.put(archive, index);
+        return index;
+    }
+
+    /**
+     * Drop the index of an archive kept in memory; say of one evicted or moved
+     * @param archive a tar file
+     */
+    static void evict(@NonNull final File archive) {
+        indexes.remove(archive);
+    }
+
+    /** Is the archive of the same size and modification time as when it was indexed.*/
+    private boolean isCurrent() {
+        return archive.lastModified() == stamp && archive.length() == size;
+    }
+
+    /**
+     * Walk the headers of an archive
+     * @param archive a tar file; plain or compressed
+     * @return TarIndex (not kept)
+     * @throws IOException when the archive cannot be read or is not a tar
+     */
+    static TarIndex build(@NonNull final File archive) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long stamp = archive.lastModified();
+        final long length = archive.length();
+        final Map<String, Entry> entries = new LinkedHashMap<>();
+        try (SeekableByteChannel in = CompressedStore.open(archive.toPath())) {
+            final ByteBuffer header = ByteBuffer.allocate(BLOCK);
+            long position = 0L;
+            String longName = null;
+            while (position + BLOCK <= in.size()) {
+                readFully(in.position(position), header.clear());
+                final byte[] block = header.array();
+                if (isZero(block)) break; // end of archive
+                if (!checksumMatches(block)) throw new IOException("Not a tar (bad header checksum at " + position + ")");
+                final long size = number(block, 124, 12);
+                final byte type = block[156];
+                final long content = position + BLOCK;
+                if (type == 'L' || type == 'x') {
+                    if (size > TarExtractor.MAX_EXTENDED) throw new IOException("Extended header too large:" + size);
+                    final ByteBuffer extended = ByteBuffer.allocate(Math.toIntExact(size));
+                    readFully(in.position(content), extended);
+                    final String text = new String(extended.array(), StandardCharsets.UTF_8);
+                    longName = type == 'L' ? text.replace("\0", "") : paxPath(text).orElse(longName);
+                } else {
+                    if (type == '0' || type == 0 || type == '7') {
+                        final String name = longName != null ? longName : name(block);
+                        entries.put(name, new Entry(name, content, size));
+                    }
+                    longName = null;
+                }
+                position = content + (size + BLOCK - 1) / BLOCK * BLOCK;
+            }
+        }
+        log.debug("Indexed {} entries of {} in {} ms", entries.size(), archive, System.currentTimeMillis() - start);
+        return new TarIndex(archive, stamp, length, entries);
+    }
+
+    static String name(byte[] block) {
+        final String name = text(block, 0, 100);
+        final boolean posix = "ustar".equals(text(block, 257, 6)); // the GNU magic is "ustar " with no prefix field
+        final String prefix = posix ? text(block, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    /** The path record of pax extended headers ({@code <length> path=<value>\n} records).*/
+    static Optional<String> paxPath(String records) {
+        for (String record : records.split("\n")) {
+            final int equals = record.indexOf('=');
+            final int space = record.indexOf(' ');
+            if (space > 0 && equals > space && "path".equals(record.substring(space + 1, equals))) {
+                return Optional.of(record.substring(equals + 1));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static String text(byte[] block, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && block[end] != 0) end++;
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /** An octal field; or a base-256 one (the high bit of its first byte set) for the large sizes.*/
+    static long number(byte[] block, int offset, int length) {
+        if ((block[offset] & 0x80) != 0) {
+            long value = block[offset] & 0x7F;
+            for (int i = offset + 1; i < offset + length; i++) value = (value << 8) | (block[i] & 0xFF);
+            return value;
+        }
+        final String octal = text(block, offset, length).trim();
+        return octal.isEmpty() ? 0L : Long.parseLong(octal, 8);
+    }
+
+    static boolean checksumMatches(byte[] block) {
+        long sum = 0L;
+        for (int i = 0; i < BLOCK; i++) sum += (i >= 148 && i < 156) ? ' ' : (block[i] & 0xFF);
+        final long computed = sum;
+        return Try.of(() -> number(block, 148, 8)).filter(expected -> expected == computed).isSuccess();
+    }
+
+    static boolean isZero(byte[] block) {
+        for (byte b : block) if (b != 0) return false;
+        return true;
+    }
+
+    private static void readFully(SeekableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) throw new IOException("Truncated tar");
+        }
+        buffer.flip();
+    }
+
+    /**
+     * The entries in the order of the archive
+     * @return entries
+     */
+    Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * An entry
+     * @param name path of the entry in the archive
+     * @return the entry; empty when absent
+     */
+    Optional<Entry> entry(@NonNull final String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    /**
+     * A read only channel of the content of an entry alone; to be closed
+     * @param name path of the entry in the archive
+     * @return SeekableByteChannel positioned at the start of the entry
+     * @throws IOException when the archive cannot be opened or changed since indexed
+     */
+    SeekableByteChannel open(@NonNull final String name) throws IOException {
+        final Entry entry = require(name);
+        return new Slice(CompressedStore.open(archive.toPath()), entry.getOffset(), entry.getLength());
+    }
+
+    /**
+     * A read only mapping of the content of an entry alone; of a plain (not compressed) archive
+     * @param name path of the entry in the archive
+     * @return MappedByteBuffer
+     * @throws IOException when the archive cannot be mapped or changed since indexed
+     */
+    MappedByteBuffer map(@NonNull final String name) throws IOException {
+        final Entry entry = require(name);
+        if (CompressedStore.isCompressed(archive.toPath())) {
+            throw new IOException(archive + " is compressed at rest; open a channel of the entry instead");
+        }
+        try (FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            return in.map(FileChannel.MapMode.READ_ONLY, entry.getOffset(), entry.getLength());
+        }
+    }
+
+    private Entry require(String name) throws IOException {
+        if (!isCurrent()) throw new IOException(archive + " changed since it was indexed");
+        return entry(name).orElseThrow(() -> new NoSuchFileException(name, null, "No such entry in " + archive));
+    }
+
+    /** Keep the index as an extended attribute of the archive; false when the volume (or its size) does not allow.*/
+    private boolean save() {
+        return Try.run(() -> {
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                        out.writeLong(stamp);
+                        out.writeLong(size);
+                        out.writeInt(entries.size());
+                        for (Entry entry : entries.values()) {
+                            out.writeUTF(entry.getName());
+                            out.writeLong(entry.getOffset());
+                            out.writeLong(entry.getLength());
+                        }
+                    }
+                    view(archive).write(ATTRIBUTE, ByteBuffer.wrap(bytes.toByteArray()));
+                })
+                .onFailure(e -> log.debug("Keeping the index of {} in memory:{}", archive, e.getMessage()))
+                .isSuccess();
+    }
+
+    private static Optional<TarIndex> load(File archive) {
+        return Try.of(() -> {
+            final UserDefinedFileAttributeView view = view(archive);
+            final ByteBuffer value = ByteBuffer.allocate(view.size(ATTRIBUTE));
+            view.read(ATTRIBUTE, value);
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(value.array(), 0, value.position())))) {
+                final long stamp = in.readLong();
+                final long size = in.readLong();
+                final int count = in.readInt();
+                final Map<String, Entry> entries = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    final Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+                    entries.put(entry.getName(), entry);
+                }
+                return new TarIndex(archive, stamp, size, entries);
+            }
+        }).toJavaOptional();
+    }
+
+    private static UserDefinedFileAttributeView view(File file) {
+        return Optional.ofNullable(Files.getFileAttributeView(file.toPath(), UserDefinedFileAttributeView.class))
+                .orElseThrow(() -> new UnsupportedOperationException("No user attributes on " + file));
+    }
+
+    /** A read only seekable view of a range of a channel; owns the channel.*/
+    static final class Slice implements SeekableByteChannel {
+        private final SeekableByteChannel in;
+        private final long offset;
+        private final long length;
+        private long position;
+
+        Slice(@NonNull final SeekableByteChannel in, final long offset, final long length) {
+            this.in = in;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!in.isOpen()) throw new ClosedChannelException();
+            if (position >= length) return -1;
+            final int limit = dst.limit();
+            dst.limit(dst.position() + (int) Math.min(dst.remaining(), length - position));
+            try {
+                final int read = in.position(offset + position).read(dst);
+                if (read > 0) position += read;
+                return read;
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) { throw new NonWritableChannelException(); }
+
+        @Override
+        public long position() { return position; }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position:" + newPosition);
+            this.position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() { return length; }
+
+        @Override
+        public SeekableByteChannel truncate(long size) { throw new NonWritableChannelException(); }
+
+        @Override
+        public boolean isOpen() { return in.isOpen(); }
+
+        @Override
+        public void close() throws IOException { in.close(); }
+    }
+}
@@ -0,0 +1,35 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A gate consulted by a transfer between its writes; a closed gate pauses the transfer in place (its connection
+ * and the bytes already written are kept) until it opens again.
+ */
+@FunctionalInterface
+interface TransferGate {
+    /** A gate which never pauses.*/
+    TransferGate OPEN = maxPause -> Duration.ZERO;
+
+    /**
+     * Wait while the gate is closed
+     * @param maxPause maximum time to be paused
+     * @return the time paused; which is not counted against the timeout of the transfer
+     * @throws InterruptedException when interrupted while paused
+     * @throws TimeoutException when the gate stays closed beyond the maximum pause
+     */
+    Duration awaitOpen(Duration maxPause) throws InterruptedException, TimeoutException;
+
+    /**
+     * Wait while the gate is closed; charging the bytes of the write (say to a rate limit)
+     * @param maxPause maximum time to be paused
+     * @param bytes of the write just done or about to be done
+     * @return the time paused; which is not counted against the timeout of the transfer
+     * @throws InterruptedException when interrupted while paused
+     * @throws TimeoutException when the gate stays closed beyond the maximum pause
+     */
+    default Duration awaitOpen(Duration maxPause, long bytes) throws InterruptedException, TimeoutException {
+        return awaitOpen(maxPause);
+    }
+}
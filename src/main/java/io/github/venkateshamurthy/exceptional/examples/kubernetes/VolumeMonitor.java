@@ -0,0 +1,133 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import io.reactivex.rxjava3.subjects.BehaviorSubject;
+import io.reactivex.rxjava3.subjects.Subject;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A reference counted disk space monitor shared by all the downloaders writing onto the same {@link FileStore}.
+ * <p>It samples {@link FileStore#getUsableSpace()} / {@link FileStore#getTotalSpace()} (a statfs; no process is
+ * forked) every {@link #PERIOD} and publishes the readings keyed like {@code df} ({@value #AVAILABLE},
+ * {@value #USED} and {@value #SIZE}). Sampling stops when the last holder {@link #release() releases} it.
+ */
+@Slf4j
+final class VolumeMonitor {
+    /** Key for usable space.*/
+    static final String AVAILABLE = "Available";
+    /** Key for used space.*/
+    static final String USED = "Used";
+    /** Key for the total space.*/
+    static final String SIZE = "Size";
+    /** Sampling period.*/
+    static final Duration PERIOD = Duration.ofSeconds(2);
+    private static final Map<FileStore, VolumeMonitor> monitors = new HashMap<>();
+
+    /** The volume monitored.*/
+    @Getter
+    private final FileStore store;
+    private final BehaviorSubject<Map<String, Storage>> readings = BehaviorSubject.create();
+    /** Publishes onto the readings; serialized as both the sampler and the callers sampling now publish.*/
+    private final Subject<Map<String, Storage>> publisher = readings.toSerialized();
+    /** Space reserved by the downloads in flight on this volume (by any downloader).*/
+    @Getter
+    private final SpaceLedger ledger = new SpaceLedger(() -> sample().get(AVAILABLE));
+    private int references;
+    private Disposable sampler;
+
+    private VolumeMonitor(FileStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Acquire (a reference to) the monitor of the volume holding the folder; the folder need not exist yet.
+     * @param folder on the volume
+     * @return VolumeMonitor
+     * @throws IOException when the volume cannot be determined
+     */
+    static VolumeMonitor acquire(@NonNull final File folder) throws IOException {
+        Path existing = folder.toPath().toAbsolutePath();
+        while (!Files.exists(existing) && existing.getParent() != null) existing = existing.getParent();
+        final FileStore store = Files.getFileStore(existing);
+        synchronized (VolumeMonitor.class) {
+            var monitor = monitors.computeIfAbsent(store, VolumeMonitor::new);
+            if (monitor.references++ == 0) {
+                monitor.sampler = Schedulers.computation().schedulePeriodicallyDirect(monitor::sample,
+                        0, PERIOD.toMillis(), MILLISECONDS);
+                log.info("Started monitoring volume {}", store);
+            }
+            return monitor;
+        }
+    }
+
+    /** Release a reference; the last release stops the sampling.*/
+    void release() {
+        synchronized (VolumeMonitor.class) {
+            if (references > 0 && --references == 0) {
+                sampler.dispose();
+                monitors.remove(store);
+                log.info("Stopped monitoring volume {}", store);
+            }
+        }
+    }
+
+    /**
+     * Sample the volume now and publish the reading
+     * @return the reading
+     */
+    @SneakyThrows
+    Map<String, Storage> sample() {
+        final long total = store.getTotalSpace();
+        final Map<String, Storage> reading = new HashMap<>();
+        reading.put(SIZE, B.toStorage(total));
+        reading.put(AVAILABLE, B.toStorage(store.getUsableSpace()));
+        reading.put(USED, B.toStorage(total - store.getUnallocatedSpace()));
+        publisher.onNext(reading);
+        log.trace("Space of {} is {}", store, reading);
+        return reading;
+    }
+
+    /**
+     * The latest published reading; sampled now if none is published yet.
+     * @return reading
+     */
+    Map<String, Storage> latest() {
+        var reading = readings.getValue();
+        return reading == null ? sample() : reading;
+    }
+
+    /**
+     * Readings of this volume as they are published
+     * @return Observable of readings
+     */
+    Observable<Map<String, Storage>> readings() {
+        return readings.hide();
+    }
+
+    /**
+     * Number of holders of this monitor
+     * @return count
+     */
+    int getReferences() {
+        synchronized (VolumeMonitor.class) {
+            return references;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.EnumUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A small append only journal kept on the volume recording the batch plan and the state of every URI in it, so
+ * that a restarted job (say after a pod eviction) replays it and continues only the unfinished work.
+ * <p>Each line is {@code <STATE> <uri>}; the last line of a URI wins and a torn last line is ignored on replay.
+ * The journal is compacted into one line per URI (written aside and atomically moved) every
+ * {@value #COMPACT_EVERY} appends.
+ */
+@Slf4j
+class WorkJournal {
+    /** File name of the journal under the destination folder.*/
+    static final String JOURNAL = ".agent-journal";
+    /** Number of appends after which the journal is compacted.*/
+    static final int COMPACT_EVERY = 64;
+
+    /** State of a URI in the batch.*/
+    enum State { PENDING, DOWNLOADING, VERIFIED, FAILED }
+
+    private final Path journal;
+    private final Map<URI, State> states = new LinkedHashMap<>();
+    private int appends;
+
+    private WorkJournal(Path journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Open (and replay) the journal kept under the folder
+     * @param folder destination folder
+     * @return WorkJournal
+     */
+    @SneakyThrows
+    static WorkJournal open(@NonNull final File folder) {
+        var workJournal = new WorkJournal(new File(folder, JOURNAL).toPath());
+        if (Files.exists(workJournal.journal)) {
+            boolean torn = false;
+            for (String line : Files.readAllLines(workJournal.journal, StandardCharsets.UTF_8)) {
+                var state = StringUtils.substringBefore(line, " ");
+                var uri = StringUtils.substringAfter(line, " ");
+                if (StringUtils.isBlank(uri) || !EnumUtils.isValidEnum(State.class, state)) {
+                    log.warn("Ignoring a torn journal line:{}", line);
+                    torn = true;
+                    continue;
+                }
+                workJournal.states.put(URI.create(uri.trim()), State.valueOf(state));
+            }
+            log.info("Replayed journal {}: {}", workJournal.journal, workJournal.summary());
+            if (torn) workJournal.compact(); // so that further appends do not glue onto the torn line
+        }
+        return workJournal;
+    }
+
+    /**
+     * Check if the journal holds an unfinished plan for the same set of URIs
+     * @param uris of the batch
+     * @return true if the batch can be resumed
+     */
+    synchronized boolean isResumable(@NonNull final URI... uris) {
+        return !states.isEmpty() && states.keySet().equals(new HashSet<>(Arrays.asList(uris)))
+                && unfinished().length > 0;
+    }
+
+    /**
+     * Record a fresh plan with all the URIs pending; this replaces an earlier journal.
+     * @param uris of the batch
+     */
+    synchronized void plan(@NonNull final URI... uris) {
+        states.clear();
+        Arrays.stream(uris).forEach(uri -> states.put(uri, State.PENDING));
+        compact();
+    }
+
+    /**
+     * Append a state change of a URI
+     * @param uri whose state changed
+     * @param state new state
+     */
+    @SneakyThrows
+    synchronized void record(@NonNull final URI uri, @NonNull final State state) {
+        states.put(uri, state);
+        Files.writeString(journal, state + " " + uri + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        if (++appends >= COMPACT_EVERY) compact();
+    }
+
+    /**
+     * URIs of the plan that are not verified yet (in plan order)
+     * @return array of URIs
+     */
+    synchronized URI[] unfinished() {
+        return states.entrySet().stream().filter(e -> e.getValue() != State.VERIFIED)
+                .map(Map.Entry::getKey).toArray(URI[]::new);
+    }
+
+    /** Removes the journal once all of the plan is verified; otherwise keeps it to resume the failed ones.*/
+    @SneakyThrows
+    synchronized void finish() {
+        if (unfinished().length == 0) {
+            Files.deleteIfExists(journal);
+            log.info("Batch complete; journal removed");
+        } else {
+            compact();
+            log.warn("Batch finished with unfinished work kept in journal: {}", summary());
+        }
+    }
+
+    @SneakyThrows
+    private void compact() {
+        var compacted = journal.resolveSibling(JOURNAL + ".tmp");
+        var lines = states.entrySet().stream().map(e -> e.getValue() + " " + e.getKey()).collect(Collectors.toList());
+        Files.createDirectories(journal.getParent());
+        Files.write(compacted, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+        Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appends = 0;
+    }
+
+    private Map<State, Long> summary() {
+        return states.values().stream().collect(Collectors.groupingBy(s -> s, TreeMap::new, Collectors.counting()));
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveLimitTest {
+    @TempDir
+    Path folder;
+    /** The clock of the limits; moved on by the tests alone.*/
+    private final AtomicLong clock = new AtomicLong();
+
+    private void elapse(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    @SneakyThrows
+    void testLimitGrowsWithThroughputAndBacksOffOnErrors() {
+        var limit = new AdaptiveLimit(2, 1, 8, clock::get);
+        // each window moves more bytes in about the same time; so the aggregate throughput improves
+        for (int window = 1; window <= 3; window++) {
+            final int size = limit.getLimit();
+            var tokens = new AdaptiveLimit.Token[size];
+            for (int i = 0; i < size; i++) tokens[i] = limit.acquire();
+            elapse(20);
+            for (var token : tokens) token.onSuccess(window * 1_000_000L);
+        }
+        assertEquals(5, limit.getLimit());
+
+        limit.acquire().onDropped();
+        assertEquals(3, limit.getLimit());
+        limit.acquire().onDropped();
+        limit.acquire().onDropped();
+        limit.acquire().onDropped();
+        assertEquals(1, limit.getLimit());
+    }
+
+    @Test
+    @SneakyThrows
+    void testLimitBacksOffOnRisingLatency() {
+        var limit = new AdaptiveLimit(4, 1, 8, clock::get);
+        var fast = limit.acquire();
+        elapse(5);
+        fast.onSuccess(10_000_000L);
+        var slow = limit.acquire();
+        elapse(50);
+        slow.onSuccess(1_000_000L);
+        assertEquals(3, limit.getLimit());
+    }
+
+    @Test
+    @SneakyThrows
+    void testQueueingBeforeTheTransferIsNotTakenForLatency() {
+        var limit = new AdaptiveLimit(4, 1, 8, clock::get);
+        var fast = limit.acquire();
+        elapse(5);
+        fast.onSuccess(10_000_000L);
+
+        var queued = limit.acquire();
+        elapse(1_000); // on the bulkhead, lease and space reservation
+        queued.started();
+        elapse(5);
+        queued.onSuccess(10_000_000L);
+        assertEquals(4, limit.getLimit());
+
+        var timedFromDispatch = limit.acquire();
+        elapse(1_000);
+        elapse(5);
+        timedFromDispatch.onSuccess(10_000_000L);
+        assertEquals(3, limit.getLimit());
+    }
+
+    @Test
+    @SneakyThrows
+    void testLimitIsKeptOnTheRoot() {
+        var limit = new AdaptiveLimit(6, 1, 8);
+        assertTrue(limit.save(folder.toFile()));
+        assertEquals(6, AdaptiveLimit.load(folder.toFile(), 1, 8).getLimit());
+        assertEquals(AdaptiveLimit.DEFAULT_INITIAL, AdaptiveLimit.load(folder.resolve("absent").toFile(), 1, 8).getLimit());
+    }
+
+    @Test
+    @SneakyThrows
+    void testLimitInTheSidecarOutlivesACleanup() {
+        var root = folder.resolve("root").toFile();
+        assertTrue(root.mkdirs());
+        AdaptiveLimit.keepInSidecar(root, "7");
+        assertTrue(new File(root, AdaptiveLimit.SIDECAR).isHidden());
+        Files.writeString(root.toPath().resolve("agent.tar"), "agent");
+
+        AsyncCleanup.cleanup(root, ignore -> { }).get(30, TimeUnit.SECONDS);
+        assertFalse(Files.exists(root.toPath().resolve("agent.tar")));
+        assertEquals(7, AdaptiveLimit.load(root, 1, 8).getLimit());
+    }
+}
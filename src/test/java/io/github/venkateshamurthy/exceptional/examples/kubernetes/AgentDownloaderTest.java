@@ -0,0 +1,75 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentDownloaderTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testCopiesShareTheRootsAndTheLastCloseReleasesThem() {
+        final File root = folder.toFile();
+        final VolumeMonitor monitor = VolumeMonitor.acquire(root);
+        try {
+            final int before = monitor.getReferences();
+            final var downloader = AgentDownloader.builder().timeOut(Duration.ofSeconds(5)).minFreeSpace(Storage.ZERO)
+                    .destinationFolder(new AtomicReference<>(root)).build();
+            assertEquals(before + 1, monitor.getReferences());
+            assertEquals(AgentDownloader.DEFAULT_BULKHEAD_PERMITS, downloader.getBulkheadPermits());
+            assertEquals(AgentDownloader.DEFAULT_AGENTS_OF_A_TYPE, downloader.getAgentsOfAType());
+            assertSame(Catalog.AGENTS, downloader.getCatalog());
+
+            final var timed = downloader.withTimeOut(Duration.ofMillis(50));
+            final var copy = timed.withDestinationFolder(new AtomicReference<>(root));
+            assertEquals(Duration.ofMillis(50), copy.getTimeOut());
+            assertEquals(before + 1, monitor.getReferences(), "the copies share the monitors of the roots");
+
+            downloader.close();
+            timed.close();
+            assertEquals(before + 1, monitor.getReferences(), "still held by a copy");
+            assertNotNull(copy.getAvailableSpace());
+            copy.close();
+            assertEquals(before, monitor.getReferences());
+            assertThrows(IllegalStateException.class, copy::getAvailableSpace);
+        } finally {
+            monitor.release();
+        }
+    }
+
+    @Test
+    void testLegacyConstructorLeavesTheMemoryGateOff() {
+        try (var downloader = new AgentDownloader(Duration.ofSeconds(5), Storage.ZERO,
+                new AtomicReference<>(folder.toFile()))) {
+            assertNull(downloader.getMemoryThresholds());
+            assertEquals(AgentDownloader.HIGH_WATER_MARK.getBytes(), downloader.getHighWaterMark().getBytes());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testWaterMarksSetThroughTheBuilderGetRootsOfTheirOwn() {
+        final File root = folder.toFile();
+        final VolumeMonitor monitor = VolumeMonitor.acquire(root);
+        final int before = monitor.getReferences();
+        try (var plain = AgentDownloader.builder().timeOut(Duration.ofSeconds(5)).minFreeSpace(Storage.ZERO)
+                .destinationFolder(new AtomicReference<>(root)).build();
+             var marked = plain.toBuilder().lowWaterMark(Storage.mb(8)).highWaterMark(Storage.mb(64)).build()) {
+            assertEquals(AgentDownloader.LOW_WATER_MARK.getBytes(), plain.getLowWaterMark().getBytes());
+            assertEquals(Storage.mb(8).getBytes(), marked.getLowWaterMark().getBytes());
+            assertEquals(Storage.mb(64).getBytes(), marked.getHighWaterMark().getBytes());
+            assertEquals(before + 2, monitor.getReferences(), "not sharing the roots gated at the default marks");
+        } finally {
+            monitor.release();
+        }
+    }
+}
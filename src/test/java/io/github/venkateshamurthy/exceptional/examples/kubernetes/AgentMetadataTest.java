@@ -0,0 +1,48 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentMetadataTest {
+
+    @Test
+    void testMetadataIsParsedFromTheUri() {
+        var metadata = Agents.HZE12.getMetadata();
+        assertEquals(AgentDownloader.HZE_AGENT, metadata.getType());
+        assertEquals("8.12.0", metadata.getVersion());
+        assertEquals("23142606", metadata.getBuild());
+        assertEquals("/hcs-agents-stable/packages/Horizon-Enterprise-Agent/8.12.0/23142606/agent.tar",
+                metadata.getRelativePath());
+        assertEquals(Agents.HZE12.getFileSize(), metadata.getFileSize());
+        assertEquals(AgentDownloader.AV_AGENT, Agents.AV18.getMetadata().getType());
+        assertEquals("2851", Agents.AV18.getMetadata().getBuild());
+
+        assertThrows(IllegalArgumentException.class, () ->
+                AgentMetadata.parse(URI.create(Agents.HCS_AGENTS_STABLE_PACKAGES + "DEM-Agent/agent.tar"), Storage.ZERO));
+    }
+
+    @Test
+    void testAgentsAreLookedUpByUriAndPath() {
+        assertSame(Agents.getUriToAgentsMap(), Agents.getUriToAgentsMap());
+        assertThrows(UnsupportedOperationException.class, () -> Agents.getUriToAgentsMap().clear());
+        for (Agents agent : Agents.values()) {
+            assertSame(agent, Agents.of(agent.getUri()).orElseThrow());
+            assertSame(agent, Agents.ofPath(agent.getMetadata().getRelativePath()).orElseThrow());
+            assertEquals(agent.getMetadata().getRelativePath(), Reconciler.relativePath(Catalog.AGENTS, agent.getUri()));
+        }
+        assertTrue(Agents.of(URI.create("https://example.com/packages/x/1/2/y")).isEmpty());
+    }
+
+    @Test
+    void testNewestVersionOrdersByVersionThenBuild() {
+        var hze = Arrays.stream(Agents.values()).map(Agents::getMetadata)
+                .filter(metadata -> metadata.getType().equals(AgentDownloader.HZE_AGENT))
+                .sorted(AgentMetadata.NEWEST_VERSION).map(AgentMetadata::getVersion).toList();
+        assertEquals(List.of("8.16.0", "8.15.0", "8.14.0", "8.13.0", "8.12.0"), hze);
+    }
+}
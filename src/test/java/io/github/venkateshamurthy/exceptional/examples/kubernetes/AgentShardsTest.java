@@ -0,0 +1,46 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AgentShardsTest {
+    private static final URI[] URIS = Arrays.stream(Agents.values()).map(Agents::getUri).toArray(URI[]::new);
+
+    @Test
+    void testShardsCoverAllAgentsWithoutOverlap() {
+        for (int count = 1; count <= URIS.length + 1; count++) {
+            final Set<URI> seen = new HashSet<>();
+            int total = 0;
+            for (int index = 0; index < count; index++) {
+                final URI[] shard = AgentShards.shardOf(URIS, index, count);
+                total += shard.length;
+                seen.addAll(List.of(shard));
+                assertArrayEquals(shard, AgentShards.shardOf(URIS, index, count)); // deterministic
+            }
+            assertEquals(URIS.length, total, "overlap with " + count + " shards");
+            assertEquals(Set.of(URIS), seen, "coverage with " + count + " shards");
+        }
+    }
+
+    @Test
+    void testShardsAreBalancedOnSize() {
+        final List<List<URI>> shards = AgentShards.partition(List.of(URIS),
+                uri -> Agents.getUriToAgentsMap().get(uri).getFileSize().getBytes(), 3);
+        final long[] loads = shards.stream().mapToLong(shard -> shard.stream()
+                .mapToLong(uri -> Agents.getUriToAgentsMap().get(uri).getFileSize().getBytes()).sum()).toArray();
+        final long largest = Arrays.stream(Agents.values()).mapToLong(a -> a.getFileSize().getBytes()).max().orElseThrow();
+        final long max = Arrays.stream(loads).max().orElseThrow();
+        final long min = Arrays.stream(loads).min().orElseThrow();
+        assertTrue(max - min <= largest, Arrays.toString(loads));
+        assertThrows(IllegalArgumentException.class, () -> AgentShards.shardOf(URIS, 3, 3));
+        IntStream.range(0, 3).forEach(i -> assertFalse(shards.get(i).isEmpty()));
+    }
+}
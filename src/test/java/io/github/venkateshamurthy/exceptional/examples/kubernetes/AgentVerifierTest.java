@@ -0,0 +1,93 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+public class AgentVerifierTest {
+    @TempDir
+    Path folder;
+    @TempDir
+    Path extra;
+    @TempDir
+    Path cold;
+
+    @SneakyThrows
+    private DestinationRoots roots() {
+        return new DestinationRoots(List.of(folder.toFile(), extra.toFile()), cold.toFile(), Storage.ZERO, Storage.ZERO);
+    }
+
+    @SneakyThrows
+    private static Path write(Path root, String relative, byte[] content) {
+        var file = new File(root.toFile(), relative).toPath();
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        return file;
+    }
+
+    @Test
+    void testEmptyFolderIsIntact() {
+        try (var roots = roots()) {
+            var report = new AgentVerifier(roots, Catalog.AGENTS).verify();
+            log.info("{}", report);
+            assertEquals(AgentVerifier.INTACT, report.exitCode());
+            assertEquals(Agents.values().length, report.getAbsent().size());
+            assertEquals(3, report.getRoots().size());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testCorruptAgentsOnAnyRootAreReportedWithoutBeingDeleted() {
+        var onExtra = write(extra, Agents.DEM15.getMetadata().getRelativePath(), new byte[4096]);
+        var onCold = write(cold, Agents.HZE12.getMetadata().getRelativePath(), new byte[1024]);
+
+        try (var roots = roots()) {
+            var report = new AgentVerifier(roots, Catalog.AGENTS, 4).verify();
+            log.info("{}", report);
+            assertEquals(AgentVerifier.CORRUPT, report.exitCode());
+            assertEquals(Set.of(Agents.DEM15, Agents.HZE12), Set.copyOf(report.getCorrupt()));
+            assertEquals(5120L, report.getBytes());
+        }
+        assertTrue(Files.exists(onExtra));
+        assertTrue(Files.exists(onCold));
+    }
+
+    @Test
+    @SneakyThrows
+    void testArtifactsOfAManifestAreVerified() {
+        var content = "agent".getBytes(StandardCharsets.UTF_8);
+        var relative = "/mirror/packages/Tool-Agent/1.0.0/7/agent.tar";
+        var digest = FileUtils.hexDigest(write(extra, relative, content), Artifact.CHECKSUM_TYPE);
+        var manifest = Manifest.readSums(new ByteArrayInputStream(("# base https://example.com/mirror/packages/\n"
+                + digest + "  5  Tool-Agent/1.0.0/7/agent.tar\n"
+                + digest + "  5  Tool-Agent/1.0.1/8/agent.tar\n").getBytes(StandardCharsets.UTF_8)));
+
+        try (var roots = roots()) {
+            var report = new AgentVerifier(roots, manifest).verify();
+            log.info("{}", report);
+            assertEquals(AgentVerifier.INTACT, report.exitCode());
+            assertEquals(List.of(manifest.ofPath(relative).orElseThrow()), report.getIntact());
+            assertEquals(1, report.getAbsent().size());
+        }
+    }
+
+    @Test
+    void testAbsentFolderFails() {
+        assertEquals(AgentVerifier.FAILED, EphemeralStorageExample.verify(folder.resolve("absent").toFile()));
+        assertEquals(AgentVerifier.INTACT, EphemeralStorageExample.verify(folder.toFile(), List.of(), null,
+                Catalog.AGENTS, 1));
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArtifactLeaseTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testWaiterTakesOverOnRelease() {
+        final File artifact = folder.resolve("packages/DEM-Agent-1.exe").toFile();
+        var first = ArtifactLease.acquire(artifact, Duration.ofSeconds(1));
+        assertTrue(ArtifactLease.leaseFile(artifact).exists());
+
+        var waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return ArtifactLease.acquire(artifact, Duration.ofSeconds(30));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> waiter.get(300, TimeUnit.MILLISECONDS));
+
+        first.close();
+        // notified of the release well before the stale period it would otherwise poll at
+        var second = waiter.get(ArtifactLease.STALE.toMillis() / 2, TimeUnit.MILLISECONDS);
+        assertTrue(ArtifactLease.leaseFile(artifact).exists());
+        second.close();
+        assertFalse(ArtifactLease.leaseFile(artifact).exists());
+    }
+
+    @Test
+    @SneakyThrows
+    void testLeaseHeldBeyondTheTimeout() {
+        final File artifact = folder.resolve("AV-Agent-1.exe").toFile();
+        try (var held = ArtifactLease.acquire(artifact, Duration.ofSeconds(1))) {
+            assertEquals(artifact, held.getArtifact());
+            assertThrows(TimeoutException.class, () -> ArtifactLease.acquire(artifact, Duration.ofMillis(200)));
+        }
+        ArtifactLease.acquire(artifact, Duration.ofMillis(200)).close();
+    }
+
+    @Test
+    @SneakyThrows
+    void testStaleLeaseOfADeadHolderIsTakenOver() {
+        final File artifact = folder.resolve("HZE-Agent-1.msi").toFile();
+        final Path lease = ArtifactLease.leaseFile(artifact).toPath();
+        Files.writeString(lease, "gone:1 " + (System.currentTimeMillis() - ArtifactLease.STALE.toMillis() * 2));
+        try (var taken = ArtifactLease.acquire(artifact, Duration.ofSeconds(1))) {
+            assertFalse(Files.readString(lease).startsWith("gone:1"), "restamped by the new holder");
+            assertTrue(ArtifactLease.ageOf(lease).compareTo(ArtifactLease.HEARTBEAT) < 0);
+        }
+        assertFalse(Files.exists(lease));
+    }
+
+    @Test
+    @Tag("slow")
+    @SneakyThrows
+    void testStaleLeaseOfAHungHolderIsTakenOver() {
+        final File artifact = folder.resolve("DEM-Agent-2.exe").toFile();
+        final Path lease = ArtifactLease.leaseFile(artifact).toPath();
+        final Path hung = folder.resolve("Hung.java");
+        Files.writeString(hung, """
+                import java.nio.ByteBuffer;
+                import java.nio.channels.FileChannel;
+                import java.nio.file.Path;
+                import java.nio.file.StandardOpenOption;
+
+                public class Hung {
+                    public static void main(String[] args) throws Exception {
+                        var channel = FileChannel.open(Path.of(args[0]), StandardOpenOption.CREATE,
+                                StandardOpenOption.READ, StandardOpenOption.WRITE);
+                        channel.lock(0L, 1L, false);
+                        channel.write(ByteBuffer.wrap(("hung:1 " + Long.parseLong(args[1])).getBytes()), 0L);
+                        System.out.println("locked");
+                        Thread.sleep(60_000L);
+                    }
+                }
+                """);
+        final String java = ProcessHandle.current().info().command().orElse("java");
+        final long stale = System.currentTimeMillis() - ArtifactLease.STALE.toMillis() * 2;
+        final Process holder = new ProcessBuilder(java, hung.toString(), lease.toString(), Long.toString(stale))
+                .redirectErrorStream(true).start();
+        try (var out = new BufferedReader(new InputStreamReader(holder.getInputStream()))) {
+            assertEquals("locked", out.readLine());
+            try (var taken = ArtifactLease.acquire(artifact, Duration.ofSeconds(5))) {
+                assertEquals(artifact, taken.getArtifact());
+                assertFalse(Files.readString(lease).startsWith("hung:1"), "a fresh lease file stamped");
+            }
+            assertFalse(Files.exists(lease));
+        } finally {
+            holder.destroyForcibly().waitFor();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncCleanupTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testContentsAreRenamedAsideAtOnceAndDeletedInTheBackground() {
+        for (int i = 0; i < 600; i++) {
+            var file = folder.resolve("packages/type-" + (i % 3) + "/" + i + "/agent.tar");
+            Files.createDirectories(file.getParent());
+            Files.write(file, new byte[100]);
+        }
+        var leftover = folder.resolve(AsyncCleanup.TRASH).resolve("1-1/old/agent.tar");
+        Files.createDirectories(leftover.getParent());
+        Files.write(leftover, new byte[50]);
+
+        var freed = new AtomicLong();
+        var cleanup = AsyncCleanup.cleanup(folder.toFile(), storage -> freed.addAndGet(storage.getBytes()));
+        try (var children = Files.list(folder)) {
+            assertEquals(List.of(folder.resolve(AsyncCleanup.TRASH)), children.toList()); // empty but for the trash
+        }
+
+        var report = cleanup.get(30, TimeUnit.SECONDS);
+        assertEquals(601, report.getFiles());
+        assertEquals(600 * 100 + 50, report.getFreed().getBytes());
+        assertEquals(report.getFreed().getBytes(), freed.get());
+        try (var children = Files.list(folder)) {
+            assertEquals(0, children.count());
+        }
+        assertTrue(folder.toFile().isDirectory());
+    }
+
+    @Test
+    @SneakyThrows
+    void testLeasesSidecarsAndTheGenerationsOfLiveCleanupsAreLeftInPlace() {
+        var lease = folder.resolve("packages/type-0/1/." + "agent.tar" + ArtifactLease.SUFFIX);
+        Files.createDirectories(lease.getParent());
+        Files.write(lease, new byte[0]);
+        Files.write(lease.resolveSibling("agent.tar"), new byte[100]);
+        Files.write(folder.resolve("packages/type-1.tar"), new byte[10]);
+        Files.write(folder.resolve(Reconciler.CHECKSUMS), new byte[10]);
+        Files.write(folder.resolve(AdaptiveLimit.SIDECAR), new byte[10]);
+
+        var live = folder.resolve(AsyncCleanup.TRASH).resolve("2-2");
+        Files.createDirectories(live);
+        Files.write(live.resolve("agent.tar"), new byte[50]);
+        var dead = folder.resolve(AsyncCleanup.TRASH).resolve("3-3");
+        Files.createDirectories(dead);
+        Files.write(dead.resolve("agent.tar"), new byte[30]);
+        Files.write(dead.resolveSibling("3-3" + AsyncCleanup.LOCK), new byte[0]);
+
+        var liveLock = live.resolveSibling("2-2" + AsyncCleanup.LOCK);
+        try (var channel = FileChannel.open(liveLock, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             var held = channel.lock()) { // as the cleanup of another process would
+            var report = AsyncCleanup.cleanup(folder.toFile(), storage -> {}).get(30, TimeUnit.SECONDS);
+            assertEquals(100 + 10 + 30, report.getFreed().getBytes());
+        }
+        assertTrue(Files.exists(lease));
+        assertFalse(Files.exists(lease.resolveSibling("agent.tar")));
+        assertFalse(Files.exists(folder.resolve("packages/type-1.tar")));
+        assertTrue(Files.exists(folder.resolve(Reconciler.CHECKSUMS)));
+        assertTrue(Files.exists(folder.resolve(AdaptiveLimit.SIDECAR)));
+        assertTrue(Files.exists(live.resolve("agent.tar")));
+        assertFalse(Files.exists(dead));
+        assertFalse(Files.exists(dead.resolveSibling("3-3" + AsyncCleanup.LOCK)));
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BufferPoolTest {
+
+    @Test
+    @SneakyThrows
+    void testLeaseWaitsForCapacityAndBuffersAreReused() {
+        var pool = new BufferPool(Storage.kb(128), Storage.kb(64));
+        var first = pool.acquire();
+        var second = pool.acquire();
+        assertTrue(first.getBuffer().isDirect());
+
+        var third = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> third.get(200, TimeUnit.MILLISECONDS));
+
+        first.close();
+        first.close(); // a second close must not release twice
+        try (var lease = third.get(5, TimeUnit.SECONDS)) {
+            assertSame(first.getBuffer(), lease.getBuffer());
+        }
+        second.close();
+
+        var stats = pool.stats();
+        assertEquals(Storage.kb(128).getBytes(), stats.getHighWaterMark().getBytes());
+        assertEquals(Storage.kb(128).getBytes(), stats.getAllocated().getBytes());
+        assertEquals(0L, stats.getInUse().getBytes());
+        assertEquals(1L, stats.getWaits());
+    }
+}
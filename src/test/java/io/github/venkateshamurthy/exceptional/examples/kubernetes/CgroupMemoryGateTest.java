@@ -0,0 +1,77 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CgroupMemoryGateTest {
+    private static final CgroupMemoryGate.Thresholds thresholds =
+            new CgroupMemoryGate.Thresholds(Storage.mb(64), Storage.mb(128), Storage.mb(256));
+    @TempDir
+    Path cgroup;
+
+    @SneakyThrows
+    private void cgroup(long currentMb, String max, String someAvg10) {
+        Files.writeString(cgroup.resolve(CgroupMemoryGate.CURRENT), Storage.mb(currentMb).getBytes() + "\n");
+        Files.writeString(cgroup.resolve(CgroupMemoryGate.MAX), max + "\n");
+        Files.writeString(cgroup.resolve(CgroupMemoryGate.PRESSURE),
+                "some avg10=" + someAvg10 + " avg60=0.00 avg300=0.00 total=12345\n" +
+                "full avg10=0.00 avg60=0.00 avg300=0.00 total=678\n");
+    }
+
+    @Test
+    void testNoGateWithoutCgroupV2() {
+        assertTrue(CgroupMemoryGate.open(cgroup, thresholds).isEmpty());
+    }
+
+    @Test
+    @SneakyThrows
+    void testWritesAreThrottledThenPausedAsMemoryRunsOut() {
+        final String max = String.valueOf(Storage.mb(1024).getBytes());
+        cgroup(100, max, "0.00");
+        try (var gate = CgroupMemoryGate.open(cgroup, thresholds).orElseThrow()) {
+            assertTrue(gate.isOpen());
+            assertFalse(gate.isThrottled());
+            assertEquals(Duration.ZERO, gate.awaitOpen(Duration.ofMillis(10)));
+
+            cgroup(100, max, "25.50"); // stalls on memory
+            gate.sample();
+            assertTrue(gate.isThrottled());
+            for (int i = 0; i < 1000; i++) { // 8 MB of 8 KB writes; within the second held by the bucket
+                assertEquals(Duration.ZERO, gate.awaitOpen(Duration.ofMillis(10), 8192L));
+            }
+            var owed = gate.awaitOpen(Duration.ofMillis(10), CgroupMemoryGate.THROTTLE_RATE.getBytes());
+            assertTrue(owed.compareTo(Duration.ofMillis(300)) > 0 && owed.compareTo(Duration.ofSeconds(1)) < 0, owed::toString);
+
+            cgroup(1000, max, "0.00"); // 24 MB headroom
+            assertEquals(Storage.mb(24).getBytes(), gate.sample().get(VolumeMonitor.AVAILABLE).getBytes());
+            assertFalse(gate.isOpen());
+            assertThrows(TimeoutException.class, () -> gate.awaitOpen(Duration.ofMillis(50)));
+
+            cgroup(920, max, "0.00"); // 104 MB; still below the resume mark
+            gate.sample();
+            assertFalse(gate.isOpen());
+            cgroup(800, max, "0.00");
+            gate.sample();
+            assertTrue(gate.isOpen());
+            assertTrue(gate.isThrottled());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testUnlimitedCgroupIsNeverGated() {
+        cgroup(4096, "max", "0.00");
+        try (var gate = CgroupMemoryGate.open(cgroup, thresholds).orElseThrow()) {
+            assertTrue(gate.isOpen());
+            assertFalse(gate.isThrottled());
+        }
+    }
+}
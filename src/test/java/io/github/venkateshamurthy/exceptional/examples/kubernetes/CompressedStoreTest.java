@@ -0,0 +1,126 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.KB;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressedStoreTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testCopyCompressesAndReadsBackLogicalBytes() {
+        var plain = folder.resolve("source/agent.tar");
+        Files.createDirectories(plain.getParent());
+        Files.write(plain, compressible(1_500_000));
+        var packed = folder.resolve("packed/agent.tar");
+
+        var result = FileUtils.copy(plain.toUri().toURL(), packed.toFile(), KB.toStorage(8), Duration.ofSeconds(10), true);
+
+        assertTrue(result.isRight(), () -> "Copy failed:" + result.getLeft());
+        assertEquals(Files.size(plain), result.get().getBytes());
+        assertTrue(CompressedStore.isCompressed(packed));
+        assertFalse(CompressedStore.isCompressed(plain));
+        assertEquals(Files.size(plain), CompressedStore.logicalSize(packed));
+        assertTrue(Files.size(packed) < Files.size(plain) / 2, "Expected the container to be compressed");
+        assertEquals(FileUtils.hexDigest(plain, "SHA-256"), FileUtils.hexDigest(packed, "SHA-256"));
+
+        var usage = CompressedStore.usage(packed.getParent().toFile());
+        assertEquals(Files.size(plain), usage.get(CompressedStore.LOGICAL).getBytes());
+        assertEquals(Files.size(packed), usage.get(CompressedStore.PHYSICAL).getBytes());
+    }
+
+    @Test
+    @SneakyThrows
+    void testSeekWithinContainer() {
+        var content = compressible(CompressedStore.DEFAULT_BLOCK_SIZE * 3 + 123);
+        var plain = folder.resolve("plain");
+        Files.write(plain, content);
+        var packed = folder.resolve("packed");
+        CompressedStore.compress(plain, packed);
+
+        try (var channel = CompressedStore.open(packed)) {
+            assertEquals(content.length, channel.size());
+            var buffer = ByteBuffer.allocate(1000);
+            long position = CompressedStore.DEFAULT_BLOCK_SIZE * 2L - 500;
+            channel.position(position);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) ;
+            assertArrayEquals(Arrays.copyOfRange(content, (int) position, (int) position + 1000), buffer.array());
+            channel.position(content.length);
+            assertEquals(-1, channel.read(buffer.clear()));
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testPlainFilesStartingOrEndingWithTheMagicAreNotContainers() {
+        var content = compressible(10_000);
+        var plain = folder.resolve("plain");
+        Files.write(plain, ByteBuffer.allocate(content.length + 8).putInt(CompressedStore.MAGIC).put(content)
+                .putInt(CompressedStore.MAGIC).array());
+        assertFalse(CompressedStore.isCompressed(plain));
+        assertEquals(content.length + 8, CompressedStore.logicalSize(plain));
+        try (var channel = CompressedStore.open(plain)) {
+            assertEquals(content.length + 8, channel.size());
+        }
+
+        var packed = folder.resolve("packed");
+        CompressedStore.compress(plain, packed);
+        assertTrue(CompressedStore.isCompressed(packed));
+        var truncated = folder.resolve("truncated");
+        var bytes = Files.readAllBytes(packed);
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 1));
+        assertFalse(CompressedStore.isCompressed(truncated));
+        var empty = folder.resolve("empty");
+        Files.write(empty, new byte[0]);
+        CompressedStore.compress(empty, packed);
+        assertTrue(CompressedStore.isCompressed(packed));
+        assertEquals(0L, CompressedStore.logicalSize(packed));
+    }
+
+    @Test
+    @SneakyThrows
+    void testTruncatedBlockIsReportedRatherThanReadForever() {
+        var content = compressible(CompressedStore.DEFAULT_BLOCK_SIZE * 3);
+        var plain = folder.resolve("plain");
+        Files.write(plain, content);
+        var packed = folder.resolve("packed");
+        CompressedStore.compress(plain, packed);
+
+        var bytes = ByteBuffer.wrap(Files.readAllBytes(packed));
+        long indexOffset = bytes.getLong(bytes.limit() - Integer.BYTES - Long.BYTES);
+        int secondLength = (int) indexOffset + Integer.BYTES + (Long.BYTES + Integer.BYTES) + Long.BYTES;
+        bytes.putInt(secondLength, bytes.getInt(secondLength) / 2); // the second block cut to half its input
+        Files.write(packed, bytes.array());
+
+        assertTrue(CompressedStore.isCompressed(packed));
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (var channel = CompressedStore.open(packed)) {
+                var buffer = ByteBuffer.allocate(8192);
+                var error = assertThrows(IOException.class, () -> {
+                    while (channel.read(buffer.clear()) >= 0) ;
+                });
+                assertTrue(error.getMessage().startsWith("Corrupt block 1"), error::getMessage);
+            }
+        });
+    }
+
+    private static byte[] compressible(int length) {
+        var random = new Random(7);
+        var bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = (byte) ('a' + random.nextInt(4));
+        return bytes;
+    }
+}
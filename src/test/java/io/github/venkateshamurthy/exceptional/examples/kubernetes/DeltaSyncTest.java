@@ -0,0 +1,155 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+public class DeltaSyncTest {
+    private static final int BLOCK_SIZE = 4096;
+    @TempDir
+    Path remote;
+    @TempDir
+    Path local;
+    private HttpServer server;
+    private URL url;
+    private byte[] newVersion;
+    private File previous;
+
+    @BeforeEach
+    @SneakyThrows
+    void setUp() {
+        var random = new Random(42);
+        var oldVersion = new byte[1024 * 1024];
+        random.nextBytes(oldVersion);
+        // new version: an insertion that shifts all later blocks plus a changed region and a new tail
+        var inserted = new byte[1000];
+        random.nextBytes(inserted);
+        var tail = new byte[10_000];
+        random.nextBytes(tail);
+        newVersion = concat(Arrays.copyOfRange(oldVersion, 0, 300_000), inserted,
+                Arrays.copyOfRange(oldVersion, 300_000, oldVersion.length), tail);
+        Arrays.fill(newVersion, 700_000, 705_000, (byte) 7);
+
+        var published = remote.resolve("agent.tar");
+        Files.write(published, newVersion);
+        try (OutputStream out = Files.newOutputStream(remote.resolve("agent.tar" + DeltaSync.BLOCK_MAP_SUFFIX))) {
+            DeltaSync.BlockMap.of(published.toFile(), BLOCK_SIZE).write(out);
+        }
+        previous = local.resolve("previous.tar").toFile();
+        Files.write(previous.toPath(), oldVersion);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::serveWithRanges);
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/agent.tar");
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    @SneakyThrows
+    void testDeltaFetchesOnlyMissingBlocks() {
+        var out = local.resolve("new/agent.tar").toFile();
+        var result = new DeltaSync(Duration.ofSeconds(10), false).sync(url, previous, out,
+                Storage.of(newVersion.length), FileUtils.hexDigest(remote.resolve("agent.tar"), "SHA-256"));
+
+        assertTrue(result.isRight(), () -> "Delta failed:" + result.getLeft());
+        assertArrayEquals(newVersion, Files.readAllBytes(out.toPath()));
+        log.info("Fetched {} for a file of {} bytes", result.get(), newVersion.length);
+        assertTrue(result.get().getBytes() < newVersion.length / 10, "Expected only a few blocks to be fetched");
+        assertEquals(1, Files.list(out.toPath().getParent()).count(), "Assembled in place with nothing beside it");
+    }
+
+    @Test
+    @SneakyThrows
+    void testDeltaIsAssembledCompressedThroughTheGate() {
+        var out = local.resolve("new/agent.tar").toFile();
+        var waits = new AtomicInteger();
+        TransferGate gate = maxPause -> {
+            waits.incrementAndGet();
+            return Duration.ZERO;
+        };
+        var result = new DeltaSync(Duration.ofSeconds(10), true).sync(url, previous, out,
+                Storage.of(newVersion.length), FileUtils.hexDigest(remote.resolve("agent.tar"), "SHA-256"), gate);
+
+        assertTrue(result.isRight(), () -> "Delta failed:" + result.getLeft());
+        assertTrue(CompressedStore.isCompressed(out.toPath()));
+        try (var in = Channels.newInputStream(CompressedStore.open(out.toPath()))) {
+            assertArrayEquals(newVersion, in.readAllBytes());
+        }
+        assertTrue(waits.get() > newVersion.length / BLOCK_SIZE / 2, () -> "Every write goes through the gate; waits:" + waits);
+        assertEquals(1, Files.list(out.toPath().getParent()).count(), "No plain copy is left beside the compressed one");
+    }
+
+    @Test
+    void testDeltaRejectsChecksumMismatch() {
+        var out = local.resolve("new/agent.tar").toFile();
+        var result = new DeltaSync(Duration.ofSeconds(10), false).sync(url, previous, out,
+                Storage.of(newVersion.length), "00".repeat(32));
+
+        assertTrue(result.isLeft());
+        assertInstanceOf(IllegalStateException.class, result.getLeft());
+        assertFalse(out.exists());
+    }
+
+    @SneakyThrows
+    private void serveWithRanges(HttpExchange exchange) {
+        var file = remote.resolve(exchange.getRequestURI().getPath().substring(1));
+        if (!Files.exists(file)) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        var bytes = Files.readAllBytes(file);
+        var range = exchange.getRequestHeaders().getFirst("Range");
+        try (exchange; var body = exchange.getResponseBody()) {
+            if (range == null) {
+                exchange.sendResponseHeaders(200, bytes.length);
+                body.write(bytes);
+            } else {
+                var bounds = range.substring("bytes=".length()).split("-");
+                int from = Integer.parseInt(bounds[0]), to = Integer.parseInt(bounds[1]);
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + bytes.length);
+                exchange.sendResponseHeaders(206, to - from + 1);
+                body.write(bytes, from, to - from + 1);
+            }
+        } catch (IOException e) {
+            log.warn("Serving {} failed:{}", file, e.getMessage());
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        var length = Arrays.stream(parts).mapToInt(p -> p.length).sum();
+        var all = new byte[length];
+        int position = 0;
+        for (var part : parts) {
+            System.arraycopy(part, 0, all, position, part.length);
+            position += part.length;
+        }
+        return all;
+    }
+}
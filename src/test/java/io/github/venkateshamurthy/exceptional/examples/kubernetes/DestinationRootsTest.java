@@ -0,0 +1,83 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DestinationRootsTest {
+    @TempDir
+    Path ssd1;
+    @TempDir
+    Path ssd2;
+    @TempDir
+    Path disk;
+    private DestinationRoots roots;
+
+    @BeforeEach
+    @SneakyThrows
+    void setUp() {
+        Files.createDirectories(ssd2.resolve("packages"));
+        Files.writeString(ssd2.resolve("packages/DEM-Agent-1.exe"), "old");
+        Files.writeString(ssd2.resolve("packages/DEM-Agent-1.exe" + FileUtils.PART_SUFFIX), "partial");
+        roots = new DestinationRoots(List.of(ssd1.toFile(), ssd2.toFile()), disk.toFile(), Storage.ZERO, Storage.mb(1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        roots.close();
+    }
+
+    @Test
+    void testPublishedFilesAreLocatedFromTheIndex() {
+        assertEquals(ssd1.toFile().getAbsoluteFile(), roots.primary());
+        assertEquals(ssd2.resolve("packages/DEM-Agent-1.exe").toFile(), roots.locate("/packages/DEM-Agent-1.exe").orElseThrow());
+        assertTrue(roots.locate("/packages/DEM-Agent-2.exe").isEmpty());
+        assertEquals(1, roots.listFiles(file -> true, Comparator.naturalOrder(), 0).size());
+    }
+
+    @Test
+    @SneakyThrows
+    void testPlacementSpreadsDownloadsInFlight() {
+        var first = roots.place("/packages/DEM-Agent-2.exe", Storage.kb(1));
+        var second = roots.place("/packages/DEM-Agent-3.exe", Storage.kb(1));
+        assertNotEquals(first, second);
+
+        var published = new File(second.getRoot(), "/packages/DEM-Agent-3.exe");
+        Files.createDirectories(published.toPath().getParent());
+        Files.writeString(published.toPath(), "new");
+        roots.published(published);
+        second.done();
+        first.done();
+        assertSame(second, roots.stripeOf(published));
+        assertSame(second, roots.place("/packages/DEM-Agent-3.exe", Storage.kb(1)), "published file stays put");
+        assertEquals(2, roots.listFiles(file -> file.getName().startsWith("DEM"), Comparator.naturalOrder(), 0).size());
+    }
+
+    @Test
+    @SneakyThrows
+    void testDemotedFilesAreStillLocatedAndPromotedBack() {
+        var hot = roots.locate("/packages/DEM-Agent-1.exe").orElseThrow();
+        var demoted = roots.demote(hot);
+        assertEquals(disk.resolve("packages/DEM-Agent-1.exe").toFile(), demoted);
+        assertFalse(hot.exists());
+        assertTrue(roots.isCold(roots.locate("/packages/DEM-Agent-1.exe").orElseThrow()));
+        assertEquals("old", Files.readString(demoted.toPath()));
+
+        var promoted = roots.promote(demoted);
+        assertFalse(roots.isCold(promoted));
+        assertFalse(demoted.exists());
+        assertEquals(promoted, roots.locate("/packages/DEM-Agent-1.exe").orElseThrow());
+        assertEquals("old", Files.readString(promoted.toPath()));
+        assertEquals(1, roots.listFiles(file -> true, Comparator.naturalOrder(), 0).size());
+    }
+}
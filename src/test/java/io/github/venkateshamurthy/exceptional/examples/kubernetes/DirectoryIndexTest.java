@@ -0,0 +1,82 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DirectoryIndexTest {
+    private static final String DEM = "/hcs-agents-stable/packages/DEM-Agent/";
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testOlderThanNewestByTypeFollowsTheTree() {
+        var root = folder.toFile();
+        var v1 = agent(root, DEM + "10.14.0/1/agent.tar", 1_000L);
+        var v2 = agent(root, DEM + "10.15.0/2/agent.tar", 2_000L);
+        agent(root, "/hcs-agents-stable/packages/App-Volumes-Agent/4.17.0/1/agent.msi", 3_000L);
+        try (var index = new DirectoryIndex(List.of(root), DestinationRoots::typeOf, file -> !FileUtils.isPartial(file))) {
+            assertEquals(3, index.size());
+            assertEquals(List.of(v1), index.olderThanNewest("DEM-Agent", file -> true, 1));
+
+            // picked up from the watch events (or failing those, the next reconcile)
+            var v3 = agent(root, DEM + "10.16.0/3/agent.tar", 4_000L);
+            assertTrue(eventually(() -> index.contains(v3)));
+            assertTrue(eventually(() -> index.olderThanNewest("DEM-Agent", file -> true, 1).equals(List.of(v2, v1))));
+
+            Files.delete(v1.toPath());
+            assertTrue(eventually(() -> !index.contains(v1)));
+            assertEquals(List.of(v2), index.olderThanNewest("DEM-Agent", file -> true, 1));
+
+            assertTrue(v2.setLastModified(5_000L));
+            index.refresh(v2);
+            assertEquals(List.of(v3), index.olderThanNewest("DEM-Agent", file -> true, 1));
+            assertTrue(index.olderThanNewest("Horizon-Enterprise-Agent", file -> true, 0).isEmpty());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testADirectoryRecreatedAtTheSamePathIsWatchedAfresh() {
+        var root = folder.toFile();
+        var v1 = agent(root, DEM + "10.14.0/1/agent.tar", 1_000L);
+        var version = v1.getParentFile().toPath();
+        try (var index = new DirectoryIndex(List.of(root), DestinationRoots::typeOf, file -> !FileUtils.isPartial(file))) {
+            assertTrue(index.contains(v1));
+            Files.move(version, version.resolveSibling(".moved-aside"));
+            assertTrue(eventually(() -> !index.contains(v1)));
+
+            Files.createDirectories(version);
+            assertTrue(eventually(() -> index.files().isEmpty()));
+            TimeUnit.MILLISECONDS.sleep(500); // for the recreated directory to be registered
+            var v2 = agent(root, DEM + "10.14.0/1/agent.tar", 2_000L);
+            assertTrue(eventually(() -> index.get(v2).filter(entry ->
+                    entry.getAttributes().lastModifiedTime().toMillis() == 2_000L).isPresent()));
+        }
+    }
+
+    @SneakyThrows
+    private static File agent(File root, String relative, long lastModified) {
+        var file = new File(root, relative);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.writeString(file.toPath(), relative);
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+
+    @SneakyThrows
+    private static boolean eventually(BooleanSupplier condition) {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) TimeUnit.MILLISECONDS.sleep(50);
+        return condition.getAsBoolean();
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.openapi.models.V1Container;
+import io.kubernetes.client.openapi.models.V1EmptyDirVolumeSource;
+import io.kubernetes.client.openapi.models.V1PodSpec;
+import io.kubernetes.client.openapi.models.V1ResourceRequirements;
+import io.kubernetes.client.openapi.models.V1Volume;
+import io.kubernetes.client.openapi.models.V1VolumeMount;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DownloadPlannerTest {
+    private static final List<Agents> AGENTS = List.of(Agents.values());
+
+    @Test
+    void testQuantitiesConvertToStorage() {
+        assertEquals(1024L * 1024 * 1024, DownloadPlanner.toStorage(Quantity.fromString("1Gi")).orElseThrow().getBytes());
+        assertEquals(500_000_000L, DownloadPlanner.toStorage(Quantity.fromString("500M")).orElseThrow().getBytes());
+        assertEquals(2_000_000_000L, DownloadPlanner.toStorage(Quantity.fromString("2e9")).orElseThrow().getBytes());
+        assertTrue(DownloadPlanner.toStorage(null).isEmpty());
+    }
+
+    @Test
+    void testPlanKeepsTheProjectedPeakUnderTheLimit() {
+        var unlimited = DownloadPlanner.plan(Optional.empty(), AGENTS, 2, 3);
+        assertEquals(2, unlimited.getConcurrency());
+        assertEquals(3, unlimited.getRetain());
+        assertEquals(0L, unlimited.getMinFreeSpace().getBytes());
+
+        var roomy = DownloadPlanner.plan(Optional.of(Storage.gb(4)), AGENTS, 2, 3);
+        assertTrue(roomy.fits());
+        assertEquals(3, roomy.getRetain());
+
+        var tight = DownloadPlanner.plan(Optional.of(Storage.mb(1024)), AGENTS, 2, 3);
+        assertTrue(tight.fits(), tight::toString);
+        assertTrue(tight.getRetain() * tight.getConcurrency() < roomy.getRetain() * roomy.getConcurrency());
+        assertTrue(tight.getProjectedPeak().getBytes() <= Storage.mb(1024).getBytes() * DownloadPlanner.SAFETY_FACTOR);
+        assertTrue(tight.getProjectedPeak().getBytes() + tight.getMinFreeSpace().getBytes() <= Storage.mb(1024).getBytes());
+        assertTrue(tight.getMinFreeSpace().getBytes() > 0L);
+
+        var hopeless = DownloadPlanner.plan(Optional.of(Storage.mb(100)), AGENTS, 2, 3);
+        assertFalse(hopeless.fits());
+        assertEquals(1, hopeless.getConcurrency());
+        assertEquals(1, hopeless.getRetain());
+    }
+
+    @Test
+    void testExtractedTarAgentsCountTwice() {
+        var kept = DownloadPlanner.plan(Optional.empty(), List.of(Agents.DEM15, Agents.AV18), 1, 1);
+        var extracted = DownloadPlanner.plan(Optional.empty(), List.of(Agents.DEM15, Agents.AV18), 1, 1, true);
+        assertEquals(kept.getProjectedPeak().getBytes() + Agents.DEM15.getFileSize().getBytes(),
+                extracted.getProjectedPeak().getBytes());
+    }
+
+    @Test
+    void testLimitIsTheLeastOfContainerAndEmptyDir() {
+        var spec = new V1PodSpec()
+                .addContainersItem(new V1Container().name("sidecar"))
+                .addContainersItem(new V1Container().name("downloader")
+                        .resources(new V1ResourceRequirements().limits(Map.of("ephemeral-storage", Quantity.fromString("2Gi"))))
+                        .addVolumeMountsItem(new V1VolumeMount().name("agent-volume").mountPath("/agent")))
+                .addVolumesItem(new V1Volume().name("agent-volume")
+                        .emptyDir(new V1EmptyDirVolumeSource().sizeLimit(Quantity.fromString("1Gi"))));
+        assertEquals(Storage.gb(1).getBytes(),
+                EphemeralStorageExample.ephemeralStorageLimit(spec, new File("/agent")).orElseThrow().getBytes());
+        assertTrue(EphemeralStorageExample.ephemeralStorageLimit(new V1PodSpec()
+                .addContainersItem(new V1Container().name("plain")), new File("/agent")).isEmpty());
+    }
+}
@@ -45,7 +45,7 @@ public class EphemeralStorageExampleTest {
 
     @BeforeEach
     void cleanUp() {
-        FileUtils.cleanupDirectory(localTmpAgentFolder);
+        AsyncCleanup.cleanup(localTmpAgentFolder, freed -> {}).join();
     }
 
     @Test
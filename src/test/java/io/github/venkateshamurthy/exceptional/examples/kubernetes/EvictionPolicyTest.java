@@ -0,0 +1,68 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EvictionPolicyTest {
+    private static final String HZE = AgentDownloader.HZE_AGENT;
+    private static final String DEM = AgentDownloader.DEM_AGENT;
+
+    private static EvictionPolicy.Candidate candidate(String type, String version, long mb, long modified, long accessed) {
+        return new EvictionPolicy.Candidate(new File("/agent/packages/" + type + "/" + version + "/agent.tar"), type,
+                Storage.mb(mb), modified, accessed);
+    }
+
+    private static Set<String> versions(List<EvictionPolicy.Candidate> victims) {
+        return victims.stream().map(victim -> victim.getType() + ":" + victim.getVersion()).collect(Collectors.toSet());
+    }
+
+    private final EvictionPolicy.Candidate hze12 = candidate(HZE, "8.12.0", 280, 4, 50);
+    private final EvictionPolicy.Candidate hze13 = candidate(HZE, "8.13.0", 250, 3, 10);
+    private final EvictionPolicy.Candidate hze14 = candidate(HZE, "8.14.0", 250, 2, 20);
+    private final EvictionPolicy.Candidate hze15 = candidate(HZE, "8.15.0", 250, 1, 1);
+    private final EvictionPolicy.Candidate dem15 = candidate(DEM, "10.15.0", 12, 1, 1);
+    private final EvictionPolicy.Candidate dem16 = candidate(DEM, "10.16.0", 12, 2, 2);
+    private final Map<String, List<EvictionPolicy.Candidate>> candidates =
+            Map.of(HZE, List.of(hze12, hze13, hze14, hze15), DEM, List.of(dem15, dem16));
+
+    @Test
+    void testNewestRetainsACountOfTheLatestModified() {
+        // the one just published is kept whatever its age
+        assertEquals(Set.of(HZE + ":8.13.0/agent.tar", HZE + ":8.14.0/agent.tar"),
+                versions(EvictionPolicy.newest(2).victims(candidates, hze15.getFile())));
+        assertEquals(Set.of(HZE + ":8.12.0/agent.tar", HZE + ":8.13.0/agent.tar", HZE + ":8.14.0/agent.tar",
+                DEM + ":10.15.0/agent.tar"), versions(EvictionPolicy.newest(1).victims(candidates, hze15.getFile())));
+    }
+
+    @Test
+    void testPerTypeBudgetKeepsAsManyVersionsAsFit() {
+        var byVersion = EvictionPolicy.byteBudget(Storage.mb(600), Storage.gb(4), EvictionPolicy.BY_VERSION);
+        assertEquals(Set.of(HZE + ":8.13.0/agent.tar", HZE + ":8.12.0/agent.tar"),
+                versions(byVersion.victims(candidates, hze15.getFile())));
+
+        var byAccess = EvictionPolicy.byteBudget(Storage.mb(600), Storage.gb(4), EvictionPolicy.LAST_ACCESS);
+        assertEquals(Set.of(HZE + ":8.13.0/agent.tar", HZE + ":8.14.0/agent.tar"),
+                versions(byAccess.victims(candidates, hze15.getFile())));
+    }
+
+    @Test
+    void testGlobalBudgetEvictsTheLowestRankedButNeverTheLastCopy() {
+        var tight = EvictionPolicy.byteBudget(Storage.gb(4), Storage.mb(300), EvictionPolicy.BY_VERSION);
+        var victims = tight.victims(candidates, hze15.getFile());
+        // the ranked lowest of their type go first; the older DEM is kept once the total fits
+        assertEquals(Set.of(HZE + ":8.12.0/agent.tar", HZE + ":8.13.0/agent.tar", HZE + ":8.14.0/agent.tar"),
+                versions(victims));
+
+        var nothingFits = EvictionPolicy.byteBudget(Storage.mb(1), Storage.mb(1), EvictionPolicy.LAST_ACCESS);
+        var kept = candidates.values().stream().flatMap(List::stream)
+                .filter(candidate -> !nothingFits.victims(candidates, hze15.getFile()).contains(candidate)).toList();
+        assertEquals(Set.of(HZE + ":8.15.0/agent.tar", DEM + ":10.16.0/agent.tar"), versions(kept));
+    }
+}
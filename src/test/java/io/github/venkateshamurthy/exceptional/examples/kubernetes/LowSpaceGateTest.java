@@ -0,0 +1,55 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import io.reactivex.rxjava3.subjects.PublishSubject;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LowSpaceGateTest {
+    private final PublishSubject<Map<String, Storage>> readings = PublishSubject.create();
+    private final LowSpaceGate gate = new LowSpaceGate(readings, () -> Storage.mb(100), Storage.mb(10), Storage.mb(50));
+
+    private void free(long mb) {
+        readings.onNext(Map.of(VolumeMonitor.AVAILABLE, Storage.mb(mb)));
+    }
+
+    @Test
+    @SneakyThrows
+    void testGatePausesBelowLowWaterAndResumesAboveHighWater() {
+        free(200);
+        assertTrue(gate.isOpen());
+        free(105); // headroom of 5 MB over the reservations
+        assertFalse(gate.isOpen());
+
+        var paused = CompletableFuture.supplyAsync(() -> {
+            try {
+                return gate.awaitOpen(Duration.ofSeconds(5));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        free(130); // between the marks; stays paused
+        assertThrows(TimeoutException.class, () -> paused.get(200, TimeUnit.MILLISECONDS));
+        assertFalse(gate.isOpen());
+
+        free(160);
+        assertTrue(gate.isOpen());
+        assertTrue(paused.get(5, TimeUnit.SECONDS).toMillis() >= 200L);
+        gate.close();
+    }
+
+    @Test
+    void testPauseBeyondTheMaximumTimesOut() {
+        free(100);
+        assertThrows(TimeoutException.class, () -> gate.awaitOpen(Duration.ofMillis(100)));
+        gate.close();
+        assertTrue(gate.isOpen());
+    }
+}
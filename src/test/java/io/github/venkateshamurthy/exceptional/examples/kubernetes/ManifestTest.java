@@ -0,0 +1,130 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.stream.Collectors;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.B;
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+public class ManifestTest {
+    @TempDir
+    Path folder;
+
+    private static String pathOf(Agents agent) {
+        return agent.getUri().toString().substring(Agents.HCS_AGENTS_STABLE_PACKAGES.length());
+    }
+
+    private static Manifest json(String text) throws IOException {
+        return Manifest.readJson(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Manifest sums(String text) throws IOException {
+        return Manifest.readSums(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    @SneakyThrows
+    void testJsonManifestOfTheAgentsDrivesTheSameLookups() {
+        var manifest = json(Arrays.stream(Agents.values())
+                .map(agent -> String.format("{\"path\":\"%s\",\"size\":%d,\"sha256\":\"%s\",\"note\":[1,{}]}",
+                        pathOf(agent), agent.getFileSize().getBytes(), agent.getCheckSum()))
+                .collect(Collectors.joining(",", "{\"version\":1,\"artifacts\":[", "]}")));
+        assertEquals(Agents.values().length, manifest.size());
+        assertEquals(3, manifest.types());
+        for (Agents agent : Agents.values()) {
+            var artifact = manifest.of(agent.getUri()).orElseThrow();
+            assertEquals(agent.getUri(), artifact.getUri());
+            assertEquals(agent.getFileSize().getBytes(), artifact.getFileSize().getBytes());
+            assertEquals(agent.getCheckSum(), artifact.getCheckSum());
+            assertEquals(agent.getMetadata().toString(), artifact.getMetadata().toString());
+            assertEquals(artifact, manifest.ofPath(agent.getMetadata().getRelativePath()).orElseThrow());
+        }
+        assertTrue(manifest.of(URI.create("https://example.com/packages/DEM-Agent/1/2/agent.tar")).isEmpty());
+        assertEquals(7, new Reconciler(3, manifest).desired(manifest.uris()).size());
+    }
+
+    @Test
+    @SneakyThrows
+    void testSumsManifestVerifiesAnArtifact() {
+        var file = folder.resolve("agent.tar");
+        Files.writeString(file, "agent");
+        var manifest = sums("# base https://example.com/mirror/packages/\n# a comment\n\n"
+                + FileUtils.hexDigest(file, Artifact.CHECKSUM_TYPE) + "  5  *Tool-Agent/1.0.0/7/agent.tar\n");
+        var artifact = manifest.ofPath("/mirror/packages/Tool-Agent/1.0.0/7/agent.tar").orElseThrow();
+        assertEquals(URI.create("https://example.com/mirror/packages/Tool-Agent/1.0.0/7/agent.tar"), artifact.getUri());
+        assertEquals("Tool-Agent", artifact.getMetadata().getType());
+        assertEquals("7", artifact.getMetadata().getBuild());
+        assertSame(artifact.getMetadata(), manifest.of(artifact.getUri()).orElseThrow().getMetadata()); // parsed once
+        assertEquals(artifact.getMetadata().getRelativePath(), Reconciler.relativePath(manifest, artifact.getUri()));
+        assertTrue(artifact.verify(file.toFile()).isRight());
+        Files.writeString(file, "tampered");
+        assertTrue(artifact.verify(file.toFile()).isLeft());
+    }
+
+    @Test
+    void testMalformedManifestsAreRejected() {
+        var digest = "00".repeat(Manifest.DIGEST_LENGTH);
+        assertThrows(IOException.class, () -> sums(digest + " 5\n"));
+        assertThrows(IOException.class, () -> sums(digest + " five A/1/2/a.tar\n"));
+        assertThrows(IOException.class, () -> sums("abcd 5 A/1/2/a.tar\n"));
+        assertThrows(IOException.class, () -> sums(digest + " 5 A/a.tar\n"));
+        assertThrows(IllegalArgumentException.class, () -> sums(digest + " 5 A/1/2/a.tar\n" + digest + " 6 A/1/2/a.tar\n"));
+        assertThrows(IllegalArgumentException.class, () -> sums("# base https://example.com/mirror/\n"));
+        assertThrows(IOException.class, () -> json("[]"));
+        assertThrows(IOException.class, () -> json("{\"artifacts\":[{\"path\":\"A/1/2/a.tar\",\"size\":5}]}"));
+    }
+
+    @Test
+    @Tag("slow")
+    @SneakyThrows
+    void testLoadTimeAndHeapOfAHundredThousandArtifacts() {
+        final int count = 100_000;
+        final var file = folder.resolve("manifest.json");
+        final var hex = HexFormat.of();
+        final byte[] digest = new byte[Manifest.DIGEST_LENGTH];
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("{\"base\":\"" + Agents.HCS_AGENTS_STABLE_PACKAGES + "\",\"artifacts\":[");
+            for (int i = 0; i < count; i++) {
+                digest[0] = (byte) i;
+                digest[1] = (byte) (i >> 8);
+                digest[2] = (byte) (i >> 16);
+                out.write(String.format("%s{\"path\":\"Type-%d-Agent/%d.%d.0/%d/agent.tar\",\"size\":%d,\"sha256\":\"%s\"}",
+                        i == 0 ? "" : ",", i % 500, i / 5000, i % 100, 1_000_000 + i, 1_000_000L + i, hex.formatHex(digest)));
+            }
+            out.write("]}");
+        }
+
+        final Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        final long before = runtime.totalMemory() - runtime.freeMemory();
+        final long start = System.nanoTime();
+        final Manifest manifest = Manifest.load(file);
+        final long elapsed = (System.nanoTime() - start) / 1_000_000L;
+        System.gc();
+        final long heap = runtime.totalMemory() - runtime.freeMemory() - before;
+        log.info("Loaded {} ({}) in {} ms; heap {} ({} bytes an artifact)", manifest, B.toStorage(Files.size(file)),
+                elapsed, B.toStorage(Math.max(0L, heap)), heap / count);
+
+        assertEquals(count, manifest.size());
+        assertEquals(500, manifest.types());
+        var artifact = manifest.of(URI.create(Agents.HCS_AGENTS_STABLE_PACKAGES + "Type-7-Agent/8.7.0/1040007/agent.tar"))
+                .orElseThrow();
+        assertEquals(1_040_007L, artifact.getFileSize().getBytes());
+        assertTrue(heap < 64L * 1024 * 1024, "heap " + heap);
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PeerServerTest {
+    private static final String PATH = "/packages/DEM-Agent-1.exe";
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testFetchSkipsMissingAndCorruptPeers() {
+        final byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(content);
+        final File good = Files.write(folder.resolve("good.exe"), content).toFile();
+        final String checkSum = FileUtils.hexDigest(good.toPath(), "SHA-256");
+        final File corrupt = Files.write(folder.resolve("corrupt.exe"), new byte[1024]).toFile();
+        final File compressed = folder.resolve("compressed.exe").toFile();
+        CompressedStore.compress(good.toPath(), compressed.toPath());
+
+        try (var empty = new PeerServer(0, path -> Optional.empty());
+             var lying = new PeerServer(0, path -> Optional.of(new PeerServer.Artifact(corrupt, checkSum)));
+             var holding = new PeerServer(0, path -> Optional.of(new PeerServer.Artifact(compressed, checkSum)))) {
+            final File out = folder.resolve("out/DEM-Agent-1.exe.part").toFile();
+            var result = PeerServer.fetch(List.of(uri(empty), uri(lying), uri(holding)), PATH, checkSum, out,
+                    Duration.ofSeconds(10), false, TransferGate.OPEN);
+            assertTrue(result.isRight(), () -> result.getLeft().getMessage());
+            assertEquals(content.length, result.get().getBytes());
+            assertArrayEquals(content, Files.readAllBytes(out.toPath()));
+
+            Files.delete(out.toPath());
+            var none = PeerServer.fetch(List.of(uri(empty), uri(lying)), PATH, checkSum, out,
+                    Duration.ofSeconds(10), false, TransferGate.OPEN);
+            assertTrue(none.isLeft());
+            assertFalse(out.exists());
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testDownloaderFetchesFromThePeerServingIt() {
+        final byte[] tar = new TarFixture().file("agent/README", "hello").end();
+        final String relative = "/mirror/packages/Tool-Agent/1.0.0/7/agent.tar";
+        final File held = folder.resolve("holding" + relative).toFile();
+        assertTrue(held.getParentFile().mkdirs());
+        Files.write(held.toPath(), tar);
+        final var manifest = Manifest.readSums(new ByteArrayInputStream(("# base http://127.0.0.1:9/mirror/packages/\n"
+                + FileUtils.hexDigest(held.toPath(), "SHA-256") + "  " + tar.length + "  Tool-Agent/1.0.0/7/agent.tar\n")
+                .getBytes(StandardCharsets.UTF_8))); // the base is not served; so only the peer can have it
+        final var agent = manifest.ofPath(relative).orElseThrow();
+
+        try (var holding = AgentDownloader.builder().timeOut(Duration.ofSeconds(10)).minFreeSpace(Storage.ZERO)
+                .destinationFolder(new AtomicReference<>(folder.resolve("holding").toFile())).catalog(manifest).build();
+             var server = new PeerServer(0, holding::servable);
+             var fetching = holding.toBuilder().destinationFolder(new AtomicReference<>(folder.resolve("fetching").toFile()))
+                     .peers(List.of(uri(server))).build()) {
+            assertTrue(holding.servable(relative).isPresent());
+            assertEquals("http://127.0.0.1:" + server.getPort() + "/agents" + relative,
+                    PeerServer.urlOf(URI.create("http://127.0.0.1:" + server.getPort()), relative).toString());
+            fetching.doCopy(false, agent.getUri());
+            assertArrayEquals(tar, Files.readAllBytes(folder.resolve("fetching" + relative)));
+        }
+    }
+
+    private static URI uri(PeerServer server) {
+        return URI.create("http://localhost:" + server.getPort() + "/");
+    }
+}
@@ -0,0 +1,95 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.Reconciler.Action.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReconcilerTest {
+    private static final URI[] URIS = Agents.getUris();
+    @TempDir
+    Path folder;
+
+    @Test
+    void testDesiredAreTheNewestVersionsOfEachType() {
+        var desired = new Reconciler(3).desired(URIS);
+        assertEquals(7, desired.size());
+        assertTrue(desired.containsAll(List.of(Agents.HZE16, Agents.HZE15, Agents.HZE14)));
+        assertFalse(desired.contains(Agents.HZE13));
+        assertFalse(desired.contains(Agents.HZE12));
+        assertEquals(List.of(Agents.DEM16), new Reconciler(1).desired(Agents.DEM15.getUri(), Agents.DEM16.getUri()));
+    }
+
+    @Test
+    @SneakyThrows
+    void testPlanDoesOnlyTheWorkNeeded() {
+        var reconciler = new Reconciler(3);
+        var kept = agentFile(Agents.HZE16, Agents.HZE16.getFileSize().getBytes());
+        Reconciler.cacheChecksum(folder.toFile(), kept, Agents.HZE16.getCheckSum());
+        var unverified = agentFile(Agents.HZE15, Agents.HZE15.getFileSize().getBytes());
+        var truncated = agentFile(Agents.HZE14, 1024L);
+        var older = agentFile(Agents.HZE13, Agents.HZE13.getFileSize().getBytes());
+        var observed = Reconciler.observe(List.of(folder.toFile()), List.of(kept, unverified, truncated, older));
+
+        var roomy = reconciler.plan(URIS, observed, Storage.gb(10), Storage.mb(245));
+        assertEquals(Map.of(KEEP, 1L, VERIFY, 1L, DOWNLOAD, 5L, DELETE, 2L), roomy.summary());
+        assertEquals(List.of(truncated), roomy.getBeforeDownloads().stream().map(Reconciler.Step::getFile).toList());
+        assertEquals(List.of(older), roomy.getAfterDownloads().stream().map(Reconciler.Step::getFile).toList());
+        assertFalse(roomy.isSteady());
+
+        var tight = reconciler.plan(URIS, observed, Storage.mb(100), Storage.mb(245));
+        assertTrue(tight.getAfterDownloads().isEmpty());
+        assertEquals(2, tight.getBeforeDownloads().size());
+
+        var steady = new Reconciler(1).plan(new URI[]{Agents.HZE16.getUri()},
+                Map.of(Reconciler.relativePath(Catalog.AGENTS, Agents.HZE16.getUri()), kept), Storage.ZERO, Storage.mb(245));
+        assertTrue(steady.isSteady(), steady::toString);
+
+        assertTrue(kept.setLastModified(kept.lastModified() - 60_000L));
+        assertEquals(Optional.empty(), Reconciler.cachedChecksum(folder.toFile(), kept));
+    }
+
+    @Test
+    @SneakyThrows
+    void testChecksumsAreKeptInTheSidecarOfTheRootWithoutUserAttributes() {
+        var root = folder.toFile();
+        var kept = agentFile(Agents.HZE16, 1024L);
+        var gone = agentFile(Agents.HZE15, 1024L);
+        Reconciler.keepInSidecar(root, gone, Agents.HZE15.getCheckSum());
+        Reconciler.keepInSidecar(root, kept, Agents.HZE16.getCheckSum());
+        var sidecar = new File(root, Reconciler.CHECKSUMS);
+        assertTrue(sidecar.isHidden());
+        assertEquals(Optional.of(Agents.HZE16.getCheckSum()), Reconciler.cachedChecksum(root, kept));
+        assertEquals(Optional.of(Agents.HZE15.getCheckSum()), Reconciler.cachedChecksum(root, gone));
+
+        assertTrue(gone.delete());
+        Reconciler.keepInSidecar(root, kept, Agents.HZE16.getCheckSum());
+        assertFalse(Files.readString(sidecar.toPath()).contains(Reconciler.relativePath(Catalog.AGENTS, Agents.HZE15.getUri())));
+
+        try (var raf = new RandomAccessFile(kept, "rw")) {
+            raf.setLength(2048L); // size changed; the modification time may not have
+        }
+        assertEquals(Optional.empty(), Reconciler.cachedChecksum(root, kept));
+    }
+
+    @SneakyThrows
+    private File agentFile(Agents agent, long length) {
+        var file = new File(folder.toFile(), Reconciler.relativePath(Catalog.AGENTS, agent.getUri()));
+        assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+        try (var raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+        return file;
+    }
+}
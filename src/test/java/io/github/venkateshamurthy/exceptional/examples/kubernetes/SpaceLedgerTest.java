@@ -0,0 +1,66 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpaceLedgerTest {
+    @TempDir
+    Path folder;
+    private final AtomicLong free = new AtomicLong(Storage.mb(500).getBytes());
+    private final SpaceLedger ledger = new SpaceLedger(() -> Storage.of(free.get()));
+
+    @Test
+    @SneakyThrows
+    void testReservationsQueueUntilReleased() {
+        var first = ledger.reserve(Storage.mb(300), Storage.mb(10), folder.resolve("a.part").toFile(), Duration.ofSeconds(5));
+        assertEquals(Storage.mb(300).getBytes(), ledger.getReserved().getBytes());
+
+        var second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return ledger.reserve(Storage.mb(300), Storage.mb(10), folder.resolve("b.part").toFile(), Duration.ofSeconds(5));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThrows(TimeoutException.class, () -> second.get(300, TimeUnit.MILLISECONDS));
+
+        first.close();
+        second.get(5, TimeUnit.SECONDS).close();
+        assertEquals(0L, ledger.getReserved().getBytes());
+    }
+
+    @Test
+    @SneakyThrows
+    void testWrittenBytesAreNotCountedTwice() {
+        var growing = folder.resolve("a.part");
+        try (var reservation = ledger.reserve(Storage.mb(1), Storage.ZERO, growing.toFile(), Duration.ofSeconds(1))) {
+            Files.write(growing, new byte[(int) Storage.kb(256).getBytes()]);
+            free.addAndGet(-Storage.kb(256).getBytes());
+            assertEquals(Storage.kb(768).getBytes(), ledger.getReserved().getBytes());
+        }
+    }
+
+    @Test
+    void testReservationThatNeverFitsTimesOut() {
+        assertThrows(IllegalStateException.class, () ->
+                ledger.reserve(Storage.gb(1), Storage.mb(10), folder.resolve("c.part").toFile(), Duration.ofMillis(200)));
+    }
+
+    @Test
+    void testMinFreeSpaceIsLeftOverTheReservation() {
+        assertThrows(IllegalStateException.class, () ->
+                ledger.reserve(Storage.mb(495), Storage.mb(10), folder.resolve("d.part").toFile(), Duration.ofMillis(200)));
+        assertEquals(0L, ledger.getReserved().getBytes());
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.StoreUnit.KB;
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.TarFixture.LONG_NAME;
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.TarFixture.PAYLOAD;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TarExtractorTest {
+    @TempDir
+    Path folder;
+
+    private static byte[] tar(String firstName) {
+        return new TarFixture()
+                .header("", "agent/", 0L, '5', "0000755")
+                .file(firstName, "hello")
+                .header("", "agent/bin/run.sh", PAYLOAD.length, '0', "0000755").content(PAYLOAD)
+                .longName(LONG_NAME)
+                .file("truncated-name", "{}")
+                .header("", "agent/link", 0L, '2', "0000777")
+                .header("agent/empty", 0L, '0')
+                .end();
+    }
+
+    @SneakyThrows
+    private Path write(byte[] tar) {
+        final Path file = folder.resolve("agent.tar");
+        Files.write(file, tar);
+        return file;
+    }
+
+    @SneakyThrows
+    private static long count(Path directory) {
+        if (!Files.exists(directory)) return 0L;
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.count();
+        }
+    }
+
+    private static void assertTree(Path tree) throws IOException {
+        assertEquals("hello", Files.readString(tree.resolve("agent/README")));
+        assertArrayEquals(PAYLOAD, Files.readAllBytes(tree.resolve("agent/bin/run.sh")));
+        assertTrue(Files.isExecutable(tree.resolve("agent/bin/run.sh")));
+        assertEquals("{}", Files.readString(tree.resolve(LONG_NAME)));
+        assertEquals(0L, Files.size(tree.resolve("agent/empty")));
+        assertFalse(Files.exists(tree.resolve("agent/link")));
+    }
+
+    @Test
+    @SneakyThrows
+    void testChunksOfAnySizeAreExtractedAndPublishedOnAMatchingDigest() {
+        final byte[] tar = tar("agent/README");
+        final String checkSum = FileUtils.hexDigest(write(tar), Artifact.CHECKSUM_TYPE);
+        final Path extractFolder = folder.resolve("extracted");
+        for (int chunk : new int[]{1, 7, TarIndex.BLOCK, 8192}) {
+            final Path target = extractFolder.resolve("agent-" + chunk);
+            try (var extractor = new TarExtractor(extractFolder, "agent.tar")) {
+                for (int from = 0; from < tar.length; from += chunk) {
+                    final ByteBuffer buffer = ByteBuffer.wrap(tar, from, Math.min(chunk, tar.length - from));
+                    extractor.accept(buffer);
+                    assertEquals(from, buffer.position());
+                }
+                assertEquals(tar.length, extractor.getBytes());
+                assertEquals(4, extractor.getFiles());
+                assertEquals(target, extractor.publish(checkSum, target));
+            }
+            assertTree(target);
+        }
+        assertEquals(0L, count(extractFolder.resolve(TarExtractor.STAGING)));
+    }
+
+    @Test
+    @SneakyThrows
+    void testTreeIsNotPublishedOnAMismatchedDigest() {
+        final Path extractFolder = folder.resolve("extracted");
+        final Path target = extractFolder.resolve("agent");
+        final byte[] tar = tar("agent/README");
+        try (var extractor = new TarExtractor(extractFolder, "agent.tar")) {
+            extractor.accept(ByteBuffer.wrap(tar));
+            assertThrows(IOException.class, () -> extractor.publish("00".repeat(Manifest.DIGEST_LENGTH), target));
+        }
+        assertFalse(Files.exists(target));
+        assertEquals(0L, count(extractFolder.resolve(TarExtractor.STAGING)));
+
+        try (var extractor = new TarExtractor(extractFolder, "agent.tar")) {
+            extractor.accept(ByteBuffer.wrap(tar, 0, tar.length / 2));
+            final String checkSum = extractor.hexDigest();
+            assertThrows(IOException.class, () -> extractor.publish(checkSum, target)); // truncated
+        }
+        assertFalse(Files.exists(target));
+    }
+
+    @Test
+    @SneakyThrows
+    void testEntriesOutsideTheTreeAreRefused() {
+        final Path extractFolder = folder.resolve("extracted");
+        for (String name : new String[]{"../escaped", "/etc/escaped", "agent/../../escaped"}) {
+            try (var extractor = new TarExtractor(extractFolder, "agent.tar")) {
+                assertThrows(IOException.class, () -> extractor.accept(ByteBuffer.wrap(tar(name))));
+            }
+        }
+        assertFalse(Files.exists(folder.resolve("escaped")));
+        assertFalse(Files.exists(extractFolder.resolve("escaped")));
+        assertEquals(0L, count(extractFolder.resolve(TarExtractor.STAGING)));
+    }
+
+    @Test
+    @SneakyThrows
+    void testCopyTeesIntoTheExtractorAndAnEarlierTreeIsReplaced() {
+        final Path source = write(tar("agent/README"));
+        final String checkSum = FileUtils.hexDigest(source, Artifact.CHECKSUM_TYPE);
+        final Path extractFolder = folder.resolve("extracted");
+        final Path target = extractFolder.resolve("agent");
+        Files.createDirectories(target);
+        Files.writeString(target.resolve("stale"), "stale");
+        for (boolean compressAtRest : new boolean[]{false, true}) {
+            final Path part = folder.resolve("copy-" + compressAtRest + ".tar.part");
+            try (var extractor = new TarExtractor(extractFolder, "agent.tar")) {
+                var copied = FileUtils.copy(source.toUri().toURL(), part.toFile(), KB.toStorage(1),
+                        Duration.ofSeconds(30), compressAtRest, TransferGate.OPEN, extractor);
+                assertTrue(copied.isRight());
+                assertEquals(checkSum, extractor.hexDigest());
+                assertEquals(checkSum, FileUtils.hexDigest(part, Artifact.CHECKSUM_TYPE));
+                extractor.publish(checkSum, target);
+            }
+            assertTree(target);
+            assertFalse(Files.exists(target.resolve("stale")));
+            assertTrue(Files.isSymbolicLink(target));
+            assertEquals(1L, count(extractFolder.resolve(TarExtractor.TREES))); // the earlier version is deleted
+        }
+        try (var extractor = TarExtractor.of(folder.resolve("copy-true.tar.part").toFile(), extractFolder)) {
+            assertTree(extractor.publish(checkSum, extractFolder.resolve("from-file")));
+        }
+        assertEquals(0L, count(extractFolder.resolve(TarExtractor.STAGING)));
+        TarExtractor.delete(target);
+        assertFalse(Files.exists(target, LinkOption.NOFOLLOW_LINKS));
+        assertEquals(1L, count(extractFolder.resolve(TarExtractor.TREES)));
+        assertEquals(3L, count(extractFolder)); // .staging, .trees and from-file; no link left behind by a switch
+    }
+
+    @Test
+    @SneakyThrows
+    void testCorruptTarIsStillCopiedWithTheExtractorDetached() {
+        final byte[] tar = tar("agent/README");
+        tar[TarIndex.BLOCK + 148] ^= 1; // the header checksum of the second entry
+        final Path source = write(tar);
+        final Path extractFolder = folder.resolve("extracted");
+        final Path part = folder.resolve("copy.tar.part");
+        try (var extractor = new TarExtractor(extractFolder, "agent.tar")) {
+            var copied = FileUtils.copy(source.toUri().toURL(), part.toFile(), KB.toStorage(1),
+                    Duration.ofSeconds(30), false, TransferGate.OPEN, extractor);
+            assertTrue(copied.isRight());
+            assertEquals(tar.length, copied.get().getBytes());
+            assertArrayEquals(tar, Files.readAllBytes(part));
+            assertFalse(extractor.isWhole(tar.length));
+            assertEquals(0L, count(extractFolder.resolve(TarExtractor.STAGING)));
+        }
+        assertThrows(IOException.class, () -> TarExtractor.of(part.toFile(), extractFolder));
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Builds the tar archives of the tests; block by block.*/
+final class TarFixture {
+    /** A name too long for a ustar header; written as a GNU long name.*/
+    static final String LONG_NAME = "agent/" + "deeply/nested/".repeat(10) + "config.json";
+    /** Content spanning a few blocks and a part.*/
+    static final byte[] PAYLOAD = "x".repeat(3 * TarIndex.BLOCK + 17).getBytes(StandardCharsets.UTF_8);
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /** A ustar header; the name split into the prefix when given.*/
+    TarFixture header(String prefix, String name, long size, char type, String mode) {
+        final byte[] block = new byte[TarIndex.BLOCK];
+        put(block, 0, name);
+        put(block, 100, mode);
+        put(block, 124, String.format("%011o", size));
+        put(block, 136, "00000000000");
+        block[156] = (byte) type;
+        put(block, 257, "ustar");
+        put(block, 263, "00");
+        put(block, 345, prefix);
+        for (int i = 148; i < 156; i++) block[i] = ' ';
+        long sum = 0L;
+        for (byte b : block) sum += b & 0xFF;
+        put(block, 148, String.format("%06o", sum));
+        out.writeBytes(block);
+        return this;
+    }
+
+    /** A ustar header of a (non executable) entry.*/
+    TarFixture header(String name, long size, char type) {
+        return header("", name, size, type, "0000644");
+    }
+
+    /** The content of an entry; padded to the block.*/
+    TarFixture content(byte[] content) {
+        out.writeBytes(content);
+        out.writeBytes(new byte[(TarIndex.BLOCK - content.length % TarIndex.BLOCK) % TarIndex.BLOCK]);
+        return this;
+    }
+
+    /** A regular file with its content.*/
+    TarFixture file(String name, String content) {
+        final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return header(name, bytes.length, '0').content(bytes);
+    }
+
+    /** A GNU long name for the next entry.*/
+    TarFixture longName(String name) {
+        final byte[] bytes = (name + "\0").getBytes(StandardCharsets.UTF_8);
+        return header("././@LongLink", bytes.length, 'L').content(bytes);
+    }
+
+    /** The archive; ended with the two zero blocks.*/
+    byte[] end() {
+        out.writeBytes(new byte[2 * TarIndex.BLOCK]);
+        return out.toByteArray();
+    }
+
+    private static void put(byte[] block, int offset, String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, block, offset, bytes.length);
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.TarFixture.LONG_NAME;
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.TarFixture.PAYLOAD;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TarIndexTest {
+    @TempDir
+    Path folder;
+
+    @SneakyThrows
+    private Path tar() {
+        final byte[] pax = "25 path=agent/pax/entry.txt\n".getBytes(StandardCharsets.UTF_8);
+        final byte[] archive = new TarFixture()
+                .header("agent/", 0L, '5')
+                .file("agent/README", "hello")
+                .header("agent/bin", "payload.bin", PAYLOAD.length, '0', "0000644").content(PAYLOAD)
+                .longName(LONG_NAME)
+                .file("truncated-name", "{}")
+                .header("PaxHeaders/entry", pax.length, 'x').content(pax)
+                .file("entry.txt", "pax")
+                .end();
+        final Path tar = folder.resolve("agent.tar");
+        Files.write(tar, archive);
+        return tar;
+    }
+
+    @SneakyThrows
+    private static byte[] read(SeekableByteChannel channel) {
+        try (channel) {
+            final var out = new ByteArrayOutputStream();
+            final ByteBuffer buffer = ByteBuffer.allocate(100);
+            while (channel.read(buffer.clear()) >= 0) {
+                out.write(buffer.array(), 0, buffer.position());
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testEntriesAreIndexedAndReadWithoutExtraction() {
+        final var index = TarIndex.of(tar().toFile());
+        assertEquals(List.of("agent/README", "agent/bin/payload.bin", LONG_NAME, "agent/pax/entry.txt"),
+                index.entries().stream().map(TarIndex.Entry::getName).toList());
+        assertEquals("hello", new String(read(index.open("agent/README")), StandardCharsets.UTF_8));
+        assertArrayEquals(PAYLOAD, read(index.open("agent/bin/payload.bin")));
+        assertEquals("{}", new String(read(index.open(LONG_NAME)), StandardCharsets.UTF_8));
+        assertEquals("pax", StandardCharsets.UTF_8.decode(index.map("agent/pax/entry.txt")).toString());
+
+        try (var channel = index.open("agent/bin/payload.bin")) {
+            final ByteBuffer tail = ByteBuffer.allocate(100);
+            assertEquals(17, channel.position(3L * TarIndex.BLOCK).read(tail));
+            assertEquals(-1, channel.read(tail.clear()));
+        }
+        assertThrows(NoSuchFileException.class, () -> index.open("agent/missing"));
+    }
+
+    @Test
+    @SneakyThrows
+    void testCompressedArchivesAreReadByTheirLogicalOffsets() {
+        final Path plain = tar();
+        final Path compressed = folder.resolve("compressed.tar");
+        CompressedStore.compress(plain, compressed);
+        final var index = TarIndex.of(compressed.toFile());
+        assertEquals(4, index.entries().size());
+        assertArrayEquals(PAYLOAD, read(index.open("agent/bin/payload.bin")));
+        assertThrows(IOException.class, () -> index.map("agent/README"));
+    }
+
+    @Test
+    @SneakyThrows
+    void testIndexIsRebuiltOnceTheArchiveChanges() {
+        final var file = tar().toFile();
+        final var index = TarIndex.of(file);
+        assertSame(index, TarIndex.of(file));
+        assertTrue(file.setLastModified(file.lastModified() - 10_000L));
+        assertThrows(IOException.class, () -> index.open("agent/README"));
+        assertNotSame(index, TarIndex.of(file));
+        assertEquals("hello", new String(read(TarIndex.of(file).open("agent/README")), StandardCharsets.UTF_8));
+
+        Files.writeString(folder.resolve("not.tar"), "not a tar archive ".repeat(100));
+        assertThrows(IOException.class, () -> TarIndex.build(folder.resolve("not.tar").toFile()));
+    }
+
+    @Test
+    @SneakyThrows
+    void testIndexIsRebuiltOnASizeChangeAndDroppedOnceEvicted() {
+        final var file = tar().toFile();
+        final var index = TarIndex.of(file);
+        final long modified = file.lastModified();
+        Files.write(file.toPath(), new byte[TarIndex.BLOCK], StandardOpenOption.APPEND);
+        assertTrue(file.setLastModified(modified));
+        assertThrows(IOException.class, () -> index.open("agent/README"));
+        final var rebuilt = TarIndex.of(file);
+        assertNotSame(index, rebuilt);
+        assertSame(rebuilt, TarIndex.of(file));
+
+        TarIndex.evict(file);
+        assertNotSame(rebuilt, TarIndex.of(file));
+        Files.delete(file.toPath());
+        assertThrows(NoSuchFileException.class, () -> TarIndex.of(file));
+    }
+
+    @Test
+    @SneakyThrows
+    void testAnOversizedExtendedHeaderIsRefused() {
+        final var tar = folder.resolve("oversized.tar");
+        Files.write(tar, new TarFixture().header("././@LongLink", TarExtractor.MAX_EXTENDED + 1L, 'L').end());
+        final var e = assertThrows(IOException.class, () -> TarIndex.build(tar.toFile()));
+        assertTrue(e.getMessage().startsWith("Extended header too large"));
+    }
+}
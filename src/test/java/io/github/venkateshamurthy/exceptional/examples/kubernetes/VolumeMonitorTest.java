@@ -0,0 +1,77 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VolumeMonitorTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testMonitorIsSharedPerVolumeAndStopsOnLastRelease() {
+        var first = VolumeMonitor.acquire(folder.toFile());
+        int held = first.getReferences() - 1; // by other downloaders on this volume in this JVM
+        var second = VolumeMonitor.acquire(folder.resolve("not/yet/created").toFile());
+        assertSame(first, second);
+        assertEquals(held + 2, first.getReferences());
+
+        var reading = first.readings().firstOrError().blockingGet();
+        assertTrue(reading.get(VolumeMonitor.AVAILABLE).getBytes() > 0L);
+        assertTrue(reading.get(VolumeMonitor.SIZE).getBytes() >= reading.get(VolumeMonitor.AVAILABLE).getBytes());
+
+        first.release();
+        second.release();
+        assertEquals(held, first.getReferences());
+        if (held == 0) {
+            var restarted = VolumeMonitor.acquire(folder.toFile());
+            assertNotSame(first, restarted);
+            restarted.release();
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void testReadingsSampledConcurrentlyAreDeliveredOneAtATime() {
+        final var monitor = VolumeMonitor.acquire(folder.toFile());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        final var subscription = monitor.readings().subscribe(reading -> {
+            if (inFlight.incrementAndGet() > 1) overlaps.incrementAndGet();
+            Thread.yield();
+            delivered.incrementAndGet();
+            inFlight.decrementAndGet();
+        });
+        final int threads = 8, samples = 200;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < threads; i++) {
+                executor.submit(() -> {
+                    start.await();
+                    for (int j = 0; j < samples; j++) monitor.sample();
+                    return null;
+                });
+            }
+            start.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+            assertEquals(0, overlaps.get());
+            assertTrue(delivered.get() >= threads * samples);
+        } finally {
+            subscription.dispose();
+            monitor.release();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.github.venkateshamurthy.exceptional.examples.kubernetes;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static io.github.venkateshamurthy.exceptional.examples.kubernetes.WorkJournal.State.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WorkJournalTest {
+    private static final URI[] uris = {Agents.DEM15.getUri(), Agents.DEM16.getUri(), Agents.AV17.getUri()};
+    @TempDir
+    Path folder;
+
+    @Test
+    @SneakyThrows
+    void testRestartedBatchResumesOnlyUnfinishedWork() {
+        var journal = WorkJournal.open(folder.toFile());
+        assertFalse(journal.isResumable(uris));
+        journal.plan(uris);
+        journal.record(uris[0], DOWNLOADING);
+        journal.record(uris[0], VERIFIED);
+        journal.record(uris[1], DOWNLOADING);
+        // pod evicted here mid write of the next line
+        Files.writeString(folder.resolve(WorkJournal.JOURNAL), "VERIF", StandardOpenOption.APPEND);
+
+        var replayed = WorkJournal.open(folder.toFile());
+        assertTrue(replayed.isResumable(uris));
+        assertFalse(replayed.isResumable(uris[0], uris[1]));
+        assertArrayEquals(new URI[]{uris[1], uris[2]}, replayed.unfinished());
+
+        replayed.record(uris[1], VERIFIED);
+        replayed.record(uris[2], FAILED);
+        replayed.finish();
+        assertArrayEquals(new URI[]{uris[2]}, WorkJournal.open(folder.toFile()).unfinished());
+
+        replayed.record(uris[2], VERIFIED);
+        replayed.finish();
+        assertFalse(Files.exists(folder.resolve(WorkJournal.JOURNAL)));
+    }
+
+    @Test
+    @SneakyThrows
+    void testJournalIsCompacted() {
+        var journal = WorkJournal.open(folder.toFile());
+        journal.plan(uris);
+        for (int i = 0; i < WorkJournal.COMPACT_EVERY; i++) journal.record(uris[i % uris.length], DOWNLOADING);
+        assertEquals(uris.length, Files.readAllLines(folder.resolve(WorkJournal.JOURNAL)).size());
+        assertArrayEquals(uris, WorkJournal.open(folder.toFile()).unfinished());
+    }
+}